@@ -0,0 +1,113 @@
+package com.maxdemarzi;
+
+import com.maxdemarzi.results.MapResult;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.factory.GraphDatabaseFactory;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+import org.neo4j.logging.NullLog;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.stream.Collectors;
+
+// An embedded database loaded with a schedule from the ScheduleGenerator through the same procedures a server uses.
+// Spoke to hub is a non-stop, spoke to spoke of the same hub a one-stop and spoke to spoke of another hub a two-stop,
+// unless the generator also connected the spoke to the second hub.
+final class BenchmarkDatabase {
+    static final String DAY = "2016-05-03";
+    private static final int DAYS = 7;
+
+    final GraphDatabaseAPI db;
+    final ScheduleGenerator generator;
+    private final File directory;
+    private final File flightsFile;
+
+    private BenchmarkDatabase(File directory, ScheduleGenerator generator) {
+        this.directory = directory;
+        this.generator = generator;
+        this.flightsFile = new File(directory, "flights.csv");
+        this.db = (GraphDatabaseAPI) new GraphDatabaseFactory().newEmbeddedDatabase(new File(directory, "graph.db"));
+    }
+
+    static BenchmarkDatabase start(int airports, int hubs, int dailyLegs) throws IOException {
+        BenchmarkDatabase database = withAirports(airports, hubs, dailyLegs);
+        database.importFlights();
+        return database;
+    }
+
+    // The schema and airports are in, the flights are written out but not imported yet
+    static BenchmarkDatabase withAirports(int airports, int hubs, int dailyLegs) throws IOException {
+        File directory = Files.createTempDirectory("neo-flights-benchmark").toFile();
+        ScheduleGenerator generator = new ScheduleGenerator(airports, hubs, dailyLegs, DAYS, 42L);
+        File airportsFile = new File(directory, "airports.csv");
+        generator.write(airportsFile, new File(directory, "flights.csv"));
+
+        BenchmarkDatabase database = new BenchmarkDatabase(directory, generator);
+        database.createSchema();
+        database.imports().importAirports(airportsFile.getAbsolutePath());
+        return database;
+    }
+
+    String importFlights() throws IOException {
+        return imports().importFlights(flightsFile.getAbsolutePath()).findFirst().get().value;
+    }
+
+    void shutdown() throws IOException {
+        db.shutdown();
+        Files.walk(directory.toPath())
+                .sorted(Comparator.reverseOrder())
+                .map(java.nio.file.Path::toFile)
+                .forEach(File::delete);
+    }
+
+    String hub(int number) {
+        return generator.hub(number);
+    }
+
+    String spoke(int number) {
+        return generator.spoke(number);
+    }
+
+    Flights flights() {
+        Flights flights = new Flights();
+        flights.db = db;
+        flights.log = NullLog.getInstance();
+        return flights;
+    }
+
+    List<MapResult> search(Flights flights, String from, String to) throws IOException {
+        return flights.flightSearch(Collections.singletonList(from), Collections.singletonList(to), DAY, 50, 2000,
+                Collections.emptyMap()).collect(Collectors.toList());
+    }
+
+    // Forget everything the searches have cached, as if the plugin was just deployed
+    void clearCaches() {
+        Flights.clearRouteCache(db);
+        LegCache.of(db).clear();
+        ResultCache.of(db).clear();
+    }
+
+    // Forget the finished searches only, so the next one searches the graph with warm route and Leg caches
+    void clearResults() {
+        ResultCache.of(db).clear();
+    }
+
+    private Imports imports() {
+        Imports imports = new Imports();
+        imports.db = db;
+        imports.log = NullLog.getInstance();
+        return imports;
+    }
+
+    private void createSchema() {
+        try (Transaction tx = db.beginTx()) {
+            for (Map.Entry<Label, String> unique : Schema.UNIQUE_PROPERTIES.entrySet()) {
+                db.schema().constraintFor(unique.getKey()).assertPropertyIsUnique(unique.getValue()).create();
+            }
+            tx.success();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.maxdemarzi;
+
+import com.maxdemarzi.results.MapResult;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// End to end flightSearch latency for each kind of itinerary, answered from the result cache,
+// searched with the route and Leg caches kept warm, or with every cache cleared before each search.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FlightSearchBenchmark {
+
+    @Param({"50", "200"})
+    public int airports;
+
+    @Param({"4"})
+    public int hubs;
+
+    @Param({"2000"})
+    public int dailyLegs;
+
+    @Param({"results", "warm", "cold"})
+    public String cache;
+
+    private BenchmarkDatabase database;
+    private Flights flights;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        database = BenchmarkDatabase.start(airports, hubs, dailyLegs);
+        flights = database.flights();
+    }
+
+    @Setup(Level.Invocation)
+    public void clearCaches() {
+        if ("cold".equals(cache)) {
+            database.clearCaches();
+        } else if ("warm".equals(cache)) {
+            database.clearResults();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        database.shutdown();
+    }
+
+    @Benchmark
+    public List<MapResult> nonStop() throws IOException {
+        return database.search(flights, database.spoke(1), database.hub(1));
+    }
+
+    // Spoke 1 only flies to its own hub, the generator gives spoke 2 a second one
+    @Benchmark
+    public List<MapResult> oneStop() throws IOException {
+        return database.search(flights, database.spoke(1), database.spoke(1 + hubs));
+    }
+
+    @Benchmark
+    public List<MapResult> twoStop() throws IOException {
+        return database.search(flights, database.spoke(1), database.spoke(2));
+    }
+}
@@ -0,0 +1,139 @@
+package com.maxdemarzi;
+
+import com.maxdemarzi.results.MapResult;
+import org.neo4j.graphalgo.GraphAlgoFactory;
+import org.neo4j.graphalgo.WeightedPath;
+import org.neo4j.graphdb.*;
+import org.neo4j.graphdb.traversal.BranchState;
+import org.neo4j.graphdb.traversal.Evaluators;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+// The pieces of a search on their own: expanding a path, finding the valid routes between two airports
+// and ranking the results, by sorting finished results or by keeping the best paths before they become results.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HotPathBenchmark {
+
+    @Param({"200"})
+    public int airports;
+
+    private BenchmarkDatabase database;
+    private Transaction tx;
+
+    private Node departureAirport;
+    private Node arrivalAirport;
+    private Double maxDistance;
+    private PathRestrictedExpander expander;
+    private Path departure;
+    private Path connection;
+
+    @SuppressWarnings("unchecked")
+    private static final BranchState<Double> NO_STATE = BranchState.NO_STATE;
+
+    private final FlightComparator comparator = new FlightComparator();
+    private List<MapResult> shuffled;
+    private List<Path> paths;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        database = BenchmarkDatabase.start(airports, 4, 2000);
+
+        // A warm two-stop search, which also points the search at this database
+        Flights flights = database.flights();
+        String from = database.spoke(1);
+        String to = database.spoke(2);
+        shuffled = new ArrayList<>(database.search(flights, from, to));
+        Collections.shuffle(shuffled, new Random(42));
+        expander = new PathRestrictedExpander(from, to, Deadline.after(Long.MAX_VALUE / 2), RouteCache.of(database.db).get(from, to), LegCache.of(database.db));
+    }
+
+    // Transactions belong to a thread, so open one on the benchmark thread for every iteration
+    @Setup(Level.Iteration)
+    public void beginTx() {
+        tx = database.db.beginTx();
+        departureAirport = database.db.findNode(Labels.Airport, "code", database.spoke(1));
+        arrivalAirport = database.db.findNode(Labels.Airport, "code", database.spoke(2));
+        maxDistance = Utilities.getMaxDistance(departureAirport, arrivalAirport);
+
+        // The first leg out of the departure day, and that leg connecting to the next one at the hub
+        Node airportDay = database.db.findNode(Labels.AirportDay, "key", database.spoke(1) + "-" + BenchmarkDatabase.DAY);
+        for (Path path : database.db.traversalDescription()
+                .depthFirst()
+                .relationships(RelationshipType.withName(database.hub(1) + "_FLIGHT"), Direction.OUTGOING)
+                .relationships(RelationshipType.withName(database.hub(2) + "_FLIGHT"), Direction.OUTGOING)
+                .evaluator(Evaluators.atDepth(3))
+                .traverse(airportDay)) {
+            connection = path;
+            break;
+        }
+        // Every path the search finds, before it keeps the best ones
+        paths = new ArrayList<>();
+        for (WeightedPath path : GraphAlgoFactory.dijkstra(expander, new RouteCostEvaluator(LegCache.of(database.db)), 500)
+                .findAllPaths(airportDay, arrivalAirport)) {
+            paths.add(path);
+        }
+        Collections.shuffle(paths, new Random(42));
+
+        for (Path path : database.db.traversalDescription()
+                .evaluator(Evaluators.atDepth(1))
+                .relationships(RelationshipType.withName(database.hub(1) + "_FLIGHT"), Direction.OUTGOING)
+                .traverse(airportDay)) {
+            departure = path;
+            break;
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void closeTx() {
+        tx.close();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        database.shutdown();
+    }
+
+    @Benchmark
+    public void expandDeparture(Blackhole blackhole) {
+        for (Relationship relationship : expander.expand(departure, NO_STATE)) {
+            blackhole.consume(relationship);
+        }
+    }
+
+    @Benchmark
+    public void expandConnection(Blackhole blackhole) {
+        for (Relationship relationship : expander.expand(connection, NO_STATE)) {
+            blackhole.consume(relationship);
+        }
+    }
+
+    @Benchmark
+    public RouteTemplate getValidPaths() {
+        return Flights.getValidPaths(database.db, departureAirport, arrivalAirport, maxDistance);
+    }
+
+    @Benchmark
+    public List<MapResult> sortResults() {
+        List<MapResult> results = new ArrayList<>(shuffled);
+        results.sort(comparator);
+        return results;
+    }
+
+    @Benchmark
+    public List<Path> keepTopPaths() {
+        TopPaths top = new TopPaths(50, LegCache.of(database.db));
+        for (Path path : paths) {
+            top.offer(path);
+        }
+        return top.sorted();
+    }
+}
@@ -0,0 +1,43 @@
+package com.maxdemarzi;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// How long com.maxdemarzi.import.flights takes to load a generated week of flights into a database
+// that only has the airports, one fresh database per import.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ImportBenchmark {
+
+    @Param({"50", "200"})
+    public int airports;
+
+    @Param({"4"})
+    public int hubs;
+
+    @Param({"2000", "10000"})
+    public int dailyLegs;
+
+    private BenchmarkDatabase database;
+
+    @Setup(Level.Invocation)
+    public void setUp() throws IOException {
+        database = BenchmarkDatabase.withAirports(airports, hubs, dailyLegs);
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDown() throws IOException {
+        database.shutdown();
+    }
+
+    @Benchmark
+    public String importFlights() throws IOException {
+        return database.importFlights();
+    }
+}
@@ -0,0 +1,232 @@
+package com.maxdemarzi;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Writes a synthetic airports.csv and flights.csv in the layout com.maxdemarzi.import.airports and
+ * com.maxdemarzi.import.flights read, to load and search networks of any size.
+ *
+ * The first hubs airports are hubs flying to each other, every other airport is a spoke that flies to and from
+ * its hub, and every third spoke to a second hub as well. Flights run in banks: spokes arrive at the hub just
+ * before each bank and leave after it, hub to hub flights leave in the middle of it. Times are local to each
+ * airport, with a time zone from its longitude. Most flights run daily, some skip Saturdays.
+ * The same seed always writes the same files.
+ *
+ * Usage: ScheduleGenerator <output directory> <airports> <daily legs> [hubs] [days] [seed]
+ */
+public class ScheduleGenerator {
+
+    static final String[] FLIGHT_COLUMNS = {"DepartureCity", "ArrivalCity", "DepartureTime", "ArrivalTime",
+            "DepartureTimezone", "ArrivalTimezone", "AirlineCode", "EffectiveDate", "FlightNumber",
+            "DayOfOperationMonday", "DayOfOperationTuesday", "DayOfOperationWednesday", "DayOfOperationThursday",
+            "DayOfOperationFriday", "DayOfOperationSaturday", "DayOfOperationSunday", "DiscontinueDate",
+            "ScheduleEffectiveDate", "VariationDepartureTimeCode", "VariationArrivalTimeCode", "FlightDistance"};
+    static final String[] AIRPORT_COLUMNS = {"Code", "Country", "Latitude", "Longitude", "Lat", "Lon", "Name"};
+
+    static final LocalDate EFFECTIVE_DATE = LocalDate.of(2016, 5, 1);
+
+    // Banks run from 6:00 to 22:00 hub time
+    private static final int FIRST_BANK = 6 * 60;
+    private static final int LAST_BANK = 22 * 60;
+
+    private final int airports;
+    private final int hubs;
+    private final int dailyLegs;
+    private final int days;
+    private final long seed;
+
+    private final double[] latitude;
+    private final double[] longitude;
+
+    public ScheduleGenerator(int airports, int hubs, int dailyLegs, int days, long seed) {
+        if (hubs < 1 || airports < hubs) {
+            throw new IllegalArgumentException("Need at least one hub and no more hubs than airports");
+        }
+        if (days < 1) {
+            throw new IllegalArgumentException("Schedules run for at least 1 day");
+        }
+        this.airports = airports;
+        this.hubs = hubs;
+        this.dailyLegs = dailyLegs;
+        this.days = days;
+        this.seed = seed;
+        this.latitude = new double[airports];
+        this.longitude = new double[airports];
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.err.println("Usage: ScheduleGenerator <output directory> <airports> <daily legs> [hubs] [days] [seed]");
+            System.exit(1);
+        }
+        int airports = Integer.parseInt(args[1]);
+        int dailyLegs = Integer.parseInt(args[2]);
+        int hubs = args.length > 3 ? Integer.parseInt(args[3]) : Math.max(1, airports / 25);
+        int days = args.length > 4 ? Integer.parseInt(args[4]) : 7;
+        long seed = args.length > 5 ? Long.parseLong(args[5]) : 42L;
+
+        File directory = new File(args[0]);
+        ScheduleGenerator generator = new ScheduleGenerator(airports, hubs, dailyLegs, days, seed);
+        int legs = generator.write(new File(directory, "airports.csv"), new File(directory, "flights.csv"));
+        System.out.println(airports + " Airports and " + legs + " Legs over " + days + " days written to " + directory);
+    }
+
+    // Write both files and return how many legs the flights will expand into
+    public int write(File airportsFile, File flightsFile) throws IOException {
+        Random random = new Random(seed);
+        place(random);
+        writeAirports(airportsFile);
+        return writeFlights(flightsFile, random);
+    }
+
+    String hub(int number) {
+        return code(number % hubs);
+    }
+
+    // The spokes of hub h are numbered h, h + hubs, h + 2 * hubs...
+    String spoke(int number) {
+        return code(hubs + number);
+    }
+
+    static String code(int number) {
+        char[] code = new char[3];
+        for (int i = 2; i >= 0; i--) {
+            code[i] = (char) ('A' + number % 26);
+            number /= 26;
+        }
+        return new String(code);
+    }
+
+    // Hubs spread over the continental US, spokes within a few hundred miles of their hub
+    private void place(Random random) {
+        for (int i = 0; i < airports; i++) {
+            if (i < hubs) {
+                latitude[i] = 0.52 + random.nextDouble() * 0.25;
+                longitude[i] = -2.1 + random.nextDouble() * 0.8;
+            } else {
+                latitude[i] = latitude[i % hubs] + (random.nextDouble() - 0.5) * 0.08;
+                longitude[i] = longitude[i % hubs] + (random.nextDouble() - 0.5) * 0.1;
+            }
+        }
+    }
+
+    private void writeAirports(File file) throws IOException {
+        try (CSVPrinter printer = new CSVPrinter(new FileWriter(file), CSVFormat.EXCEL.withHeader(AIRPORT_COLUMNS))) {
+            for (int i = 0; i < airports; i++) {
+                printer.printRecord(code(i), "US", degrees(latitude[i], 'N', 'S'), degrees(longitude[i], 'E', 'W'),
+                        latitude[i], longitude[i], "Synthetic (" + code(i) + ")");
+            }
+        }
+    }
+
+    private int writeFlights(File file, Random random) throws IOException {
+        // Every route as {from, to, hub whose banks it keeps}
+        ArrayList<int[]> routes = new ArrayList<>();
+        for (int spoke = hubs; spoke < airports; spoke++) {
+            routes.add(new int[]{spoke, spoke % hubs, spoke % hubs});
+            routes.add(new int[]{spoke % hubs, spoke, spoke % hubs});
+            if (hubs > 1 && spoke % 3 == 0) {
+                int second = (spoke + 1) % hubs;
+                routes.add(new int[]{spoke, second, second});
+                routes.add(new int[]{second, spoke, second});
+            }
+        }
+        for (int from = 0; from < hubs; from++) {
+            for (int to = 0; to < hubs; to++) {
+                if (from != to) {
+                    routes.add(new int[]{from, to, from});
+                }
+            }
+        }
+        if (dailyLegs < routes.size()) {
+            throw new IllegalArgumentException(airports + " Airports with " + hubs + " hubs need at least "
+                    + routes.size() + " daily legs, one for every route");
+        }
+
+        int legs = 0;
+        int flightNumber = 100;
+        try (CSVPrinter printer = new CSVPrinter(new FileWriter(file), CSVFormat.EXCEL.withHeader(FLIGHT_COLUMNS))) {
+            for (int r = 0; r < routes.size(); r++) {
+                int[] route = routes.get(r);
+                int from = route[0];
+                int to = route[1];
+                int bankHub = route[2];
+
+                // Spread the daily legs over the routes, the first ones take what doesn't divide evenly
+                int frequency = dailyLegs / routes.size() + (r < dailyLegs % routes.size() ? 1 : 0);
+                boolean skipsSaturday = random.nextInt(8) == 0;
+
+                int distance = distance(from, to);
+                int duration = 30 + distance / 8;
+                for (int bank = 0; bank < frequency; bank++) {
+                    int bankTime = FIRST_BANK + bank * (LAST_BANK - FIRST_BANK) / frequency;
+
+                    // Minutes past midnight local time at the departure airport
+                    int departs;
+                    if (to == bankHub && from >= hubs) {
+                        departs = bankTime - 15 - duration + (timezone(from) - timezone(to)) * 60;
+                    } else if (from == bankHub && to >= hubs) {
+                        departs = bankTime + 45;
+                    } else {
+                        departs = bankTime + 30;
+                    }
+                    int arrives = departs + duration + (timezone(to) - timezone(from)) * 60;
+
+                    printer.printRecord(code(from), code(to), time(departs), time(arrives),
+                            timezone(from) * 100, timezone(to) * 100, "S" + (char) ('A' + bankHub % 26),
+                            date(EFFECTIVE_DATE), flightNumber++,
+                            "1", "2", "3", "4", "5", skipsSaturday ? "" : "6", "7",
+                            date(EFFECTIVE_DATE.plusDays(days)), "00:00.0",
+                            Math.floorDiv(departs, 24 * 60), Math.floorDiv(arrives, 24 * 60), distance);
+
+                    for (int day = 0; day < days; day++) {
+                        if (!(skipsSaturday && EFFECTIVE_DATE.plusDays(day).getDayOfWeek() == DayOfWeek.SATURDAY)) {
+                            legs++;
+                        }
+                    }
+                }
+            }
+        }
+        return legs;
+    }
+
+    // Whole hours from the longitude, 15 degrees to the hour
+    private int timezone(int airport) {
+        return (int) Math.round(Math.toDegrees(longitude[airport]) / 15);
+    }
+
+    private int distance(int from, int to) {
+        double x = Math.sin(latitude[from]) * Math.sin(latitude[to])
+                + Math.cos(latitude[from]) * Math.cos(latitude[to]) * Math.cos(longitude[from] - longitude[to]);
+        return (int) (Math.acos(Math.min(1, x)) * 3959.0 + 0.5);
+    }
+
+    // Times are written as hours and minutes, 18:30 is 1830
+    private static int time(int minutes) {
+        int local = Math.floorMod(minutes, 24 * 60);
+        return (local / 60) * 100 + local % 60;
+    }
+
+    // Dates are written as month/day/two digit year
+    private static String date(LocalDate date) {
+        return date.getMonthValue() + "/" + date.getDayOfMonth() + "/" + (date.getYear() % 100);
+    }
+
+    // Degrees, minutes and seconds like 40.38.23N
+    private static String degrees(double radians, char positive, char negative) {
+        double degrees = Math.abs(Math.toDegrees(radians));
+        int whole = (int) degrees;
+        int minutes = (int) ((degrees - whole) * 60);
+        int seconds = (int) Math.round(((degrees - whole) * 60 - minutes) * 60) % 60;
+        return String.format("%03d.%02d.%02d%c", whole, minutes, seconds, radians < 0 ? negative : positive);
+    }
+}
@@ -0,0 +1,88 @@
+package com.maxdemarzi;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.neo4j.harness.junit.Neo4jRule;
+import org.neo4j.test.server.HTTP;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.maxdemarzi.TestUtils.SCHEMA;
+import static com.maxdemarzi.TestUtils.getResultRow;
+import static com.maxdemarzi.TestUtils.getResultString;
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertFalse;
+
+public class ScheduleGeneratorTest {
+
+    @Rule
+    public final Neo4jRule neo4j = new Neo4jRule()
+            .withProcedure(Schema.class)
+            .withProcedure(Imports.class)
+            .withProcedure(Flights.class);
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldGenerateImportableSchedule() throws Exception {
+        File airports = folder.newFile("airports.csv");
+        File flights = folder.newFile("flights.csv");
+
+        // 9 spokes with 2 routes each, 3 of them to a second hub as well, and 6 routes between the hubs:
+        // 30 routes flying twice a day for 3 days
+        ScheduleGenerator generator = new ScheduleGenerator(12, 3, 60, 3, 42L);
+        assertEquals(180, generator.write(airports, flights));
+
+        HTTP.POST(neo4j.httpURI().resolve("/db/data/transaction/commit").toString(), SCHEMA);
+        HTTP.Response response = HTTP.POST(neo4j.httpURI().resolve("/db/data/transaction/commit").toString(),
+                importQuery("CALL com.maxdemarzi.import.airports({file})", airports.getAbsolutePath()));
+        assertEquals("12 Airports imported in ", getResultString(response).replaceAll("\\d+ Seconds", ""));
+
+        response = HTTP.POST(neo4j.httpURI().resolve("/db/data/transaction/commit").toString(),
+                importQuery("CALL com.maxdemarzi.import.flights({file})", flights.getAbsolutePath()));
+        assertEquals("60 Flights imported in ", getResultString(response).replaceAll("\\d+ Seconds", ""));
+
+        response = HTTP.POST(neo4j.httpURI().resolve("/db/data/transaction/commit").toString(), LEGS);
+        assertEquals(180, ((Map) getResultRow(response).get(0)).get("legs"));
+
+        // A spoke of the first hub to a spoke of the second
+        response = HTTP.POST(neo4j.httpURI().resolve("/db/data/transaction/commit").toString(),
+                searchQuery(generator.spoke(0), generator.spoke(1)));
+        assertFalse(getResultRow(response).isEmpty());
+    }
+
+    private static HashMap<String, Object> importQuery(String statement, String file) {
+        return new HashMap<String, Object>(){{
+            put("statements", new ArrayList<Map<String, Object>>() {{
+                add(new HashMap<String, Object>() {{
+                    put("statement", statement);
+                    put("parameters", new HashMap<String, Object>() {{ put("file", file); }});
+                }});
+            }});
+        }};
+    }
+
+    private static HashMap<String, Object> searchQuery(String from, String to) {
+        return new HashMap<String, Object>(){{
+            put("statements", new ArrayList<Map<String, Object>>() {{
+                add(new HashMap<String, Object>() {{
+                    put("statement", "CALL com.maxdemarzi.flights([{from}], [{to}], '2016-05-02')");
+                    put("parameters", new HashMap<String, Object>() {{ put("from", from); put("to", to); }});
+                }});
+            }});
+        }};
+    }
+
+    private static final HashMap<String, Object> LEGS = new HashMap<String, Object>(){{
+        put("statements", new ArrayList<Map<String, Object>>() {{
+            add(new HashMap<String, Object>() {{
+                put("statement", "MATCH (l:Leg) RETURN {legs: count(l)}");
+            }});
+        }});
+    }};
+}
@@ -0,0 +1,75 @@
+package com.maxdemarzi;
+
+import org.neo4j.graphdb.RelationshipType;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Interns airport codes to small int ids so route templates can be stored as int arrays.
+// The "<CODE>_FLIGHT" relationship type of each airport is built once and shared.
+final class AirportIds {
+    private static final ConcurrentHashMap<String, Integer> byCode = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, Integer> byFlightType = new ConcurrentHashMap<>();
+    private static volatile String[] codes = new String[256];
+    private static volatile RelationshipType[] flightTypes = new RelationshipType[256];
+
+    private AirportIds() {}
+
+    static int of(String code) {
+        Integer id = byCode.get(code);
+        return id != null ? id : intern(code);
+    }
+
+    // The id of the airport a "<CODE>_FLIGHT" relationship type flies to, or -1 if we have never seen it
+    static int of(RelationshipType flightType) {
+        Integer id = byFlightType.get(flightType.name());
+        return id != null ? id : -1;
+    }
+
+    static String code(int id) {
+        return codes[id];
+    }
+
+    // The shared code of the airport an AirportDay key like "IAH-2015-05-06" belongs to
+    static String code(String airportDayKey) {
+        return codes[of(airportDayKey.substring(0, 3))];
+    }
+
+    // The shared code of the airport a "<CODE>_FLIGHT" relationship type flies to
+    static String code(RelationshipType flightType) {
+        int id = of(flightType);
+        if (id < 0) {
+            id = of(flightType.name().substring(0, flightType.name().length() - "_FLIGHT".length()));
+        }
+        return codes[id];
+    }
+
+    static RelationshipType flightType(int id) {
+        return flightTypes[id];
+    }
+
+    static int size() {
+        return byCode.size();
+    }
+
+    private static synchronized int intern(String code) {
+        Integer id = byCode.get(code);
+        if (id != null) {
+            return id;
+        }
+
+        int next = byCode.size();
+        if (next == codes.length) {
+            flightTypes = Arrays.copyOf(flightTypes, next * 2);
+            codes = Arrays.copyOf(codes, next * 2);
+        }
+        RelationshipType flightType = RelationshipType.withName(code + "_FLIGHT");
+        flightTypes[next] = flightType;
+        codes[next] = code;
+
+        // Publish the mappings last, once the arrays can answer for the new id
+        byFlightType.put(flightType.name(), next);
+        byCode.put(code, next);
+        return next;
+    }
+}
@@ -0,0 +1,70 @@
+package com.maxdemarzi;
+
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+// One search of a flightSearchBatch call, read from a map like {id:'r1', from:['JFK','LGA'], to:'ORD', day:'2016-04-28', limit:10}.
+// The airports are a code or a list of them, the limit defaults to the one of com.maxdemarzi.flights and the id,
+// which every result of this search comes back with, defaults to its position in the batch.
+class BatchRequest {
+    static final int MAX_REQUESTS = 1_000;
+    private static final int DEFAULT_LIMIT = 50;
+
+    final Object id;
+    final List<String> from;
+    final List<String> to;
+    final String day;
+    final int limit;
+
+    private BatchRequest(int index, Map<String, Object> request) {
+        this.id = request.getOrDefault("id", (long) index);
+        this.from = codes("from", request.get("from"));
+        this.to = codes("to", request.get("to"));
+        this.day = day(request.get("day"));
+        Object limit = request.getOrDefault("limit", DEFAULT_LIMIT);
+        if (!(limit instanceof Number) || ((Number) limit).intValue() < 0) {
+            throw new IllegalArgumentException("Batch request " + id + " has a limit of " + limit + ", it has to be 0 or more");
+        }
+        this.limit = ((Number) limit).intValue();
+    }
+
+    static List<BatchRequest> of(List<Map<String, Object>> requests) {
+        if (requests == null || requests.size() > MAX_REQUESTS) {
+            throw new IllegalArgumentException("A batch is up to " + MAX_REQUESTS + " requests, not "
+                    + (requests == null ? "none" : requests.size()));
+        }
+        ArrayList<BatchRequest> batch = new ArrayList<>(requests.size());
+        for (int i = 0; i < requests.size(); i++) {
+            batch.add(new BatchRequest(i, requests.get(i) == null ? Collections.emptyMap() : requests.get(i)));
+        }
+        return batch;
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<String> codes(String name, Object codes) {
+        if (codes instanceof String) {
+            return Collections.singletonList((String) codes);
+        }
+        if (codes instanceof List && !((List) codes).isEmpty()) {
+            for (Object code : (List) codes) {
+                if (!(code instanceof String)) {
+                    throw new IllegalArgumentException("Batch request " + id + " has " + code + " in " + name + ", not an airport code");
+                }
+            }
+            return (List<String>) codes;
+        }
+        throw new IllegalArgumentException("Batch request " + id + " needs " + name + ", an airport code or a list of them");
+    }
+
+    private String day(Object day) {
+        try {
+            return LocalDate.parse((String) day).toString();
+        } catch (ClassCastException | NullPointerException | DateTimeParseException e) {
+            throw new IllegalArgumentException("Batch request " + id + " needs a day like 2016-04-28, not " + day);
+        }
+    }
+}
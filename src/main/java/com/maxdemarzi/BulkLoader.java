@@ -0,0 +1,146 @@
+package com.maxdemarzi;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVRecord;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.unsafe.batchinsert.BatchInserter;
+import org.neo4j.unsafe.batchinsert.BatchInserters;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds a brand new store from the airport and flight schedule csv files without any transactions.
+ * The store directory must not be in use by a running Neo4j server.
+ *
+ * Usage: BulkLoader <store directory> <airports csv> <flights csv>
+ */
+public class BulkLoader {
+
+    private final BatchInserter inserter;
+    private final HashMap<String, Long> airports = new HashMap<>();
+    private final HashMap<String, Long> airportDays = new HashMap<>();
+
+    // Sum of the distance and number of flights between two airports, to create FLIES_TO at the end
+    private final HashMap<String, double[]> routes = new HashMap<>();
+
+    private BulkLoader(BatchInserter inserter) {
+        this.inserter = inserter;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 3) {
+            System.err.println("Usage: BulkLoader <store directory> <airports csv> <flights csv>");
+            System.exit(1);
+        }
+        System.out.println(load(new File(args[0]), args[1], args[2]));
+    }
+
+    static String load(File storeDir, String airportsFile, String flightsFile) throws IOException {
+        long start = System.nanoTime();
+        BatchInserter inserter = BatchInserters.inserter(storeDir);
+        BulkLoader loader = new BulkLoader(inserter);
+        int airportCount;
+        int legCount;
+        try {
+            for (Map.Entry<Label, String> unique : Schema.UNIQUE_PROPERTIES.entrySet()) {
+                inserter.createDeferredConstraint(unique.getKey()).assertPropertyIsUnique(unique.getValue()).create();
+            }
+            airportCount = loader.loadAirports(airportsFile);
+            legCount = loader.loadFlights(flightsFile);
+            loader.connectAirports();
+        } finally {
+            inserter.shutdown();
+        }
+
+        long timeTaken = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start);
+        return airportCount + " Airports and " + legCount + " Legs loaded in " + timeTaken + " Seconds";
+    }
+
+    private int loadAirports(String file) throws IOException {
+        try (Reader in = new FileReader(file)) {
+            for (CSVRecord record : CSVFormat.EXCEL.withHeader().parse(in)) {
+                String code = record.get("Code");
+                if (!airports.containsKey(code)) {
+                    HashMap<String, Object> properties = new HashMap<>();
+                    properties.put("code", code);
+                    properties.put("latitude", Double.parseDouble(record.get("Lat")));
+                    properties.put("longitude", Double.parseDouble(record.get("Lon")));
+                    properties.put("country", record.get("Country"));
+                    airports.put(code, inserter.createNode(properties, Labels.Airport));
+                }
+            }
+        }
+        return airports.size();
+    }
+
+    private int loadFlights(String file) throws IOException {
+        // Rows are read and expanded into their Legs on the pipeline threads a chunk at a time, the inserter
+        // itself can only be used from one thread and writes them as they come so the schedule is never all in memory
+        int count = 0;
+        try (SchedulePipeline schedules = new SchedulePipeline(file)) {
+            for (List<LegRecord> legs : schedules) {
+                for (LegRecord leg : legs) {
+                    count++;
+                    long departureAirportDay = airportDay(leg.departureCity, leg.departureKey);
+                    long arrivalAirportDay = airportDay(leg.arrivalCity, leg.arrivalKey);
+
+                    HashMap<String, Object> properties = new HashMap<>();
+                    properties.put("code", leg.code);
+                    properties.put("departs", leg.departs);
+                    properties.put("arrives", leg.arrives);
+                    properties.put("departs_at", leg.departsAt);
+                    properties.put("arrives_at", leg.arrivesAt);
+                    properties.put("distance", leg.distance);
+                    long legId = inserter.createNode(properties, Labels.Leg);
+
+                    RelationshipType flight = RelationshipType.withName(leg.arrivalCity + "_FLIGHT");
+                    inserter.createRelationship(departureAirportDay, legId, flight, null);
+                    inserter.createRelationship(legId, arrivalAirportDay, flight, null);
+
+                    if (!leg.departureCity.equals(leg.arrivalCity)) {
+                        double[] route = routes.computeIfAbsent(leg.departureCity + "-" + leg.arrivalCity, k -> new double[2]);
+                        route[0] += leg.distance;
+                        route[1]++;
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    // Same as step 7 of the README, FLIES_TO carries the average distance and number of flights
+    private void connectAirports() {
+        for (Map.Entry<String, double[]> route : routes.entrySet()) {
+            HashMap<String, Object> properties = new HashMap<>();
+            properties.put("distance", route.getValue()[0] / route.getValue()[1]);
+            properties.put("flights", (long) route.getValue()[1]);
+            inserter.createRelationship(airport(route.getKey().substring(0, 3)), airport(route.getKey().substring(4)),
+                    RelationshipTypes.FLIES_TO, properties);
+        }
+    }
+
+    private long airportDay(String code, String key) {
+        Long airportDay = airportDays.get(key);
+        if (airportDay == null) {
+            airportDay = inserter.createNode(Collections.singletonMap("key", key), Labels.AirportDay);
+            inserter.createRelationship(airport(code), airportDay, RelationshipTypes.HAS_DAY, null);
+            airportDays.put(key, airportDay);
+        }
+        return airportDay;
+    }
+
+    private long airport(String code) {
+        Long airport = airports.get(code);
+        if (airport == null) {
+            airport = inserter.createNode(Collections.singletonMap("code", code), Labels.Airport);
+            airports.put(code, airport);
+        }
+        return airport;
+    }
+}
@@ -0,0 +1,146 @@
+package com.maxdemarzi;
+
+import org.neo4j.graphdb.*;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+import org.neo4j.kernel.impl.logging.LogService;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+import org.neo4j.logging.Log;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Keeps the route and Leg caches in step with the FLIES_TO relationships and Legs, whoever changes them. The routes and
+// Legs a transaction could have changed are worked out before it commits, while it can still see its own changes, and
+// only forgotten once it has committed, so a search running alongside can't load the old ones back in between.
+// The precomputed route table is brought up to date on a thread of its own, until then those departures are traversed.
+final class CacheInvalidation {
+    private static final Set<GraphDatabaseService> watched = Collections.newSetFromMap(new WeakHashMap<>());
+    private static final ExecutorService refresher = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "route-table-refresh");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private CacheInvalidation() {
+    }
+
+    static synchronized void watch(GraphDatabaseAPI db) {
+        if (!watched.add(db)) {
+            return;
+        }
+        Log log = db.getDependencyResolver().resolveDependency(LogService.class).getUserLog(CacheInvalidation.class);
+        db.registerTransactionEventHandler(new TransactionEventHandler.Adapter<Changes>() {
+            @Override
+            public Changes beforeCommit(TransactionData data) throws Exception {
+                Set<String> changed = changedFliesTo(data);
+                return new Changes(changed.isEmpty() ? changed : FliesTo.affectedRoutes(db, changed), changedLegs(data));
+            }
+
+            @Override
+            public void afterCommit(TransactionData data, Changes changes) {
+                if (changes == null) {
+                    return;
+                }
+                if (!changes.legs.isEmpty()) {
+                    LegCache.of(db).invalidate(changes.legs);
+                }
+                if (changes.routes == FliesTo.EVERY_ROUTE) {
+                    Set<String> departures = RouteTable.of(db).departures();
+                    RouteTable.of(db).forget(departures);
+                    RouteCache.of(db).clear();
+                    refresh(db, log, departures);
+                    return;
+                }
+                if (changes.routes.isEmpty()) {
+                    return;
+                }
+                Set<String> affected = changes.routes;
+                Set<String> departures = new HashSet<>();
+                for (String key : affected) {
+                    departures.add(key.substring(0, 3));
+                }
+                RouteTable.of(db).forget(departures);
+                RouteCache.of(db).invalidate(affected);
+                refresh(db, log, departures);
+            }
+        });
+    }
+
+    private static void refresh(GraphDatabaseAPI db, Log log, Set<String> departures) {
+        if (departures.isEmpty()) {
+            return;
+        }
+        refresher.submit(() -> {
+            try (Transaction tx = db.beginTx()) {
+                RouteTable.of(db).refresh(db, departures);
+                tx.success();
+            } catch (Exception e) {
+                log.error("Could not refresh the route table for " + departures + ", they are traversed instead", e);
+            }
+        });
+    }
+
+    private static final class Changes {
+        final Set<String> routes;
+        final Set<Long> legs;
+
+        Changes(Set<String> routes, Set<Long> legs) {
+            this.routes = routes;
+            this.legs = legs;
+        }
+    }
+
+    // The ids of the Legs that were retimed or deleted, a deleted node's id may come back as a new Leg
+    private static Set<Long> changedLegs(TransactionData data) {
+        Set<Long> changed = new HashSet<>();
+        for (PropertyEntry<Node> property : data.assignedNodeProperties()) {
+            addLeg(data, property, changed);
+        }
+        for (PropertyEntry<Node> property : data.removedNodeProperties()) {
+            addLeg(data, property, changed);
+        }
+        for (Node node : data.deletedNodes()) {
+            changed.add(node.getId());
+        }
+        return changed;
+    }
+
+    private static void addLeg(TransactionData data, PropertyEntry<Node> property, Set<Long> changed) {
+        if (Timetable.isLegProperty(data, property)) {
+            changed.add(property.entity().getId());
+        }
+    }
+
+    // The "AAA-BBB" airport pairs whose FLIES_TO relationship was created, deleted or changed
+    private static Set<String> changedFliesTo(TransactionData data) {
+        Set<String> changed = new HashSet<>();
+        for (Relationship relationship : data.createdRelationships()) {
+            addPair(data, relationship, changed);
+        }
+        for (Relationship relationship : data.deletedRelationships()) {
+            addPair(data, relationship, changed);
+        }
+        for (PropertyEntry<Relationship> property : data.assignedRelationshipProperties()) {
+            addPair(data, property.entity(), changed);
+        }
+        for (PropertyEntry<Relationship> property : data.removedRelationshipProperties()) {
+            addPair(data, property.entity(), changed);
+        }
+        return changed;
+    }
+
+    private static void addPair(TransactionData data, Relationship relationship, Set<String> changed) {
+        if (!relationship.isType(RelationshipTypes.FLIES_TO)) {
+            return;
+        }
+        Node departure = relationship.getStartNode();
+        Node arrival = relationship.getEndNode();
+        if (!data.isDeleted(departure) && !data.isDeleted(arrival)
+                && departure.hasProperty("code") && arrival.hasProperty("code")) {
+            changed.add(departure.getProperty("code") + "-" + arrival.getProperty("code"));
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.maxdemarzi;
+
+// When one flight search call has to be done by, shared by everything working on it: the scheduler, the pair
+// searches on the worker pool, the expanders and the timetable engines. Reading the clock on every expansion costs
+// more than the expansion itself, so the hot loops only look at it every CHECK_EVERY steps and otherwise read the
+// flag set by whoever saw the time run out first.
+// Work is only ever dropped after expired said so, which is how we know the answer may be missing itineraries.
+final class Deadline {
+    static final int CHECK_EVERY = 64;
+
+    private final long stopTime;
+    private volatile boolean truncated;
+
+    private Deadline(long stopTime) {
+        this.stopTime = stopTime;
+    }
+
+    // Done within timeLimit ms from now
+    static Deadline after(long timeLimit) {
+        return new Deadline(System.currentTimeMillis() + timeLimit);
+    }
+
+    long stopTime() {
+        return stopTime;
+    }
+
+    // Milliseconds left, never negative
+    long remaining() {
+        return Math.max(0, stopTime - System.currentTimeMillis());
+    }
+
+    // Whether the time is up, asked before starting more work, which the caller then drops
+    boolean expired() {
+        if (truncated) {
+            return true;
+        }
+        if (System.currentTimeMillis() >= stopTime) {
+            truncated = true;
+        }
+        return truncated;
+    }
+
+    // The same for a loop at this step, the clock is only read every CHECK_EVERY steps
+    boolean expired(long step) {
+        return truncated || (step % CHECK_EVERY == 0 && expired());
+    }
+
+    // Whether any work was dropped because the time ran out
+    boolean truncated() {
+        return truncated;
+    }
+}
@@ -0,0 +1,127 @@
+package com.maxdemarzi;
+
+import org.neo4j.graphdb.*;
+
+import java.util.*;
+
+// Keeps the FLIES_TO relationships in step with the legs as they are imported or removed,
+// instead of rebuilding all of them from every Leg in the graph.
+final class FliesTo {
+
+    // Past this many changed pairs, as in a bulk import, working out the routes they touch costs more than
+    // starting over on every route
+    static final int MAX_CHANGED_PAIRS = 100;
+
+    // What affectedRoutes answers when every route has to be worked out again
+    static final Set<String> EVERY_ROUTE = Collections.unmodifiableSet(new HashSet<>());
+
+    // Change in total distance and number of flights for each "AAA-BBB" airport pair
+    private final HashMap<String, double[]> changes = new HashMap<>();
+
+    void added(String departureCode, String arrivalCode, int distance) {
+        change(departureCode, arrivalCode, distance, 1);
+    }
+
+    void removed(String departureCode, String arrivalCode, int distance) {
+        change(departureCode, arrivalCode, -distance, -1);
+    }
+
+    private void change(String departureCode, String arrivalCode, int distance, int flights) {
+        if (!departureCode.equals(arrivalCode)) {
+            double[] change = changes.computeIfAbsent(departureCode + "-" + arrivalCode, k -> new double[2]);
+            change[0] += distance;
+            change[1] += flights;
+        }
+    }
+
+    boolean isEmpty() {
+        return changes.isEmpty();
+    }
+
+    // Write the changes into the FLIES_TO relationships as part of the caller's transaction.
+    // FLIES_TO keeps the average distance of the flights and how many there are.
+    // Returns the "AAA-BBB" pairs whose FLIES_TO relationship changed.
+    Set<String> apply(GraphDatabaseService db) {
+        Set<String> changed = new HashSet<>(changes.keySet());
+        for (Map.Entry<String, double[]> entry : changes.entrySet()) {
+            Node departure = db.findNode(Labels.Airport, "code", entry.getKey().substring(0, 3));
+            Node arrival = db.findNode(Labels.Airport, "code", entry.getKey().substring(4, 7));
+            if (departure == null || arrival == null) {
+                continue;
+            }
+
+            Relationship fliesTo = null;
+            for (Relationship relationship : departure.getRelationships(Direction.OUTGOING, RelationshipTypes.FLIES_TO)) {
+                if (relationship.getEndNode().equals(arrival)) {
+                    fliesTo = relationship;
+                    break;
+                }
+            }
+
+            double distance = 0;
+            long flights = 0;
+            if (fliesTo != null) {
+                distance = ((Number) fliesTo.getProperty("distance", 0D)).doubleValue();
+                flights = ((Number) fliesTo.getProperty("flights", 0L)).longValue();
+            }
+
+            long total = flights + (long) entry.getValue()[1];
+            if (total <= 0) {
+                if (fliesTo != null) {
+                    fliesTo.delete();
+                }
+                continue;
+            }
+
+            if (fliesTo == null) {
+                fliesTo = departure.createRelationshipTo(arrival, RelationshipTypes.FLIES_TO);
+            }
+            fliesTo.setProperty("distance", (distance * flights + entry.getValue()[0]) / total);
+            fliesTo.setProperty("flights", total);
+        }
+        changes.clear();
+        return changed;
+    }
+
+    // The "AAA-BBB" route templates that could use one of the changed FLIES_TO relationships.
+    // A route has at most 3 hops, so it can only start within 2 hops before the change and end within 2 hops after it.
+    // Returns EVERY_ROUTE when more than MAX_CHANGED_PAIRS changed.
+    static Set<String> affectedRoutes(GraphDatabaseService db, Set<String> changed) {
+        if (changed.size() > MAX_CHANGED_PAIRS) {
+            return EVERY_ROUTE;
+        }
+
+        Set<String> affected = new HashSet<>();
+        for (String pair : changed) {
+            Map<String, Integer> before = reachable(db, pair.substring(0, 3), Direction.INCOMING);
+            Map<String, Integer> after = reachable(db, pair.substring(4, 7), Direction.OUTGOING);
+            for (Map.Entry<String, Integer> departure : before.entrySet()) {
+                for (Map.Entry<String, Integer> arrival : after.entrySet()) {
+                    if (departure.getValue() + arrival.getValue() <= 2 && !departure.getKey().equals(arrival.getKey())) {
+                        affected.add(departure.getKey() + "-" + arrival.getKey());
+                    }
+                }
+            }
+        }
+        return affected;
+    }
+
+    // Airports within 2 FLIES_TO hops of this one and how many hops away they are
+    private static Map<String, Integer> reachable(GraphDatabaseService db, String code, Direction direction) {
+        HashMap<String, Integer> hops = new HashMap<>();
+        hops.put(code, 0);
+        Node airport = db.findNode(Labels.Airport, "code", code);
+        if (airport == null) {
+            return hops;
+        }
+
+        for (Relationship first : airport.getRelationships(direction, RelationshipTypes.FLIES_TO)) {
+            Node next = first.getOtherNode(airport);
+            hops.merge((String) next.getProperty("code"), 1, Math::min);
+            for (Relationship second : next.getRelationships(direction, RelationshipTypes.FLIES_TO)) {
+                hops.merge((String) second.getOtherNode(next).getProperty("code"), 2, Math::min);
+            }
+        }
+        return hops;
+    }
+}
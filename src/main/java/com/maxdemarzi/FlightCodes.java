@@ -0,0 +1,38 @@
+package com.maxdemarzi;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Interns flight codes like "AA-1234" to int ids so cached Legs can keep them in primitive arrays
+final class FlightCodes {
+    private static final ConcurrentHashMap<String, Integer> byCode = new ConcurrentHashMap<>();
+    private static volatile String[] codes = new String[1024];
+
+    private FlightCodes() {}
+
+    static int of(String code) {
+        Integer id = byCode.get(code);
+        return id != null ? id : intern(code);
+    }
+
+    static String code(int id) {
+        return codes[id];
+    }
+
+    private static synchronized int intern(String code) {
+        Integer id = byCode.get(code);
+        if (id != null) {
+            return id;
+        }
+
+        int next = byCode.size();
+        if (next == codes.length) {
+            codes = Arrays.copyOf(codes, next * 2);
+        }
+        codes[next] = code;
+
+        // Publish the mapping last, once the array can answer for the new id
+        byCode.put(code, next);
+        return next;
+    }
+}
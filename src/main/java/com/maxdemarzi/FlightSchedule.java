@@ -0,0 +1,121 @@
+package com.maxdemarzi;
+
+import org.apache.commons.csv.CSVRecord;
+
+import java.sql.Timestamp;
+import java.time.*;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// Turns a row of the flight schedule csv into the legs it flies on each of its days of operation
+final class FlightSchedule {
+
+    private FlightSchedule() {}
+
+    static List<LegRecord> legs(CSVRecord record) {
+        ArrayList<LegRecord> legs = new ArrayList<>();
+
+        // Airports
+        String departureCity = record.get("DepartureCity");
+        String arrivalCity = record.get("ArrivalCity");
+
+        // Legs and AirportDays
+        String airlineCode = record.get("AirlineCode");
+        String flightNumber = record.get("FlightNumber");
+        String variationDepartureTimeCode = record.get("VariationDepartureTimeCode");
+        String variationArrivalTimeCode = record.get("VariationArrivalTimeCode");
+
+        Integer variationDepartureTimeCodeOffset = Integer.parseInt(variationDepartureTimeCode);
+        Integer variationArrivalTimeCodeOffset = Integer.parseInt(variationArrivalTimeCode);
+
+        LocalTime departureLocalTime = localTime(record.get("DepartureTime"));
+        LocalTime arrivalLocalTime = localTime(record.get("ArrivalTime"));
+
+        ZoneOffset departureZoneOffset = zoneOffset(record.get("DepartureTimezone"));
+        ZoneOffset arrivalZoneOffset = zoneOffset(record.get("ArrivalTimezone"));
+
+        Set<Integer> daysOfOperation = new HashSet<>();
+        if (!record.get("DayOfOperationMonday").isEmpty()) { daysOfOperation.add(1); }
+        if (!record.get("DayOfOperationTuesday").isEmpty()) { daysOfOperation.add(2); }
+        if (!record.get("DayOfOperationWednesday").isEmpty()) { daysOfOperation.add(3); }
+        if (!record.get("DayOfOperationThursday").isEmpty()) { daysOfOperation.add(4); }
+        if (!record.get("DayOfOperationFriday").isEmpty()) { daysOfOperation.add(5); }
+        if (!record.get("DayOfOperationSaturday").isEmpty()) { daysOfOperation.add(6); }
+        if (!record.get("DayOfOperationSunday").isEmpty()) { daysOfOperation.add(7); }
+
+        LocalDate effectiveLocalDate = localDate(record.get("EffectiveDate"));
+        LocalDate discontinueLocalDate = localDate(record.get("DiscontinueDate"));
+
+        String code = airlineCode + "-" + flightNumber;
+        int distance = Integer.parseInt(record.get("FlightDistance"));
+
+        long daysBetween = ChronoUnit.DAYS.between(effectiveLocalDate, discontinueLocalDate);
+        for (int i = 0; i < daysBetween; i++) {
+            if (daysOfOperation.contains(effectiveLocalDate.plusDays(i).getDayOfWeek().getValue())) {
+
+                legs.add(leg(departureCity, arrivalCity, code,
+                        LocalDateTime.of(effectiveLocalDate.plusDays(i + variationDepartureTimeCodeOffset), departureLocalTime), departureZoneOffset,
+                        LocalDateTime.of(effectiveLocalDate.plusDays(i + variationArrivalTimeCodeOffset), arrivalLocalTime), arrivalZoneOffset,
+                        distance));
+            }
+        }
+        return legs;
+    }
+
+    // A single flight on a single day from a row of a schedule delta file, keyed by its code and departure Date
+    static LegRecord change(CSVRecord record) {
+        String departureCity = record.get("DepartureCity");
+        String arrivalCity = record.get("ArrivalCity");
+        LocalDate departureDate = localDate(record.get("Date"));
+        LocalDate arrivalDate = departureDate.plusDays(Integer.parseInt(record.get("VariationArrivalTimeCode")));
+
+        return leg(departureCity, arrivalCity, record.get("AirlineCode") + "-" + record.get("FlightNumber"),
+                LocalDateTime.of(departureDate, localTime(record.get("DepartureTime"))), zoneOffset(record.get("DepartureTimezone")),
+                LocalDateTime.of(arrivalDate, localTime(record.get("ArrivalTime"))), zoneOffset(record.get("ArrivalTimezone")),
+                Integer.parseInt(record.get("FlightDistance")));
+    }
+
+    private static LegRecord leg(String departureCity, String arrivalCity, String code,
+                                 LocalDateTime departureLocalDateTime, ZoneOffset departureZoneOffset,
+                                 LocalDateTime arrivalLocalDateTime, ZoneOffset arrivalZoneOffset, int distance) {
+        return new LegRecord(departureCity, arrivalCity, code,
+                epochSeconds(departureLocalDateTime, departureZoneOffset),
+                epochSeconds(arrivalLocalDateTime, arrivalZoneOffset),
+                departureLocalDateTime.toString(),
+                arrivalLocalDateTime.toString(),
+                departureCity + "-" + departureLocalDateTime.toLocalDate(),
+                arrivalCity + "-" + arrivalLocalDateTime.toLocalDate(),
+                distance);
+    }
+
+    // Times come in as hours and minutes, 1830 is 18:30
+    static LocalTime localTime(String time) {
+        String formatted = String.format("%04d", Integer.parseInt(time));
+        return LocalTime.of(
+                Integer.parseInt(formatted.substring(0, formatted.length() - 2)) % 24,
+                Integer.parseInt(formatted.substring(formatted.length() - 2, formatted.length())));
+    }
+
+    // Timezones come in as hours and minutes, -700 is UTC-07:00
+    static ZoneOffset zoneOffset(String timezone) {
+        String formatted = String.format("%+05d", Integer.parseInt(timezone));
+        return ZoneOffset.of(formatted.substring(0, 3) + ":" + formatted.substring(3, 5));
+    }
+
+    // Dates come in as month/day/two digit year
+    static LocalDate localDate(String date) {
+        String[] pieces = date.split("/");
+        return LocalDate.of(2000 + Integer.parseInt(pieces[2]),
+                Integer.parseInt(pieces[0]),
+                Integer.parseInt(pieces[1]));
+    }
+
+    static long epochSeconds(LocalDateTime localDateTime, ZoneOffset zoneOffset) {
+        OffsetDateTime dateTime = OffsetDateTime.of(localDateTime, zoneOffset);
+        Timestamp timestamp = Timestamp.valueOf(dateTime.atZoneSameInstant(ZoneId.of("Z")).toLocalDateTime());
+        return timestamp.getTime() / 1000;
+    }
+}
@@ -1,7 +1,5 @@
 package com.maxdemarzi;
 
-import com.github.benmanes.caffeine.cache.Caffeine;
-import com.github.benmanes.caffeine.cache.LoadingCache;
 import com.maxdemarzi.results.MapResult;
 import com.maxdemarzi.results.StringResult;
 import org.neo4j.graphalgo.GraphAlgoFactory;
@@ -9,16 +7,19 @@ import org.neo4j.graphalgo.PathFinder;
 import org.neo4j.graphalgo.WeightedPath;
 import org.neo4j.graphdb.*;
 import org.neo4j.graphdb.traversal.*;
-import org.neo4j.helpers.collection.Pair;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
 import org.neo4j.logging.Log;
 import org.neo4j.procedure.*;
 
+import java.io.IOException;
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
 import java.util.*;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
-import static com.maxdemarzi.Utilities.getMaxDistance;
-
 public class Flights {
 
     // This field declares that we need a GraphDatabaseService
@@ -26,8 +27,6 @@ public class Flights {
     @Context
     public GraphDatabaseService db;
 
-    private static GraphDatabaseService graph;
-
     // This gives us a log instance that outputs messages to the
     // standard log, normally found under `data/log/console.log`
     @Context
@@ -39,58 +38,61 @@ public class Flights {
     // The query will stop and return whatever results we have at the 2 second mark
     private static final Integer DEFAULT_TIME_LIMIT = 2000; // 2 Seconds
 
+    // A range search covers at most a month of days
+    private static final int MAX_RANGE_DAYS = 31;
+
     private static final BidirectionalFliesToExpander bidirectionalFliesToExpander = new BidirectionalFliesToExpander();
     private static final InitialBranchState.State<Double> ibs = new InitialBranchState.State<>(0.0, 0.0);
 
-    // Sort results by Score, Departure time, Distance and lastly the first flight code
-    private static final FlightComparator FLIGHT_COMPARATOR = new FlightComparator();
-
-    // Since Airports rarely stop having flights between each other, we will cache our first traversal.
-    // A cache hit can save us around 40-80ms of query time
-    private static final LoadingCache<String, ArrayList<HashMap<RelationshipType, Set<RelationshipType>>>> allowedCache = Caffeine.newBuilder()
-            .maximumSize(10_000)
-            .expireAfterWrite(1, TimeUnit.HOURS)
-            .refreshAfterWrite(1, TimeUnit.HOURS)
-            .build(Flights::allowedRels);
-
-    private static ArrayList<HashMap<RelationshipType, Set<RelationshipType>>> allowedRels(String key) {
-        // calculate valid Relationships
-        Node departureAirport = graph.findNode(Labels.Airport, "code", key.substring(0,3));
-        Node arrivalAirport = graph.findNode(Labels.Airport, "code", key.substring(4,7));
-        Double maxDistance = getMaxDistance(departureAirport, arrivalAirport);
-        return getValidPaths(departureAirport, arrivalAirport, maxDistance);
-    }
-
-    // As a further optimization we could cache all node property reads
-    // Leaving out for now, but you can create a general one like this or
-    // create multiple caches one for each property key you want to cache
-    private static final LoadingCache<Pair<Long, String>, Object> propertyCache = Caffeine.newBuilder()
-            .maximumSize(1_000_000)
-            .expireAfterWrite(1, TimeUnit.HOURS)
-            .refreshAfterWrite(1, TimeUnit.HOURS)
-            .build(Flights::getNodeProperty);
-
-    private static Object getNodeProperty(Pair<Long, String> key) {
-        return graph.getNodeById(key.first()).getProperty(key.other(), null);
-    }
-
+    // Multi airport searches can fan out their (departure day, arrival airport) pairs over these workers.
+    // The queue is bounded, once it fills up the calling thread runs the pair search itself.
+    private static final int SEARCH_THREADS = Runtime.getRuntime().availableProcessors();
+    private static final ExecutorService searchPool = new ThreadPoolExecutor(SEARCH_THREADS, SEARCH_THREADS,
+            60L, TimeUnit.SECONDS, new ArrayBlockingQueue<>(SEARCH_THREADS * 64), new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "flight-search-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            }, new ThreadPoolExecutor.CallerRunsPolicy());
 
     // For testing purposes and for major changes to the underlying data, clear the cache.
     @Description("com.maxdemarzi.clear_flight_cache() | Clear cached flight data")
     @Procedure(name = "com.maxdemarzi.clear_flight_cache", mode = Mode.SCHEMA)
     public Stream<StringResult> clearCache() {
-        allowedCache.invalidateAll();
-        propertyCache.invalidateAll();
+        GraphDatabaseAPI graph = Utilities.database(db);
+        RouteCache.of(graph).clear();
+        LegCache.of(graph).clear();
+        ResultCache.of(graph).clear();
         return Stream.of(new StringResult("Cache Cleared"));
     }
 
+    @Description("com.maxdemarzi.flights.metrics() | Timings, cache hit rates and time outs of the flight searches so far")
+    @Procedure(name = "com.maxdemarzi.flights.metrics", mode = Mode.READ)
+    public Stream<MapResult> metrics() {
+        GraphDatabaseAPI graph = Utilities.database(db);
+        Map<String, Object> metrics = SearchMetrics.snapshot();
+        metrics.put("route_cache", RouteCache.of(graph).stats());
+        metrics.put("result_cache", ResultCache.of(graph).stats());
+        metrics.put("admission", SearchScheduler.stats());
+        return Stream.of(new MapResult(metrics));
+    }
+
+    // New route templates make everything we cached from the old ones stale
+    static void clearRouteCache(GraphDatabaseAPI db) {
+        RouteCache.of(db).clear();
+    }
+
     // Simpler flight search procedure with sensible defaults
     @Description("com.maxdemarzi.flights() | Find Routes between Airports")
     @Procedure(name = "com.maxdemarzi.flights", mode = Mode.SCHEMA)
     public Stream<MapResult> simpleFlightSearch(@Name("from") List<String> from,
                                                 @Name("to") List<String> to,
-                                                @Name("day") String day) {
-        return flightSearch(from, to, day, DEFAULT_RECORD_LIMIT, DEFAULT_TIME_LIMIT);
+                                                @Name("day") String day) throws IOException {
+        return flightSearch(from, to, day, DEFAULT_RECORD_LIMIT, DEFAULT_TIME_LIMIT, Collections.emptyMap());
     }
 
     @Description("com.maxdemarzi.flightSearch() | Find Routes between Airports")
@@ -99,45 +101,514 @@ public class Flights {
                                           @Name("to") List<String> to,
                                           @Name("day") String day,
                                           @Name("recordLimit") Number recordLimit,
-                                          @Name("timeLimit") Number timeLimit) {
-        graph = db;
-        ArrayList<MapResult> results = new ArrayList<>();
+                                          @Name("timeLimit") Number timeLimit,
+                                          @Name(value = "options", defaultValue = "{}") Map<String, Object> options) throws IOException {
+        SearchOptions searchOptions = new SearchOptions(options);
+        if (searchOptions.explain) {
+            return explainFlightSearch(from, to, day, recordLimit.intValue(), timeLimit.intValue(), searchOptions);
+        }
+
+        // The time limit covers the whole call, from waiting for a slot to the last result built
+        long start = System.nanoTime();
+        Deadline deadline = Deadline.after(timeLimit.intValue());
+        SearchScheduler.Slot slot = SearchScheduler.admit(deadline);
+        try {
+            Stream<MapResult> results = cacheable(searchOptions)
+                    ? cachedSearch(from, to, day, recordLimit.intValue(), deadline, searchOptions)
+                    : search(from, to, day, recordLimit.intValue(), deadline, searchOptions);
+
+            // Streamed searches keep going while the client reads them, so they keep their slot until then.
+            // Only the others are done by now.
+            if (searchOptions.stream) {
+                return SearchScheduler.holding(slot, deadline, truncated(results, deadline));
+            }
+            SearchMetrics.search.record(SearchMetrics.micros(start));
+            slot.close();
+            return truncated(results, deadline);
+        } catch (IOException | RuntimeException e) {
+            slot.close();
+            throw e;
+        }
+    }
+
+    // The results of a search cut short by its deadline may be missing itineraries, each of them says so, and when
+    // it found none at all a single empty itinerary does. Streamed results are marked from the moment the search
+    // was cut, the ones read before that are not.
+    private static Stream<MapResult> truncated(Stream<MapResult> results, Deadline deadline) {
+        boolean[] found = new boolean[1];
+        Stream<MapResult> marked = results.map(result -> {
+            found[0] = true;
+            if (deadline.truncated()) {
+                result.value.put("truncated", true);
+            }
+            return result;
+        });
+        return Stream.concat(marked, Stream.of(deadline).flatMap(cut -> !found[0] && cut.truncated()
+                ? Stream.of(emptyTruncated()) : Stream.empty()));
+    }
+
+    private static MapResult emptyTruncated() {
+        Map<String, Object> result = new HashMap<>();
+        result.put("flights", new ArrayList<>());
+        result.put("truncated", true);
+        return new MapResult(result);
+    }
+
+    // Only finished graph searches are kept, the snapshot engines answer from a Timetable rebuilt behind our back
+    private static boolean cacheable(SearchOptions searchOptions) {
+        return SearchOptions.GRAPH.equals(searchOptions.engine) && !searchOptions.stream;
+    }
+
+    private Stream<MapResult> cachedSearch(List<String> from, List<String> to, String day, int recordLimit, Deadline deadline,
+                                           SearchOptions searchOptions) throws IOException {
+        return ResultCache.of(Utilities.database(db)).get(from, to, day, recordLimit, deadline, searchOptions,
+                () -> search(from, to, day, recordLimit, deadline, searchOptions).collect(Collectors.toList())).stream();
+    }
+
+    @Description("com.maxdemarzi.flightSearchRange() | Find the best Routes between Airports on each day from startDay to endDay")
+    @Procedure(name = "com.maxdemarzi.flightSearchRange", mode = Mode.SCHEMA)
+    public Stream<MapResult> flightSearchRange(@Name("from") List<String> from,
+                                               @Name("to") List<String> to,
+                                               @Name("startDay") String startDay,
+                                               @Name("endDay") String endDay,
+                                               @Name("recordLimit") Number recordLimit,
+                                               @Name("timeLimit") Number timeLimit,
+                                               @Name(value = "options", defaultValue = "{}") Map<String, Object> options) {
+        long start = System.nanoTime();
+        Deadline deadline = Deadline.after(timeLimit.intValue());
+        SearchOptions searchOptions = new SearchOptions(options);
+        searchOptions.requirePairSearch("range search");
+        List<String> days = getDays(startDay, endDay);
+        SearchScheduler.Slot slot = SearchScheduler.admit(deadline);
+        try {
+            Stream<MapResult> ranged = rangeSearch(from, to, days, recordLimit.intValue(), deadline, searchOptions);
+            SearchMetrics.search.record(SearchMetrics.micros(start));
+            return truncated(ranged, deadline);
+        } finally {
+            slot.close();
+        }
+    }
+
+    private Stream<MapResult> rangeSearch(List<String> from, List<String> to, List<String> days, int limit, Deadline deadline,
+                                          SearchOptions searchOptions) {
+        GraphDatabaseAPI graph = Utilities.database(db);
+        RouteCache routes = RouteCache.of(graph);
+        LegCache legs = LegCache.of(graph);
+        LinkedHashMap<String, TopPaths> results = new LinkedHashMap<>();
+        ArrayList<Future<?>> searches = new ArrayList<>();
+
+        try (Transaction tx = db.beginTx()) {
+            // Every day flies the same routes, so each route template is looked up once for the whole range
+            HashMap<String, RouteTemplate> templates = new HashMap<>();
+            for (String day : days) {
+                TopPaths dayResults = new TopPaths(limit, legs);
+                results.put(day, dayResults);
+
+                for (String fromKey : getAirportDayKeys(from, day)) {
+                    long lookup = System.nanoTime();
+                    Node departureAirportDay = db.findNode(Labels.AirportDay, "key", fromKey);
+                    SearchMetrics.airportDayLookup.record(SearchMetrics.micros(lookup));
+
+                    if (!(departureAirportDay == null)) {
+                        String departureCode = fromKey.substring(0, 3);
+                        for (String code : to) {
+                            RouteTemplate validRels = templates.computeIfAbsent(departureCode + "-" + code,
+                                    key -> routes.get(departureCode, code));
+                            if (!validRels.isEmpty()) {
+                                searches.add(searchPool.submit(new PairSearch(graph, departureAirportDay.getId(),
+                                        departureCode, code, validRels, searchOptions.maxLayover, limit, deadline, dayResults, legs)));
+                            }
+                        }
+                    }
+                }
+            }
+            tx.success();
+        }
+
+        await(searches, deadline, "Flight search failed for " + from + " to " + to + " from " + days.get(0) + " to " + days.get(days.size() - 1));
+
+        // The best results of each day in turn, each one telling which day it is for
+        ArrayList<MapResult> ranged = new ArrayList<>();
+        try (Transaction tx = db.beginTx()) {
+            for (Map.Entry<String, TopPaths> day : results.entrySet()) {
+                for (MapResult result : toResults(day.getValue(), searchOptions.projection, legs)) {
+                    result.value.put("day", day.getKey());
+                    ranged.add(result);
+                }
+            }
+            tx.success();
+        }
+        return ranged.stream();
+    }
+
+    // Every day from the first to the last, both included
+    private static List<String> getDays(String startDay, String endDay) {
+        LocalDate first = LocalDate.parse(startDay);
+        LocalDate last = LocalDate.parse(endDay);
+        if (last.isBefore(first) || ChronoUnit.DAYS.between(first, last) >= MAX_RANGE_DAYS) {
+            throw new IllegalArgumentException("A range is from 1 to " + MAX_RANGE_DAYS + " days, not from " + startDay + " to " + endDay);
+        }
+        ArrayList<String> days = new ArrayList<>();
+        for (LocalDate day = first; !day.isAfter(last); day = day.plusDays(1)) {
+            days.add(day.toString());
+        }
+        return days;
+    }
+
+    @Description("com.maxdemarzi.flightSearchBatch() | Find Routes for many searches in one call, each result tagged with the id of its search")
+    @Procedure(name = "com.maxdemarzi.flightSearchBatch", mode = Mode.SCHEMA)
+    public Stream<MapResult> flightSearchBatch(@Name("requests") List<Map<String, Object>> requests,
+                                               @Name("timeLimit") Number timeLimit,
+                                               @Name(value = "options", defaultValue = "{}") Map<String, Object> options) {
+        long start = System.nanoTime();
+        Deadline deadline = Deadline.after(timeLimit.intValue());
+        SearchOptions searchOptions = new SearchOptions(options);
+        searchOptions.requirePairSearch("batch search");
+        List<BatchRequest> batch = BatchRequest.of(requests);
+        SearchScheduler.Slot slot = SearchScheduler.admit(deadline);
+        try {
+            Stream<MapResult> results = batchSearch(batch, deadline, searchOptions);
+            SearchMetrics.batch.record(SearchMetrics.micros(start));
+            return results;
+        } finally {
+            slot.close();
+        }
+    }
+
+    // Requests flying the same (departure AirportDay, arrival Airport) pair share a single pair search, which keeps
+    // as many results as the largest limit asking for it, and each AirportDay and route template is looked up once.
+    // The pair searches all run on the worker pool under one deadline, then every request takes its best results
+    // from the pairs it covers.
+    private Stream<MapResult> batchSearch(List<BatchRequest> batch, Deadline deadline, SearchOptions searchOptions) {
+        GraphDatabaseAPI graph = Utilities.database(db);
+        RouteCache routes = RouteCache.of(graph);
+        LegCache legs = LegCache.of(graph);
+
+        // Departure AirportDay key to arrival airport code to the largest limit
+        LinkedHashMap<String, LinkedHashMap<String, Integer>> limits = new LinkedHashMap<>();
+        for (BatchRequest request : batch) {
+            for (String fromKey : getAirportDayKeys(request.from, request.day)) {
+                LinkedHashMap<String, Integer> arrivals = limits.computeIfAbsent(fromKey, key -> new LinkedHashMap<>());
+                for (String code : request.to) {
+                    arrivals.merge(code, request.limit, Math::max);
+                }
+            }
+        }
+
+        HashMap<String, HashMap<String, TopPaths>> pairs = new HashMap<>();
+        ArrayList<Future<?>> searches = new ArrayList<>();
+        try (Transaction tx = db.beginTx()) {
+            HashMap<String, RouteTemplate> templates = new HashMap<>();
+            for (Map.Entry<String, LinkedHashMap<String, Integer>> departure : limits.entrySet()) {
+                long lookup = System.nanoTime();
+                Node departureAirportDay = db.findNode(Labels.AirportDay, "key", departure.getKey());
+                SearchMetrics.airportDayLookup.record(SearchMetrics.micros(lookup));
+
+                if (!(departureAirportDay == null)) {
+                    String departureCode = departure.getKey().substring(0, 3);
+                    HashMap<String, TopPaths> arrivals = new HashMap<>();
+                    pairs.put(departure.getKey(), arrivals);
+                    for (Map.Entry<String, Integer> arrival : departure.getValue().entrySet()) {
+                        String code = arrival.getKey();
+                        RouteTemplate validRels = templates.computeIfAbsent(departureCode + "-" + code,
+                                key -> routes.get(departureCode, code));
+                        if (!validRels.isEmpty()) {
+                            TopPaths found = new TopPaths(arrival.getValue(), legs);
+                            arrivals.put(code, found);
+                            searches.add(searchPool.submit(new PairSearch(graph, departureAirportDay.getId(),
+                                    departureCode, code, validRels, searchOptions.maxLayover, arrival.getValue(), deadline, found, legs)));
+                        }
+                    }
+                }
+            }
+            tx.success();
+        }
+
+        await(searches, deadline, "Flight search failed for a batch of " + batch.size() + " requests");
+
+        // The best results of each request in turn, each one telling which request it is for
+        ArrayList<MapResult> tagged = new ArrayList<>();
+        try (Transaction tx = db.beginTx()) {
+            for (BatchRequest request : batch) {
+                TopPaths best = new TopPaths(request.limit, legs);
+                for (String fromKey : getAirportDayKeys(request.from, request.day)) {
+                    HashMap<String, TopPaths> arrivals = pairs.getOrDefault(fromKey, new HashMap<>());
+                    for (String code : request.to) {
+                        if (arrivals.containsKey(code)) {
+                            arrivals.get(code).sorted().forEach(best::offer);
+                        }
+                    }
+                }
+
+                ArrayList<MapResult> results = toResults(best, searchOptions.projection, legs);
+                if (results.isEmpty() && deadline.truncated()) {
+                    results.add(emptyTruncated());
+                }
+                for (MapResult result : results) {
+                    result.value.put("request", request.id);
+                    if (deadline.truncated()) {
+                        result.value.put("truncated", true);
+                    }
+                    tagged.add(result);
+                }
+            }
+            tx.success();
+        }
+        return tagged.stream();
+    }
+
+    private Stream<MapResult> search(List<String> from, List<String> to, String day, int recordLimit, Deadline deadline,
+                                     SearchOptions searchOptions) throws IOException {
+        GraphDatabaseAPI graph = Utilities.database(db);
+        if (!SearchOptions.GRAPH.equals(searchOptions.engine)) {
+            Timetable timetable = Timetable.of(graph);
+            if (timetable != null && SearchOptions.RAPTOR.equals(searchOptions.engine)) {
+                return raptorFlightSearch(timetable, RouteCache.of(graph), from, to, day, recordLimit, deadline, searchOptions.projection);
+            }
+            if (timetable != null) {
+                return timetableFlightSearch(timetable, RouteCache.of(graph), from, to, day, recordLimit, deadline, searchOptions.projection);
+            }
+            log.debug("No timetable snapshot yet, run com.maxdemarzi.timetable.build(). Searching the graph instead.");
+        }
+        if (searchOptions.stream) {
+            return streamingFlightSearch(from, to, day, recordLimit, deadline, searchOptions.projection);
+        }
+        if (searchOptions.parallel) {
+            return parallelFlightSearch(from, to, day, recordLimit, deadline, searchOptions);
+        }
+
+        RouteCache routes = RouteCache.of(graph);
+        LegCache legs = LegCache.of(graph);
+        TopPaths results = new TopPaths(recordLimit, legs);
 
         try (Transaction tx = db.beginTx()) {
             for (String fromKey : getAirportDayKeys(from, day)) {
+                long lookup = System.nanoTime();
                 Node departureAirport = db.findNode(Labels.Airport, "code", fromKey.substring(0,3));
                 Node departureAirportDay = db.findNode(Labels.AirportDay, "key", fromKey);
+                SearchMetrics.airportDayLookup.record(SearchMetrics.micros(lookup));
 
                 if (!(departureAirportDay == null)) {
                     for (String toKey : getAirportDayKeys(to, day)) {
+                        // Pairs left when the time is up are not searched at all, nor are their routes looked up
+                        if (deadline.expired()) {
+                            SearchMetrics.timedOut.increment();
+                            continue;
+                        }
+
+                        lookup = System.nanoTime();
                         Node arrivalAirport = db.findNode(Labels.Airport, "code", toKey.substring(0,3));
-                        Double maxDistance = getMaxDistance(departureAirport, arrivalAirport);
+                        SearchMetrics.airportDayLookup.record(SearchMetrics.micros(lookup));
 
                         // Get Valid Traversals from Each Departure Airport at each step along the valid paths
-                        ArrayList<HashMap<RelationshipType, Set<RelationshipType>>> validRels = allowedCache.get(fromKey.substring(0,3) + "-" + toKey.substring(0,3));
+                        RouteTemplate validRels = routes.get(fromKey.substring(0,3), toKey.substring(0,3));
 
                         // If we found valid paths from departure airport to destination airport
                         if ( !validRels.isEmpty()) {
                             // Prepare and run the second traversal
-                            PathRestrictedExpander pathRestrictedExpander = new PathRestrictedExpander(toKey.substring(0, 3), timeLimit.intValue(), validRels);
+                            PathRestrictedExpander pathRestrictedExpander = new PathRestrictedExpander(fromKey.substring(0, 3), toKey.substring(0, 3), deadline, validRels, legs,
+                                    searchOptions.maxLayover);
 
                             // The cost is the distance traveled
-                            RouteCostEvaluator routeCostEvaluator = new RouteCostEvaluator();
+                            RouteCostEvaluator routeCostEvaluator = new RouteCostEvaluator(legs);
 
                             // Create the custom dijkstra using the path restricted expander to limit our search to only valid paths
-                            PathFinder<WeightedPath> dijkstra = GraphAlgoFactory.dijkstra(pathRestrictedExpander, routeCostEvaluator, recordLimit.intValue());
-                            secondTraversal(results, recordLimit.intValue(), departureAirportDay, arrivalAirport, maxDistance, dijkstra);
+                            PathFinder<WeightedPath> dijkstra = GraphAlgoFactory.dijkstra(pathRestrictedExpander, routeCostEvaluator, recordLimit);
+                            secondTraversal(results, departureAirportDay, arrivalAirport, dijkstra);
+                            pathRestrictedExpander.record();
                         } else {
                             log.debug("No valid paths found for " + from + " to " + to + " on " + day);
                         }
                     }
                 }
             }
+
+            // The kept paths are read while we are still in the transaction that found them
+            ArrayList<MapResult> sorted = toResults(results, searchOptions.projection, legs);
+            tx.success();
+            return sorted.stream();
+        }
+    }
+
+    // Every (departure AirportDay, arrival Airport) pair is scanned from the snapshot, sharing one set of best results
+    private Stream<MapResult> timetableFlightSearch(Timetable timetable, RouteCache routes, List<String> from, List<String> to, String day,
+                                                    int recordLimit, Deadline deadline, Projection projection) {
+        TimetableSearch search = new TimetableSearch(timetable, routes, recordLimit, deadline, projection);
+        for (String fromKey : getAirportDayKeys(from, day)) {
+            for (String code : to) {
+                search.search(fromKey, code);
+            }
+        }
+        return search.results().stream();
+    }
+
+    // All the (departure AirportDay, arrival Airport) pairs are searched together one round of connections at a time
+    private Stream<MapResult> raptorFlightSearch(Timetable timetable, RouteCache routes, List<String> from, List<String> to, String day,
+                                                 int recordLimit, Deadline deadline, Projection projection) {
+        RaptorSearch search = new RaptorSearch(timetable, routes, recordLimit, deadline, projection);
+        for (String fromKey : getAirportDayKeys(from, day)) {
+            for (String code : to) {
+                search.add(fromKey, code);
+            }
+        }
+        return search.results().stream();
+    }
+
+    // All the (departure AirportDay, arrival Airport) pairs are searched together one leg count at a time,
+    // the search only runs as far as the client reads the results
+    private Stream<MapResult> streamingFlightSearch(List<String> from, List<String> to, String day, int recordLimit, Deadline deadline,
+                                                    Projection projection) {
+        GraphDatabaseAPI graph = Utilities.database(db);
+        StreamingSearch search = new StreamingSearch(graph, RouteCache.of(graph), LegCache.of(graph), recordLimit, deadline, projection);
+
+        try (Transaction tx = db.beginTx()) {
+            for (String fromKey : getAirportDayKeys(from, day)) {
+                Node departureAirportDay = db.findNode(Labels.AirportDay, "key", fromKey);
+
+                if (!(departureAirportDay == null)) {
+                    for (String code : to) {
+                        search.add(departureAirportDay, fromKey.substring(0, 3), code);
+                    }
+                }
+            }
+            tx.success();
+        }
+        return search.stream();
+    }
+
+    // Every (departure AirportDay, arrival Airport) pair is searched on the worker pool in its own transaction.
+    // They all share one deadline and merge into a single bounded set of the best results.
+    private Stream<MapResult> parallelFlightSearch(List<String> from, List<String> to, String day, int recordLimit, Deadline deadline,
+                                                   SearchOptions searchOptions) {
+        GraphDatabaseAPI graph = Utilities.database(db);
+        RouteCache routes = RouteCache.of(graph);
+        LegCache legs = LegCache.of(graph);
+        TopPaths results = new TopPaths(recordLimit, legs);
+        ArrayList<Future<?>> searches = new ArrayList<>();
+
+        try (Transaction tx = db.beginTx()) {
+            for (String fromKey : getAirportDayKeys(from, day)) {
+                long lookup = System.nanoTime();
+                Node departureAirportDay = db.findNode(Labels.AirportDay, "key", fromKey);
+                SearchMetrics.airportDayLookup.record(SearchMetrics.micros(lookup));
+
+                if (!(departureAirportDay == null)) {
+                    for (String code : to) {
+                        String departureCode = fromKey.substring(0, 3);
+                        RouteTemplate validRels = routes.get(departureCode, code);
+                        if (!validRels.isEmpty()) {
+                            searches.add(searchPool.submit(new PairSearch(graph, departureAirportDay.getId(),
+                                    departureCode, code, validRels, searchOptions.maxLayover, recordLimit, deadline, results, legs)));
+                        }
+                    }
+                }
+            }
+            tx.success();
+        }
+
+        await(searches, deadline, "Flight search failed for " + from + " to " + to + " on " + day);
+
+        try (Transaction tx = db.beginTx()) {
+            ArrayList<MapResult> sorted = toResults(results, searchOptions.projection, legs);
+            tx.success();
+            return sorted.stream();
+        }
+    }
+
+    // Wait for the pair searches until the deadline, whatever has not started by then is skipped
+    private void await(ArrayList<Future<?>> searches, Deadline deadline, String failure) {
+        for (Future<?> search : searches) {
+            try {
+                search.get(deadline.remaining(), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                // Whatever is still queued or running is dropped
+                deadline.expired();
+                searches.forEach(s -> s.cancel(false));
+                break;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException e) {
+                log.error(failure, e.getCause());
+            }
+        }
+    }
+
+    // Instead of itineraries, tell how the graph search of each (departure AirportDay, arrival Airport) pair went:
+    // its route template, the Legs expanded and pruned by the minimum connect time at each hop and the time per stage
+    private Stream<MapResult> explainFlightSearch(List<String> from, List<String> to, String day, int recordLimit, int timeLimit,
+                                                  SearchOptions searchOptions) {
+        ArrayList<MapResult> explained = new ArrayList<>();
+        GraphDatabaseAPI graph = Utilities.database(db);
+        RouteCache routes = RouteCache.of(graph);
+        LegCache legs = LegCache.of(graph);
+
+        try (Transaction tx = db.beginTx()) {
+            for (String fromKey : getAirportDayKeys(from, day)) {
+                for (String code : to) {
+                    explained.add(explain(fromKey, code, recordLimit, timeLimit, searchOptions, routes, legs));
+                }
+            }
             tx.success();
         }
-        // Order the flights by # of hops, departure time, distance and the first flight code if all else is equal
-        results.sort(FLIGHT_COMPARATOR);
-        return results.stream();
+        return explained.stream();
+    }
+
+    private MapResult explain(String fromKey, String arrivalCode, int recordLimit, int timeLimit, SearchOptions searchOptions,
+                              RouteCache routes, LegCache legs) {
+        String departureCode = fromKey.substring(0, 3);
+        Map<String, Object> explained = new LinkedHashMap<>();
+        Map<String, Object> stages = new LinkedHashMap<>();
+        explained.put("from", departureCode);
+        explained.put("to", arrivalCode);
+        explained.put("day", fromKey.substring(4));
+
+        long start = System.nanoTime();
+        Node departureAirportDay = db.findNode(Labels.AirportDay, "key", fromKey);
+        Node arrivalAirport = db.findNode(Labels.Airport, "code", arrivalCode);
+        stages.put("airport_day_lookup", millis(start));
+
+        start = System.nanoTime();
+        boolean cached = routes.contains(departureCode, arrivalCode);
+        RouteTemplate validRels = departureAirportDay == null || arrivalAirport == null ? RouteTemplate.EMPTY
+                : routes.get(departureCode, arrivalCode);
+        stages.put("route_template", millis(start));
+        explained.put("route_template_cached", cached);
+        explained.put("route_template", validRels.describe());
+
+        TopPaths results = new TopPaths(recordLimit, legs);
+        if (!validRels.isEmpty()) {
+            PathRestrictedExpander pathRestrictedExpander = new PathRestrictedExpander(departureCode, arrivalCode, Deadline.after(timeLimit), validRels, legs, searchOptions.maxLayover);
+            ProfilingExpander profile = new ProfilingExpander(pathRestrictedExpander);
+            PathFinder<WeightedPath> dijkstra = GraphAlgoFactory.dijkstra(profile, new RouteCostEvaluator(legs), recordLimit);
+
+            start = System.nanoTime();
+            for (org.neo4j.graphdb.Path position : dijkstra.findAllPaths(departureAirportDay, arrivalAirport)) {
+                results.offer(position);
+            }
+            stages.put("expansion", millis(start));
+
+            start = System.nanoTime();
+            ArrayList<org.neo4j.graphdb.Path> sorted = results.sorted();
+            stages.put("sort", millis(start));
+
+            start = System.nanoTime();
+            for (org.neo4j.graphdb.Path position : sorted) {
+                searchOptions.projection.toResult(position, legs);
+            }
+            stages.put("materialization", millis(start));
+
+            explained.put("expanded", profile.expanded(validRels.hops()));
+            explained.put("pruned_by_connect_time", profile.pruned(validRels.hops()));
+            explained.put("timed_out", profile.timedOut());
+        }
+        explained.put("results", results.size());
+        explained.put("stages_ms", stages);
+        return new MapResult(explained);
+    }
+
+    private static double millis(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1_000_000.0;
     }
 
     // Return a list of valid relationship types to traverse from each airport at each step in the traversal
@@ -145,18 +616,18 @@ public class Flights {
     // A smarter approach would have returned rel-types allowed from an airport anywhere along the path,
     // but one again that would have allowed invalid routes
     // This version only allows rel-types from an airport at a step in the traversal, limiting us to only valid paths
-    private static ArrayList<HashMap<RelationshipType, Set<RelationshipType>>> getValidPaths(Node departureAirport, Node arrivalAirport, Double maxDistance) {
-        ArrayList<HashMap<RelationshipType, Set<RelationshipType>>> validRels = new ArrayList<>();
+    static RouteTemplate getValidPaths(GraphDatabaseService db, Node departureAirport, Node arrivalAirport, Double maxDistance) {
+        RouteTemplate.Builder validRels = new RouteTemplate.Builder();
 
         // Traverse just the Airport to Airport  FLIES_TO relationships to get possible routes for second traversal
-        TraversalDescription td = graph.traversalDescription()
+        TraversalDescription td = db.traversalDescription()
                 .breadthFirst()
                 .expand(bidirectionalFliesToExpander, ibs)
                 .uniqueness(Uniqueness.NODE_PATH)
                 .evaluator(Evaluators.toDepth(2));
 
         // Since we know the start and end of the path, we can make use of a fast bidirectional traverser
-        BidirectionalTraversalDescription bidirtd = graph.bidirectionalTraversalDescription()
+        BidirectionalTraversalDescription bidirtd = db.bidirectionalTraversalDescription()
                 .mirroredSides(td)
                 .collisionEvaluator(new CollisionEvaluator());
 
@@ -166,70 +637,42 @@ public class Flights {
                 distance += (Double) relationship.getProperty("distance", 25000D);
             }
 
-            // Yes this is a bit crazy to follow but it does the job
+            // Keep the airports along each route short enough to fly, the template compiles them per hop
             if (distance < maxDistance){
-                String code;
-                RelationshipType relationshipType = null;
+                int[] airports = new int[route.length() + 1];
                 int count = 0;
                 for (Node node : route.nodes()) {
-                    if (relationshipType == null) {
-                        code = (String)node.getProperty("code");
-                        relationshipType = RelationshipType.withName(code + "_FLIGHT");
-                    } else {
-                        HashMap<RelationshipType, Set<RelationshipType>> validAt;
-                        if (validRels.size() <= count) {
-                            validAt = new HashMap<>();
-                        } else {
-                            validAt = validRels.get(count);
-                        }
-                        Set<RelationshipType> valid = validAt.getOrDefault(relationshipType, new HashSet<>());
-                        String newcode = (String)node.getProperty("code");
-                            RelationshipType newRelationshipType = RelationshipType.withName(newcode + "_FLIGHT");
-                            valid.add(newRelationshipType);
-                            validAt.put(relationshipType, valid);
-                            if (validRels.size() <= count) {
-                                validRels.add(count, validAt);
-                            } else {
-                                validRels.set(count, validAt);
-                            }
-                            relationshipType = newRelationshipType;
-                            count++;
-                    }
+                    airports[count++] = AirportIds.of((String)node.getProperty("code"));
                 }
+                validRels.add(airports);
             }
-        } return validRels;
+        }
+        return validRels.build();
     }
 
-    // Each path found is a valid set of flights,
-    private void secondTraversal(ArrayList<MapResult> results, Integer recordLimit, Node departureAirportDay, Node arrivalAirport, Double maxDistance, PathFinder<WeightedPath> dijkstra) {
+    // Each path found is a valid set of flights, competing for the recordLimit places with those of the other pairs
+    private void secondTraversal(TopPaths results, Node departureAirportDay, Node arrivalAirport, PathFinder<WeightedPath> dijkstra) {
+        long start = System.nanoTime();
         for (org.neo4j.graphdb.Path position : dijkstra.findAllPaths(departureAirportDay, arrivalAirport)) {
-            if(results.size() < recordLimit) {
-                HashMap<String, Object> result = new HashMap<>();
-                ArrayList<Map> flights = new ArrayList<>();
-                Double distance = 0D;
-                ArrayList<Node> nodes =  new ArrayList<>();
-                for (Node node : position.nodes()) {
-                    nodes.add(node);
-                }
-
-                for (int i = 1; i < nodes.size() - 1; i+=2) {
-                    Map<String, Object> flightInfo = nodes.get(i).getAllProperties();
-                    flightInfo.put("origin", ((String)nodes.get(i-1).getProperty("key")).substring(0,3));
-                    flightInfo.put("destination", ((String)nodes.get(i+1).getProperty("key")).substring(0,3));
-                    // These are the epoch time date fields we are removing
-                    // flight should have departs_at and arrives_at with human readable date times (ex: 2016-04-28T18:30)
-                    flightInfo.remove("departs");
-                    flightInfo.remove("arrives");
-                    flights.add(flightInfo);
-                    distance += ((Number) nodes.get(i).getProperty("distance", 0)).doubleValue();
-                }
+            results.offer(position);
+        }
+        SearchMetrics.expansion.record(SearchMetrics.micros(start));
+    }
 
-                result.put("flights", flights);
-                result.put("score", position.length() - 2);
-                result.put("distance", distance.intValue());
-                results.add(new MapResult(result));
-            }
+    // Order the flights by # of hops, departure time, distance and the first flight code if all else is equal,
+    // only the paths that made it become results
+    static ArrayList<MapResult> toResults(TopPaths paths, Projection projection, LegCache legs) {
+        long sort = System.nanoTime();
+        ArrayList<org.neo4j.graphdb.Path> sorted = paths.sorted();
+        SearchMetrics.sort.record(SearchMetrics.micros(sort));
+
+        long materialize = System.nanoTime();
+        ArrayList<MapResult> results = new ArrayList<>(sorted.size());
+        for (org.neo4j.graphdb.Path position : sorted) {
+            results.add(projection.toResult(position, legs));
         }
+        SearchMetrics.materialization.record(SearchMetrics.micros(materialize));
+        return results;
     }
 
     // Combine the Airport Codes and days into keys to find the AirportDays quickly
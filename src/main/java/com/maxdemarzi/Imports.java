@@ -1,11 +1,10 @@
 package com.maxdemarzi;
 
+import com.maxdemarzi.results.MapResult;
 import com.maxdemarzi.results.StringResult;
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVRecord;
-import org.neo4j.graphdb.Node;
-import org.neo4j.graphdb.RelationshipType;
-import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.*;
 import org.neo4j.kernel.internal.GraphDatabaseAPI;
 import org.neo4j.logging.Log;
 import org.neo4j.procedure.*;
@@ -13,12 +12,12 @@ import org.neo4j.procedure.*;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.Reader;
-import java.sql.Timestamp;
-import java.time.*;
-import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Stream;
 
@@ -32,6 +31,9 @@ public class Imports {
 
     private static final int TRANSACTION_LIMIT = 1000;
 
+    // Legs are written in their own transactions, each one committing this many of them
+    private static final int LEG_TRANSACTION_LIMIT = 5_000;
+
     @Description("com.maxdemarzi.import.airports(file) | Import Airports")
     @Procedure(name = "com.maxdemarzi.import.airports", mode = Mode.WRITE)
 
@@ -84,152 +86,270 @@ public class Imports {
 
     public Stream<StringResult> importFlights(@Name("file") String file) throws IOException {
         long start = System.nanoTime();
+        CacheInvalidation.watch(db);
+
+        // Rows are read and expanded into their legs on other threads, and the legs are written on one more.
+        // A procedure cannot commit the caller's transaction, so batches begun on this thread would all end up in
+        // it, and finding nodes gets slower with every one a transaction has added.
+        // Each batch commits on its own, so a failure keeps the batches written before it.
+        ExecutorService writer = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "flight-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try (SchedulePipeline schedules = new SchedulePipeline("/" + file)) {
+            int count = writer.submit(() -> importFlights(schedules)).get();
+            long timeTaken = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start);
+
+            return Stream.of(new StringResult(count + " Flights imported in " + timeTaken + " Seconds"));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted importing the flight schedule", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Could not import the flight schedule", e.getCause());
+        } finally {
+            writer.shutdownNow();
+        }
+    }
+
+    private int importFlights(SchedulePipeline schedules) {
+        // Remember the nodes we have already found or created so each one is looked up once per import
+        HashMap<String, Long> airports = new HashMap<>();
+        HashMap<String, Long> airportDays = new HashMap<>();
+
+        // FLIES_TO is updated along with each batch of legs, the routes that could use them are refreshed once it commits
+        FliesTo fliesTo = new FliesTo();
+
+        Transaction tx = db.beginTx();
+        int count = 0;
+        int legs = 0;
+        try {
+
+            for (List<LegRecord> legRecords : schedules) {
+                for (LegRecord legRecord : legRecords) {
+                    legs++;
+                    createLeg(airports, airportDays, legRecord);
+                    fliesTo.added(legRecord.departureCity, legRecord.arrivalCity, legRecord.distance);
+
+                    if (legs % LEG_TRANSACTION_LIMIT == 0) {
+                        fliesTo.apply(db);
+                        tx.success();
+                        tx.close();
+                        tx = db.beginTx();
+                    }
+                }
+                count++;
+            }
+
+            fliesTo.apply(db);
+            tx.success();
+        } catch (RuntimeException e) {
+            // Fail the whole call rather than report the rows before the bad one as imported
+            log.error("Could not import the flight schedule after row " + count, e);
+            throw new IllegalArgumentException("Could not import the flight schedule after row " + count + ": " + e.getMessage(), e);
+        }
+        finally {
+            tx.close();
+        }
+        return count;
+    }
+
+    @Description("com.maxdemarzi.import.delta(file) | Apply added, cancelled and retimed flights")
+    @Procedure(name = "com.maxdemarzi.import.delta", mode = Mode.WRITE)
+
+    public Stream<MapResult> importDelta(@Name("file") String file) throws IOException {
+        long start = System.nanoTime();
+        CacheInvalidation.watch(db);
         Reader in = new FileReader("/" + file);
         Iterable<CSVRecord> records = CSVFormat.EXCEL.withHeader().parse(in);
 
+        // The cached Legs and routes the changes touch are forgotten once they commit
+        HashMap<String, Long> airports = new HashMap<>();
+        HashMap<String, Long> airportDays = new HashMap<>();
+        FliesTo fliesTo = new FliesTo();
+
         Transaction tx = db.beginTx();
         int count = 0;
+        int added = 0;
+        int cancelled = 0;
+        int retimed = 0;
+        int unchanged = 0;
+        int missing = 0;
         try {
-
             for (CSVRecord record : records) {
                 count++;
 
-                // Airports
+                // Legs are keyed by their flight code and the local date they depart on
                 String departureCity = record.get("DepartureCity");
-                String arrivalCity = record.get("ArrivalCity");
-                db.execute("MERGE (a:Airport {code:{code}})",
-                        Collections.singletonMap("code", departureCity));
-                db.execute("MERGE (a:Airport {code:{code}})",
-                        Collections.singletonMap("code", arrivalCity));
-
-                // Legs and AirportDays
-                String airlineCode = record.get("AirlineCode");
-                String flightNumber = record.get("FlightNumber");
-                String departureTime = String.format("%04d", Integer.parseInt(record.get("DepartureTime")));
-                String arrivalTime = String.format("%04d", Integer.parseInt(record.get("ArrivalTime")));
-                String variationDepartureTimeCode = record.get("VariationDepartureTimeCode");
-                String variationArrivalTimeCode = record.get("VariationArrivalTimeCode");
-
-                Integer variationDepartureTimeCodeOffset = Integer.parseInt(variationDepartureTimeCode);
-                Integer variationArrivalTimeCodeOffset = Integer.parseInt(variationArrivalTimeCode);
-
-                LocalTime departureLocalTime = LocalTime.of(
-                        Integer.parseInt(departureTime.substring(0, departureTime.length() - 2)) % 24,
-                        Integer.parseInt(departureTime.substring(departureTime.length() - 2, departureTime.length())));
-
-                LocalTime arrivalLocalTime = LocalTime.of(
-                        Integer.parseInt(arrivalTime.substring(0, arrivalTime.length() - 2)) % 24,
-                        Integer.parseInt(arrivalTime.substring(arrivalTime.length() - 2, arrivalTime.length())));
-
-                String departureTimezone = String.format("%+05d", Integer.parseInt(record.get("DepartureTimezone")));
-                String arrivalTimezone = String.format("%+05d", Integer.parseInt(record.get("ArrivalTimezone")));
-
-                ZoneOffset departureZoneOffset = ZoneOffset.of(
-                        departureTimezone.substring(0, 3) +
-                                ":" +
-                                departureTimezone.substring(3, 5));
-
-                ZoneOffset arrivalZoneOffset = ZoneOffset.of(
-                        arrivalTimezone.substring(0, 3) +
-                                ":" +
-                                arrivalTimezone.substring(3, 5));
-
-                String dayOfOperationMonday = record.get("DayOfOperationMonday");
-                String dayOfOperationTuesday = record.get("DayOfOperationTuesday");
-                String dayOfOperationWednesday = record.get("DayOfOperationWednesday");
-                String dayOfOperationThursday = record.get("DayOfOperationThursday");
-                String dayOfOperationFriday = record.get("DayOfOperationFriday");
-                String dayOfOperationSaturday = record.get("DayOfOperationSaturday");
-                String dayOfOperationSunday = record.get("DayOfOperationSunday");
-
-                Set<Integer> daysOfOperation = new HashSet<>();
-                if (!dayOfOperationMonday.isEmpty()) { daysOfOperation.add(1); }
-                if (!dayOfOperationTuesday.isEmpty()) { daysOfOperation.add(2); }
-                if (!dayOfOperationWednesday.isEmpty()) { daysOfOperation.add(3); }
-                if (!dayOfOperationThursday.isEmpty()) { daysOfOperation.add(4); }
-                if (!dayOfOperationFriday.isEmpty()) { daysOfOperation.add(5); }
-                if (!dayOfOperationSaturday.isEmpty()) { daysOfOperation.add(6); }
-                if (!dayOfOperationSunday.isEmpty()) { daysOfOperation.add(7); }
-
-                String effectiveDate = record.get("EffectiveDate");
-                String[] effectiveDatePieces = effectiveDate.split("/");
-                LocalDate effectiveLocalDate = LocalDate.of(2000 + Integer.parseInt(effectiveDatePieces[2]),
-                        Integer.parseInt(effectiveDatePieces[0]),
-                        Integer.parseInt(effectiveDatePieces[1]));
-
-                String discontinueDate = record.get("DiscontinueDate");
-                String[] discontinueDatePieces = discontinueDate.split("/");
-                LocalDate discontinueLocalDate = LocalDate.of(2000 + Integer.parseInt(discontinueDatePieces[2]),
-                        Integer.parseInt(discontinueDatePieces[0]),
-                        Integer.parseInt(discontinueDatePieces[1]));
-
-                Period daysBetween = Period.between(effectiveLocalDate, discontinueLocalDate);
-                for (int i = 0; i < daysBetween.getDays(); i++) {
-                    if (daysOfOperation.contains(effectiveLocalDate.plusDays(i).getDayOfWeek().getValue())) {
-
-                        LocalDateTime departureLocalDateTime = LocalDateTime.of(effectiveLocalDate.plusDays(i + variationDepartureTimeCodeOffset), departureLocalTime);
-                        OffsetDateTime departureDateTime = OffsetDateTime.of(departureLocalDateTime, departureZoneOffset);
-                        Timestamp departureTimestamp = Timestamp.valueOf(departureDateTime.atZoneSameInstant(ZoneId.of("Z")).toLocalDateTime());
-
-                        LocalDateTime arrivalLocalDateTime = LocalDateTime.of(effectiveLocalDate.plusDays(i + variationArrivalTimeCodeOffset), arrivalLocalTime);
-                        OffsetDateTime arrivalDateTime = OffsetDateTime.of(arrivalLocalDateTime, arrivalZoneOffset);
-                        Timestamp arrivalTimestamp = Timestamp.valueOf(arrivalDateTime.atZoneSameInstant(ZoneId.of("Z")).toLocalDateTime());
-
-                        // AirportDay
-                        String departureKey = departureCity + "-" + departureLocalDateTime.toLocalDate();
-                        Node departureAirportDayNode = (Node)db.execute("MERGE (a:AirportDay {key:{key}}) RETURN a",
-                                Collections.singletonMap("key", departureKey)
-                        ).columnAs("a").next();
-
-                        String arrivalKey = arrivalCity + "-" + arrivalLocalDateTime.toLocalDate();
-                        Node arrivalAirportDayNode = (Node)db.execute("MERGE (a:AirportDay {key:{key}}) RETURN a",
-                                Collections.singletonMap("key",arrivalKey)
-                        ).columnAs("a").next();
-
-                        db.execute("MATCH (a:Airport {code:{code}}), (ad:AirportDay {key:{key}}) MERGE (a)-[:HAS_DAY]->(ad)",
-                                new HashMap<String, Object>() {{
-                                    put("code", departureCity);
-                                    put("key", departureKey); }});
-
-                        db.execute("MATCH (a:Airport {code:{code}}), (ad:AirportDay {key:{key}}) MERGE (a)-[:HAS_DAY]->(ad)",
-                                new HashMap<String, Object>() {{
-                                    put("code", arrivalCity);
-                                    put("key", arrivalKey); }});
-
-                        Node leg = (Node)db.execute("CREATE (l:Leg { code:{code}, departs:{departs}, arrives:{arrives}, departs_at:{departs_at}, arrives_at:{arrives_at}, distance:{distance} }) RETURN l ",
-                                new HashMap<String, Object>() {{
-                                    put("code", airlineCode + "-" + flightNumber);
-                                    put("departs", departureTimestamp.getTime()/1000);
-                                    put("arrives", arrivalTimestamp.getTime()/1000);
-                                    put("departs_at", departureLocalDateTime.toString());
-                                    put("arrives_at", arrivalLocalDateTime.toString());
-                                    put("distance", Integer.parseInt(record.get("FlightDistance")));
-                                }}).columnAs("l").next();
-
-                        departureAirportDayNode.createRelationshipTo(leg, RelationshipType.withName(arrivalCity + "_FLIGHT"));
-                        leg.createRelationshipTo(arrivalAirportDayNode, RelationshipType.withName(arrivalCity + "_FLIGHT"));
-
-                    }
+                String code = record.get("AirlineCode") + "-" + record.get("FlightNumber");
+                String departureKey = departureCity + "-" + FlightSchedule.localDate(record.get("Date"));
+                Node leg = findLeg(departureKey, code, record.get("ArrivalCity"));
+
+                switch (record.get("Action").toUpperCase()) {
+                    case "CANCEL":
+                        if (leg == null) {
+                            missing++;
+                        } else {
+                            Relationship arrival = leg.getRelationships(Direction.OUTGOING).iterator().next();
+                            String arrivalCity = ((String) arrival.getEndNode().getProperty("key")).substring(0, 3);
+                            fliesTo.removed(departureCity, arrivalCity, ((Number) leg.getProperty("distance", 0)).intValue());
+                            for (Relationship relationship : leg.getRelationships()) {
+                                relationship.delete();
+                            }
+                            leg.delete();
+                            cancelled++;
+                        }
+                        break;
+                    case "RETIME":
+                        if (leg == null) {
+                            missing++;
+                        } else if (retime(airports, airportDays, leg, FlightSchedule.change(record))) {
+                            retimed++;
+                        } else {
+                            unchanged++;
+                        }
+                        break;
+                    case "ADD":
+                        LegRecord legRecord = FlightSchedule.change(record);
+                        if (leg == null) {
+                            createLeg(airports, airportDays, legRecord);
+                            fliesTo.added(legRecord.departureCity, legRecord.arrivalCity, legRecord.distance);
+                            added++;
+                        } else if (retime(airports, airportDays, leg, legRecord)) {
+                            retimed++;
+                        } else {
+                            unchanged++;
+                        }
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown action: " + record.get("Action"));
                 }
 
                 if (count % TRANSACTION_LIMIT == 0) {
+                    fliesTo.apply(db);
                     tx.success();
                     tx.close();
                     tx = db.beginTx();
                 }
             }
 
+            fliesTo.apply(db);
             tx.success();
-        } catch (Exception e) {
-            System.out.println("Error on line: " +  count);
-            e.printStackTrace();
+        } catch (RuntimeException e) {
+            // Fail the whole call, so the caller's transaction rolls back instead of keeping part of the delta
+            log.error("Could not apply line " + count + " of " + file, e);
+            throw new IllegalArgumentException("Could not apply line " + count + " of " + file + ": " + e.getMessage(), e);
         }
         finally {
             tx.close();
         }
 
-        long timeTaken = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start);
+        double seconds = (System.nanoTime() - start) / 1_000_000_000.0;
+        HashMap<String, Object> stats = new HashMap<>();
+        stats.put("rows", count);
+        stats.put("added", added);
+        stats.put("cancelled", cancelled);
+        stats.put("retimed", retimed);
+        stats.put("unchanged", unchanged);
+        stats.put("missing", missing);
+        stats.put("seconds", seconds);
+        stats.put("rows_per_second", seconds > 0 ? count / seconds : count);
+        return Stream.of(new MapResult(stats));
+    }
+
+    private Node createLeg(HashMap<String, Long> airports, HashMap<String, Long> airportDays, LegRecord legRecord) {
+        Node departureAirportDayNode = airportDay(airports, airportDays, legRecord.departureCity, legRecord.departureKey);
+        Node arrivalAirportDayNode = airportDay(airports, airportDays, legRecord.arrivalCity, legRecord.arrivalKey);
+
+        Node leg = db.createNode(Labels.Leg);
+        leg.setProperty("code", legRecord.code);
+        leg.setProperty("departs", legRecord.departs);
+        leg.setProperty("arrives", legRecord.arrives);
+        leg.setProperty("departs_at", legRecord.departsAt);
+        leg.setProperty("arrives_at", legRecord.arrivesAt);
+        leg.setProperty("distance", legRecord.distance);
+
+        RelationshipType flight = RelationshipType.withName(legRecord.arrivalCity + "_FLIGHT");
+        departureAirportDayNode.createRelationshipTo(leg, flight);
+        leg.createRelationshipTo(arrivalAirportDayNode, flight);
+        return leg;
+    }
+
+    // The Leg with this flight code leaving from the AirportDay, narrowed down by where it flies to if we know
+    private Node findLeg(String departureKey, String code, String arrivalCity) {
+        Node departureAirportDay = db.findNode(Labels.AirportDay, "key", departureKey);
+        if (departureAirportDay == null) {
+            return null;
+        }
+
+        Iterable<Relationship> flights = (arrivalCity == null || arrivalCity.isEmpty())
+                ? departureAirportDay.getRelationships(Direction.OUTGOING)
+                : departureAirportDay.getRelationships(Direction.OUTGOING, RelationshipType.withName(arrivalCity + "_FLIGHT"));
+        for (Relationship flight : flights) {
+            Node leg = flight.getEndNode();
+            if (code.equals(leg.getProperty("code", null))) {
+                return leg;
+            }
+        }
+        return null;
+    }
+
+    // Only write the times that actually changed, moving the Leg to another arrival AirportDay if it has to
+    private boolean retime(HashMap<String, Long> airports, HashMap<String, Long> airportDays, Node leg, LegRecord legRecord) {
+        boolean changed = false;
+        if (!leg.getProperty("departs_at", "").equals(legRecord.departsAt)) {
+            leg.setProperty("departs", legRecord.departs);
+            leg.setProperty("departs_at", legRecord.departsAt);
+            changed = true;
+        }
 
-        return Stream.of(new StringResult(count + " Flights imported in " + timeTaken + " Seconds"));
+        if (!leg.getProperty("arrives_at", "").equals(legRecord.arrivesAt)) {
+            leg.setProperty("arrives", legRecord.arrives);
+            leg.setProperty("arrives_at", legRecord.arrivesAt);
+            changed = true;
+
+            Relationship arrival = leg.getRelationships(Direction.OUTGOING).iterator().next();
+            if (!arrival.getEndNode().getProperty("key").equals(legRecord.arrivalKey)) {
+                arrival.delete();
+                leg.createRelationshipTo(airportDay(airports, airportDays, legRecord.arrivalCity, legRecord.arrivalKey),
+                        RelationshipType.withName(legRecord.arrivalCity + "_FLIGHT"));
+            }
+        }
+        return changed;
+    }
+
+    // Find or create the AirportDay and connect it to its Airport, which is also found or created
+    private Node airportDay(HashMap<String, Long> airports, HashMap<String, Long> airportDays, String code, String key) {
+        Long airportDayId = airportDays.get(key);
+        if (airportDayId != null) {
+            return db.getNodeById(airportDayId);
+        }
+
+        Node airportDay = db.findNode(Labels.AirportDay, "key", key);
+        if (airportDay == null) {
+            airportDay = db.createNode(Labels.AirportDay);
+            airportDay.setProperty("key", key);
+            airport(airports, code).createRelationshipTo(airportDay, RelationshipTypes.HAS_DAY);
+        }
+        airportDays.put(key, airportDay.getId());
+        return airportDay;
+    }
+
+    private Node airport(HashMap<String, Long> airports, String code) {
+        Long airportId = airports.get(code);
+        if (airportId != null) {
+            return db.getNodeById(airportId);
+        }
+
+        Node airport = db.findNode(Labels.Airport, "code", code);
+        if (airport == null) {
+            airport = db.createNode(Labels.Airport);
+            airport.setProperty("code", code);
+        }
+        airports.put(code, airport.getId());
+        return airport;
     }
 }
@@ -0,0 +1,195 @@
+package com.maxdemarzi;
+
+import com.maxdemarzi.results.MapResult;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// The best recordLimit itineraries of a Timetable search so far, ordered like the FlightComparator: fewest legs,
+// earliest departure (local time), shortest distance, then first flight code. Itineraries are kept as Leg numbers
+// in primitive arrays with the worst one at the root of the heap, only the ones left at the end become MapResults.
+final class Itineraries {
+    private final Timetable timetable;
+    private final Projection projection;
+    private final int limit;
+    private final int[] heap;
+    private final int[] legs;
+    private final int[] legDays;
+    private final int[] count;
+    private final long[] departsAt;
+    private final int[] distance;
+    private int size;
+
+    Itineraries(Timetable timetable, int limit, Projection projection) {
+        this.timetable = timetable;
+        this.projection = projection;
+        this.limit = Math.max(0, limit);
+        this.heap = new int[this.limit];
+        this.legs = new int[this.limit * TimetableSearch.MAX_LEGS];
+        this.legDays = new int[this.limit * TimetableSearch.MAX_LEGS];
+        this.count = new int[this.limit];
+        this.departsAt = new long[this.limit];
+        this.distance = new int[this.limit];
+    }
+
+    // Whether an itinerary with this many legs could still make it in, fewer legs always rank first
+    boolean wants(int length) {
+        return size < limit || (limit > 0 && count[heap[0]] >= length);
+    }
+
+    void offer(int[] path, int[] pathDays, int length) {
+        if (limit == 0) {
+            return;
+        }
+
+        int total = 0;
+        for (int i = 0; i < length; i++) {
+            total += timetable.distance(path[i]);
+        }
+        long departs = timetable.departsAt(path[0]);
+        int code = timetable.code(path[0]);
+
+        int slot;
+        if (size < limit) {
+            slot = size;
+        } else if (compare(length, departs, total, code, heap[0]) < 0) {
+            slot = heap[0];
+        } else {
+            return;
+        }
+
+        System.arraycopy(path, 0, legs, slot * TimetableSearch.MAX_LEGS, length);
+        System.arraycopy(pathDays, 0, legDays, slot * TimetableSearch.MAX_LEGS, length);
+        count[slot] = length;
+        departsAt[slot] = departs;
+        distance[slot] = total;
+
+        if (size < limit) {
+            heap[size] = slot;
+            siftUp(size++);
+        } else {
+            siftDown(0);
+        }
+    }
+
+    private int compare(int length, long departs, int total, int code, int slot) {
+        int c = Integer.compare(length, count[slot]);
+        if (c == 0) {
+            c = compare(departs, total, code, departsAt[slot], distance[slot], timetable.code(legs[slot * TimetableSearch.MAX_LEGS]));
+        }
+        return c;
+    }
+
+    private int compare(int slot1, int slot2) {
+        return compare(count[slot1], departsAt[slot1], distance[slot1], timetable.code(legs[slot1 * TimetableSearch.MAX_LEGS]), slot2);
+    }
+
+    // How two itineraries of the same length rank, by their departure, distance and first flight code
+    int compare(long departs1, int total1, int code1, long departs2, int total2, int code2) {
+        int c = Long.compare(departs1, departs2);
+        if (c == 0) {
+            c = Integer.compare(total1, total2);
+            if (c == 0) {
+                c = compareCodes(code1, code2);
+            }
+        }
+        return c;
+    }
+
+    private int compareCodes(int code1, int code2) {
+        String flightCode1 = timetable.flightCode(code1);
+        String flightCode2 = timetable.flightCode(code2);
+        if (flightCode1 == null || flightCode2 == null) {
+            return flightCode1 == null ? (flightCode2 == null ? 0 : -1) : 1;
+        }
+        return flightCode1.compareTo(flightCode2);
+    }
+
+    // The heap keeps the worst itinerary on top
+    private void siftUp(int index) {
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (compare(heap[index], heap[parent]) <= 0) {
+                return;
+            }
+            swap(index, parent);
+            index = parent;
+        }
+    }
+
+    private void siftDown(int index) {
+        while (true) {
+            int child = 2 * index + 1;
+            if (child >= size) {
+                return;
+            }
+            if (child + 1 < size && compare(heap[child + 1], heap[child]) > 0) {
+                child++;
+            }
+            if (compare(heap[child], heap[index]) <= 0) {
+                return;
+            }
+            swap(index, child);
+            index = child;
+        }
+    }
+
+    private void swap(int i, int j) {
+        int slot = heap[i];
+        heap[i] = heap[j];
+        heap[j] = slot;
+    }
+
+    ArrayList<MapResult> results() {
+        Integer[] slots = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = heap[i];
+        }
+        Arrays.sort(slots, this::compare);
+
+        ArrayList<MapResult> results = new ArrayList<>(size);
+        for (int slot : slots) {
+            results.add(toResult(slot));
+        }
+        return results;
+    }
+
+    // Same shape as the Projection builds from a graph path
+    private MapResult toResult(int slot) {
+        HashMap<String, Object> result = new HashMap<>();
+        List<Map<String, Object>> flights = new ArrayList<>();
+        for (int i = 0; i < count[slot]; i++) {
+            int leg = legs[slot * TimetableSearch.MAX_LEGS + i];
+            HashMap<String, Object> flightInfo = new HashMap<>();
+            String code = timetable.flightCode(timetable.code(leg));
+            if (projection.code && code != null) {
+                flightInfo.put(Projection.CODE, code);
+            }
+            if (projection.departsAt && timetable.departsAt(leg) != Timetable.NO_TIME) {
+                flightInfo.put(Projection.DEPARTS_AT, Timetable.localTime(timetable.departsAt(leg)));
+            }
+            if (projection.arrivesAt && timetable.arrivesAt(leg) != Timetable.NO_TIME) {
+                flightInfo.put(Projection.ARRIVES_AT, Timetable.localTime(timetable.arrivesAt(leg)));
+            }
+            if (projection.distance) {
+                flightInfo.put(Projection.DISTANCE, timetable.distance(leg));
+            }
+            if (projection.origin) {
+                flightInfo.put(Projection.ORIGIN, timetable.airportCode(timetable.dayAirport(legDays[slot * TimetableSearch.MAX_LEGS + i])));
+            }
+            if (projection.destination) {
+                flightInfo.put(Projection.DESTINATION, timetable.airportCode(timetable.destination(leg)));
+            }
+            flights.add(flightInfo);
+        }
+
+        result.put("flights", flights);
+        // A graph path of n legs has 2n + 1 relationships, the score is its length less 2
+        result.put("score", 2 * count[slot] - 1);
+        result.put("distance", distance[slot]);
+        return new MapResult(result);
+    }
+}
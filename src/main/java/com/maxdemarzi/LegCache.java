@@ -0,0 +1,161 @@
+package com.maxdemarzi;
+
+import org.neo4j.graphdb.Node;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// The Leg attributes the search reads on every expansion (departs, arrives, distance and flight code)
+// and to rank its results and connect overnight (the local departure and arrival times),
+// kept in primitive arrays indexed by node id so the hot path neither boxes nor goes back to the store.
+// Node ids are dense, so the arrays are split into pages that are only allocated once a node on them is read.
+// Any other node read through here (AirportDays) is cached as a Leg without a code, distance or times.
+final class LegCache {
+    private static final int PAGE_BITS = 14;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    // An entry is loaded once its info word is written, with the distance and code id packed in below this bit
+    private static final long LOADED = 1L << 63;
+    private static final int NO_CODE = -1;
+
+    private static final LegCache NONE = new LegCache(null);
+    private static volatile LegCache current = NONE;
+
+    private final String storeDir;
+    private volatile Page[] pages = new Page[16];
+
+    private LegCache(String storeDir) {
+        this.storeDir = storeDir;
+    }
+
+    // The cache for this database, started empty and following Leg changes the first time it is asked for
+    static LegCache of(GraphDatabaseAPI db) {
+        LegCache cache = current;
+        if (!db.getStoreDir().equals(cache.storeDir)) {
+            synchronized (LegCache.class) {
+                cache = current;
+                if (!db.getStoreDir().equals(cache.storeDir)) {
+                    cache = new LegCache(db.getStoreDir());
+                    current = cache;
+                    CacheInvalidation.watch(db);
+                }
+            }
+        }
+        return cache;
+    }
+
+    long departs(Node leg) {
+        Page page = page(leg.getId());
+        int index = (int) (leg.getId() & PAGE_MASK);
+        if (page.info.get(index) == 0) {
+            page.load(index, leg);
+        }
+        return page.departs[index];
+    }
+
+    long arrives(Node leg) {
+        Page page = page(leg.getId());
+        int index = (int) (leg.getId() & PAGE_MASK);
+        if (page.info.get(index) == 0) {
+            page.load(index, leg);
+        }
+        return page.arrives[index];
+    }
+
+    // The local departs_at time in seconds like the Timetable keeps it, or Timetable.NO_TIME if the Leg has none
+    long departsAt(Node leg) {
+        Page page = page(leg.getId());
+        int index = (int) (leg.getId() & PAGE_MASK);
+        if (page.info.get(index) == 0) {
+            page.load(index, leg);
+        }
+        return page.departsAt[index];
+    }
+
+    // The local arrives_at time in seconds, or Timetable.NO_TIME if the Leg has none
+    long arrivesAt(Node leg) {
+        Page page = page(leg.getId());
+        int index = (int) (leg.getId() & PAGE_MASK);
+        if (page.info.get(index) == 0) {
+            page.load(index, leg);
+        }
+        return page.arrivesAt[index];
+    }
+
+    int distance(Node leg) {
+        return (int) ((info(leg) & ~LOADED) >>> 32);
+    }
+
+    // The FlightCodes id of the Leg, or -1 if the node has no code
+    int code(Node leg) {
+        return (int) info(leg);
+    }
+
+    private long info(Node leg) {
+        Page page = page(leg.getId());
+        int index = (int) (leg.getId() & PAGE_MASK);
+        long info = page.info.get(index);
+        return info != 0 ? info : page.load(index, leg);
+    }
+
+    // Forget Legs that were retimed, cancelled or created since they may have been read
+    void invalidate(Collection<Long> nodeIds) {
+        Page[] pages = this.pages;
+        for (long nodeId : nodeIds) {
+            int number = (int) (nodeId >>> PAGE_BITS);
+            if (number < pages.length && pages[number] != null) {
+                pages[number].info.set((int) (nodeId & PAGE_MASK), 0);
+            }
+        }
+    }
+
+    synchronized void clear() {
+        pages = new Page[pages.length];
+    }
+
+    private Page page(long nodeId) {
+        int number = (int) (nodeId >>> PAGE_BITS);
+        Page[] pages = this.pages;
+        if (number < pages.length && pages[number] != null) {
+            return pages[number];
+        }
+        return allocate(number);
+    }
+
+    private synchronized Page allocate(int number) {
+        Page[] pages = this.pages;
+        if (number >= pages.length) {
+            pages = Arrays.copyOf(pages, Math.max(number + 1, pages.length * 2));
+        }
+        if (pages[number] == null) {
+            pages[number] = new Page();
+        }
+        this.pages = pages;
+        return pages[number];
+    }
+
+    private static final class Page {
+        private final long[] departs = new long[PAGE_SIZE];
+        private final long[] arrives = new long[PAGE_SIZE];
+        private final long[] departsAt = new long[PAGE_SIZE];
+        private final long[] arrivesAt = new long[PAGE_SIZE];
+        private final AtomicLongArray info = new AtomicLongArray(PAGE_SIZE);
+
+        // Write the times first so a reader that sees the info word also sees them
+        private long load(int index, Node leg) {
+            departs[index] = ((Number) leg.getProperty("departs", 0L)).longValue();
+            arrives[index] = ((Number) leg.getProperty("arrives", 0L)).longValue();
+            departsAt[index] = Timetable.localTime(leg.getProperty("departs_at", null));
+            arrivesAt[index] = Timetable.localTime(leg.getProperty("arrives_at", null));
+
+            String code = (String) leg.getProperty("code", null);
+            long distance = ((Number) leg.getProperty("distance", 0)).longValue();
+            long info = LOADED | (distance << 32) | ((code == null ? NO_CODE : FlightCodes.of(code)) & 0xffffffffL);
+            this.info.lazySet(index, info);
+            return info;
+        }
+    }
+}
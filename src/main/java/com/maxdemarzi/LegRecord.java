@@ -0,0 +1,29 @@
+package com.maxdemarzi;
+
+// A single flight on a single day, expanded from a row of the schedule
+final class LegRecord {
+    final String departureCity;
+    final String arrivalCity;
+    final String code;
+    final long departs;
+    final long arrives;
+    final String departsAt;
+    final String arrivesAt;
+    final String departureKey;
+    final String arrivalKey;
+    final int distance;
+
+    LegRecord(String departureCity, String arrivalCity, String code, long departs, long arrives,
+              String departsAt, String arrivesAt, String departureKey, String arrivalKey, int distance) {
+        this.departureCity = departureCity;
+        this.arrivalCity = arrivalCity;
+        this.code = code;
+        this.departs = departs;
+        this.arrives = arrives;
+        this.departsAt = departsAt;
+        this.arrivesAt = arrivesAt;
+        this.departureKey = departureKey;
+        this.arrivalKey = arrivalKey;
+        this.distance = distance;
+    }
+}
@@ -0,0 +1,67 @@
+package com.maxdemarzi;
+
+import org.neo4j.graphalgo.GraphAlgoFactory;
+import org.neo4j.graphalgo.PathFinder;
+import org.neo4j.graphalgo.WeightedPath;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+
+// Searches a single (departure AirportDay, arrival Airport) pair in its own read transaction
+// so a multi airport or multi day search can run its pairs side by side on the search worker pool.
+// The route template is looked up by the caller, once for every day that flies the same pair of airports.
+class PairSearch implements Runnable {
+    private final GraphDatabaseService db;
+    private final long departureAirportDayId;
+    private final String departureCode;
+    private final String arrivalCode;
+    private final RouteTemplate validRels;
+    private final long maxLayover;
+    private final int recordLimit;
+    private final Deadline deadline;
+    private final TopPaths results;
+    private final LegCache legs;
+
+    PairSearch(GraphDatabaseService db, long departureAirportDayId, String departureCode, String arrivalCode,
+               RouteTemplate validRels, long maxLayover, int recordLimit, Deadline deadline, TopPaths results, LegCache legs) {
+        this.db = db;
+        this.departureAirportDayId = departureAirportDayId;
+        this.departureCode = departureCode;
+        this.arrivalCode = arrivalCode;
+        this.validRels = validRels;
+        this.maxLayover = maxLayover;
+        this.recordLimit = recordLimit;
+        this.deadline = deadline;
+        this.results = results;
+        this.legs = legs;
+    }
+
+    @Override
+    public void run() {
+        // The whole search shares one deadline, don't start work that can no longer finish
+        if (deadline.expired()) {
+            return;
+        }
+
+        try (Transaction tx = db.beginTx()) {
+            Node departureAirportDay = db.getNodeById(departureAirportDayId);
+            long lookup = System.nanoTime();
+            Node arrivalAirport = db.findNode(Labels.Airport, "code", arrivalCode);
+            SearchMetrics.airportDayLookup.record(SearchMetrics.micros(lookup));
+
+            if (arrivalAirport != null && !validRels.isEmpty()) {
+                PathRestrictedExpander pathRestrictedExpander = new PathRestrictedExpander(departureCode, arrivalCode, deadline, validRels, legs, maxLayover);
+                RouteCostEvaluator routeCostEvaluator = new RouteCostEvaluator(legs);
+                PathFinder<WeightedPath> dijkstra = GraphAlgoFactory.dijkstra(pathRestrictedExpander, routeCostEvaluator, recordLimit);
+
+                long start = System.nanoTime();
+                for (org.neo4j.graphdb.Path position : dijkstra.findAllPaths(departureAirportDay, arrivalAirport)) {
+                    results.offer(position);
+                }
+                SearchMetrics.expansion.record(SearchMetrics.micros(start));
+                pathRestrictedExpander.record();
+            }
+            tx.success();
+        }
+    }
+}
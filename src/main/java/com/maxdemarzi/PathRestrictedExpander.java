@@ -3,70 +3,172 @@ package com.maxdemarzi;
 import org.neo4j.graphdb.*;
 import org.neo4j.graphdb.traversal.BranchState;
 
+import java.time.LocalDate;
 import java.util.*;
 
+// Paths go from the departure AirportDay through a Leg to the AirportDay it lands at, through the next Leg and so on,
+// ending at the arrival Airport. With a maximum layover, a connection can also go from the AirportDay a Leg lands at
+// back up to its Airport and down to the next day, to take a Leg leaving after midnight.
 class PathRestrictedExpander implements PathExpander<Double> {
-    private final String endCode;
-    private final long stopTime;
-    private final ArrayList<HashMap<RelationshipType, Set<RelationshipType>>> validRels;
-    private static final Long minimumConnectTime = 30L * 60L; // 30 minutes
-
-    public PathRestrictedExpander(String endCode, long stopTime, ArrayList<HashMap<RelationshipType, Set<RelationshipType>>> validRels) {
-        this.endCode = endCode;
-        this.stopTime = System.currentTimeMillis() + stopTime;
-        this.validRels = validRels;
+    private static final long DAY = 24L * 60L * 60L;
+    private static final int MAX_LEGS = 3;
+
+    private final Deadline deadline;
+    private final RouteTemplate template;
+    private final LegCache legs;
+    private final int departure;
+    private final int arrival;
+    private final long maxLayover;
+    private static final long minimumConnectTime = 30L * 60L; // 30 minutes
+
+    // Single threaded like the Dijkstra using it, read once the search is done
+    private int expansions;
+    private boolean timedOut;
+
+    public PathRestrictedExpander(String startCode, String endCode, Deadline deadline, RouteTemplate template, LegCache legs) {
+        this(startCode, endCode, deadline, template, legs, SearchOptions.NO_MAX_LAYOVER);
+    }
+
+    // Connections are at most maxLayover seconds long and may cross midnight, or are same day only without one
+    public PathRestrictedExpander(String startCode, String endCode, Deadline deadline, RouteTemplate template, LegCache legs, long maxLayover) {
+        this.deadline = deadline;
+        this.template = template;
+        this.legs = legs;
+        this.departure = AirportIds.of(startCode);
+        this.arrival = AirportIds.of(endCode);
+        this.maxLayover = maxLayover;
     }
 
     @Override
     public Iterable<Relationship> expand(Path path, BranchState<Double> branchState) {
-        // Stop if we are over our time limit
-        if (System.currentTimeMillis() < stopTime) {
-            if (path.length() < 8) {
-
-                if (((path.length() % 2) == 0) && ((String)path.endNode().getProperty("key")).substring(0,3).equals(endCode)) {
-                    return path.endNode().getRelationships(Direction.INCOMING, RelationshipTypes.HAS_DAY);
-                }
-
-                if (path.length() > 2 && ((path.length() % 2) == 1) ) {
-                    Iterator<Node> nodes = path.reverseNodes().iterator();
-                    Long departs = (Long)nodes.next().getProperty("departs");
-                    nodes.next(); // skip AirportDay node
-                    Node lastFlight = nodes.next();
-                    if (((Long)lastFlight.getProperty("arrives") + minimumConnectTime) > departs) {
-                        return Collections.emptyList();
-                    }
-                }
-
-                if (path.length() < 2) {
-                    RelationshipType firstRelationshipType = RelationshipType.withName(((String)path.startNode()
-                            .getProperty("key")).substring(0,3) + "_FLIGHT");
-                    RelationshipType[] valid = validRels.get(0).get(firstRelationshipType)
-                            .toArray(new RelationshipType[validRels.get(0).get(firstRelationshipType).size()]);
-                    return path.endNode().getRelationships(Direction.OUTGOING, valid);
-                } else {
-                    int location = path.length() / 2;
-
-                    if (((path.length() % 2) == 0) ) {
-                        return path.endNode().getRelationships(Direction.OUTGOING, validRels.get(location)
-                                .get(path.lastRelationship().getType())
-                                .toArray(new RelationshipType[validRels.get(location)
-                                        .get(path.lastRelationship().getType()).size()]));
-                    } else {
-                        Iterator<Relationship> iter = path.reverseRelationships().iterator();
-                        iter.next();
-                        RelationshipType lastRelationshipType = iter.next().getType();
-                        return path.endNode().getRelationships(Direction.OUTGOING, validRels.get(location).get(lastRelationshipType)
-                                .toArray(new RelationshipType[validRels.get(location).get(lastRelationshipType).size()]));
-                    }
-                }
+        expansions++;
+
+        // Stop if we are over our time limit, or any other part of this search found we are
+        if (deadline.expired(expansions)) {
+            timedOut = true;
+            return Collections.emptyList();
+        }
+
+        if (path.length() == 0) {
+            return expand(path.endNode(), template.allowed(0, departure));
+        }
+
+        Relationship last = path.lastRelationship();
+        if (last.isType(RelationshipTypes.HAS_DAY)) {
+            // The Leg we landed with is the last _FLIGHT in the path
+            int airport = AirportIds.of(lastFlight(path).getType());
+            if (path.endNode().equals(last.getStartNode())) {
+                // Up at the connecting Airport, down to the next day, unless this is where we were going
+                return airport == arrival ? Collections.emptyList() : nextDay(last.getEndNode());
+            }
+            return expand(path.endNode(), template.allowed(flights(path) / 2, airport));
+        }
+
+        int flights = flights(path);
+        if ((flights % 2) == 1) {
+            // On a Leg, drop it if we can't connect to it, otherwise on to the AirportDay it lands at
+            if (flights > 1 && misconnects(path)) {
+                return Collections.emptyList();
             }
+            return path.endNode().getRelationships(Direction.OUTGOING, last.getType());
+        }
+
+        // Landed, the flight relationship into an AirportDay already tells us which airport it belongs to
+        int airport = AirportIds.of(last.getType());
+        if (airport == arrival) {
+            return path.endNode().getRelationships(Direction.INCOMING, RelationshipTypes.HAS_DAY);
+        }
+        if (flights / 2 == MAX_LEGS) {
+            return Collections.emptyList();
         }
 
-        return Collections.emptyList();
+        Iterable<Relationship> sameDay = expand(path.endNode(), template.allowed(flights / 2, airport));
+        if (!reachesNextDay(last.getStartNode())) {
+            return sameDay;
+        }
+        ArrayList<Relationship> relationships = new ArrayList<>();
+        sameDay.forEach(relationships::add);
+        relationships.add(path.endNode().getSingleRelationship(RelationshipTypes.HAS_DAY, Direction.INCOMING));
+        return relationships;
+    }
+
+    private static Iterable<Relationship> expand(Node airportDay, RelationshipType[] valid) {
+        if (valid.length == 0) {
+            return Collections.emptyList();
+        }
+        return airportDay.getRelationships(Direction.OUTGOING, valid);
+    }
+
+    // Whether the longest layover after this Leg lands runs past midnight, checked before any relationship is read.
+    // Without a local arrival time we can't tell, so the next day is searched and the layover checked per Leg.
+    private boolean reachesNextDay(Node leg) {
+        if (maxLayover == SearchOptions.NO_MAX_LAYOVER) {
+            return false;
+        }
+        long arrivesAt = legs.arrivesAt(leg);
+        return arrivesAt == Timetable.NO_TIME
+                || Math.floorDiv(arrivesAt + maxLayover, DAY) > Math.floorDiv(arrivesAt, DAY);
+    }
+
+    // The HAS_DAY relationship from the Airport of this AirportDay to the one of the day after, if it has flights that day
+    private static Iterable<Relationship> nextDay(Node airportDay) {
+        String key = (String) airportDay.getProperty("key");
+        String nextKey = key.substring(0, 4) + LocalDate.parse(key.substring(4)).plusDays(1);
+        Node next = airportDay.getGraphDatabase().findNode(Labels.AirportDay, "key", nextKey);
+        if (next == null) {
+            return Collections.emptyList();
+        }
+        return Collections.singletonList(next.getSingleRelationship(RelationshipTypes.HAS_DAY, Direction.INCOMING));
+    }
+
+    // Whether the Leg the path ends with leaves before we can connect to it from the previous one,
+    // or after the longest layover we accept
+    boolean misconnects(Path path) {
+        Iterator<Relationship> relationships = path.reverseRelationships().iterator();
+        long departs = legs.departs(relationships.next().getEndNode());
+        Relationship landing = relationships.next();
+        while (landing.isType(RelationshipTypes.HAS_DAY)) {
+            landing = relationships.next();
+        }
+        long arrives = legs.arrives(landing.getStartNode());
+        return arrives + minimumConnectTime > departs
+                || (maxLayover != SearchOptions.NO_MAX_LAYOVER && arrives + maxLayover < departs);
+    }
+
+    // The _FLIGHT relationships in the path, two for every Leg it took and one more while it is on a Leg
+    static int flights(Path path) {
+        int flights = 0;
+        for (Relationship relationship : path.relationships()) {
+            if (!relationship.isType(RelationshipTypes.HAS_DAY)) {
+                flights++;
+            }
+        }
+        return flights;
+    }
+
+    private static Relationship lastFlight(Path path) {
+        for (Relationship relationship : path.reverseRelationships()) {
+            if (!relationship.isType(RelationshipTypes.HAS_DAY)) {
+                return relationship;
+            }
+        }
+        return null;
+    }
+
+    boolean timedOut() {
+        return timedOut;
+    }
+
+    // Report how much work the search did and whether it was cut short
+    void record() {
+        SearchMetrics.expansions.record(expansions);
+        if (timedOut) {
+            SearchMetrics.timedOut.increment();
+        }
     }
 
     @Override
     public PathExpander<Double> reverse() {
         return null;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,73 @@
+package com.maxdemarzi;
+
+import org.neo4j.graphdb.Path;
+import org.neo4j.graphdb.PathExpander;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.traversal.BranchState;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Wraps the PathRestrictedExpander of a search run with {explain:true}, counting the Legs it expands at each hop
+// and the ones it prunes for leaving before we could connect to them.
+// Only explained searches use it, every other search keeps the PathRestrictedExpander to itself.
+class ProfilingExpander implements PathExpander<Double> {
+    private final PathRestrictedExpander expander;
+    private final long[] expanded = new long[4];
+    private final long[] pruned = new long[4];
+
+    ProfilingExpander(PathRestrictedExpander expander) {
+        this.expander = expander;
+    }
+
+    @Override
+    public Iterable<Relationship> expand(Path path, BranchState<Double> branchState) {
+        ArrayList<Relationship> relationships = new ArrayList<>();
+        for (Relationship relationship : expander.expand(path, branchState)) {
+            relationships.add(relationship);
+        }
+
+        int flights = PathRestrictedExpander.flights(path);
+        int hop = flights / 2;
+        if (hop < expanded.length) {
+            if ((flights % 2) == 0) {
+                // Only Legs count, not the HAS_DAY relationships to the arrival Airport or on to the next day
+                for (Relationship relationship : relationships) {
+                    if (!relationship.isType(RelationshipTypes.HAS_DAY)) {
+                        expanded[hop]++;
+                    }
+                }
+            } else if (flights > 2 && relationships.isEmpty() && expander.misconnects(path)) {
+                pruned[hop]++;
+            }
+        }
+        return relationships;
+    }
+
+    // Legs expanded at each of the first hops of the route
+    List<Long> expanded(int hops) {
+        return perHop(expanded, hops);
+    }
+
+    // Legs pruned by the minimum connect time at each of the first hops of the route
+    List<Long> pruned(int hops) {
+        return perHop(pruned, hops);
+    }
+
+    private static List<Long> perHop(long[] counts, int hops) {
+        List<Long> perHop = new ArrayList<>();
+        for (int hop = 0; hop < Math.min(hops, counts.length); hop++) {
+            perHop.add(counts[hop]);
+        }
+        return perHop;
+    }
+
+    boolean timedOut() {
+        return expander.timedOut();
+    }
+
+    @Override
+    public PathExpander<Double> reverse() {
+        return null;
+    }
+}
@@ -0,0 +1,127 @@
+package com.maxdemarzi;
+
+import com.maxdemarzi.results.MapResult;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Path;
+import org.neo4j.graphdb.Relationship;
+
+import java.util.*;
+
+// The fields of each flight a search returns, all of them unless the options ask for fewer.
+// Results are built straight from the LegCache and the interned airport and flight codes,
+// only departs_at and arrives_at are read from the Leg itself, and only when they are asked for.
+final class Projection {
+    static final String CODE = "code";
+    static final String DEPARTS_AT = "departs_at";
+    static final String ARRIVES_AT = "arrives_at";
+    static final String DISTANCE = "distance";
+    static final String ORIGIN = "origin";
+    static final String DESTINATION = "destination";
+    static final List<String> FIELDS = Arrays.asList(CODE, DEPARTS_AT, ARRIVES_AT, DISTANCE, ORIGIN, DESTINATION);
+
+    static final Projection ALL = new Projection(FIELDS);
+
+    final boolean code;
+    final boolean departsAt;
+    final boolean arrivesAt;
+    final boolean distance;
+    final boolean origin;
+    final boolean destination;
+
+    private Projection(Collection<String> fields) {
+        for (String field : fields) {
+            if (!FIELDS.contains(field)) {
+                throw new IllegalArgumentException("Unknown flight field " + field + ", use any of " + FIELDS);
+            }
+        }
+        this.code = fields.contains(CODE);
+        this.departsAt = fields.contains(DEPARTS_AT);
+        this.arrivesAt = fields.contains(ARRIVES_AT);
+        this.distance = fields.contains(DISTANCE);
+        this.origin = fields.contains(ORIGIN);
+        this.destination = fields.contains(DESTINATION);
+    }
+
+    // The projection option is a list of flight field names
+    static Projection of(Object fields) {
+        if (fields == null) {
+            return ALL;
+        }
+        if (!(fields instanceof Collection)) {
+            throw new IllegalArgumentException("The projection is a list of flight fields, any of " + FIELDS);
+        }
+        ArrayList<String> names = new ArrayList<>();
+        for (Object field : (Collection<?>) fields) {
+            names.add(String.valueOf(field));
+        }
+        return new Projection(names);
+    }
+
+    // Turn a path of AirportDay and Leg nodes ending at the arrival Airport into a result with its flights,
+    // score and distance. The flight relationship into each Leg already tells us where it lands.
+    MapResult toResult(Path path, LegCache legs) {
+        HashMap<String, Object> result = new HashMap<>();
+        List<Map<String, Object>> flights = new ArrayList<>();
+        int total = 0;
+
+        String from = origin ? AirportIds.code((String) path.startNode().getProperty("key")) : null;
+        Iterator<Relationship> relationships = path.relationships().iterator();
+        while (relationships.hasNext()) {
+            Relationship flight = relationships.next();
+            if (flight.isType(RelationshipTypes.HAS_DAY)) {
+                continue; // through the Airport to the next day, or the last AirportDay back to its Airport
+            }
+            relationships.next(); // the Leg into the AirportDay it lands at
+
+            Node leg = flight.getEndNode();
+            String to = AirportIds.code(flight.getType());
+            HashMap<String, Object> flightInfo = new HashMap<>();
+            if (code && legs.code(leg) >= 0) {
+                flightInfo.put(CODE, FlightCodes.code(legs.code(leg)));
+            }
+            if (departsAt) {
+                putIfPresent(flightInfo, DEPARTS_AT, leg.getProperty(DEPARTS_AT, null));
+            }
+            if (arrivesAt) {
+                putIfPresent(flightInfo, ARRIVES_AT, leg.getProperty(ARRIVES_AT, null));
+            }
+            if (distance) {
+                flightInfo.put(DISTANCE, legs.distance(leg));
+            }
+            if (origin) {
+                flightInfo.put(ORIGIN, from);
+            }
+            if (destination) {
+                flightInfo.put(DESTINATION, to);
+            }
+            flights.add(flightInfo);
+            total += legs.distance(leg);
+            from = to;
+        }
+
+        result.put("flights", flights);
+        // Two relationships per Leg less one, like the length of a path without overnight connections less two
+        result.put("score", 2 * flights.size() - 1);
+        result.put("distance", total);
+        return new MapResult(result);
+    }
+
+    // The fields asked for in a fixed order, so equal projections read the same
+    @Override
+    public String toString() {
+        StringJoiner fields = new StringJoiner(",");
+        boolean[] selected = {code, departsAt, arrivesAt, distance, origin, destination};
+        for (int i = 0; i < selected.length; i++) {
+            if (selected[i]) {
+                fields.add(FIELDS.get(i));
+            }
+        }
+        return fields.toString();
+    }
+
+    private static void putIfPresent(Map<String, Object> flightInfo, String field, Object value) {
+        if (value != null) {
+            flightInfo.put(field, value);
+        }
+    }
+}
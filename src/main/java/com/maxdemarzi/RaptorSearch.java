@@ -0,0 +1,199 @@
+package com.maxdemarzi;
+
+import com.maxdemarzi.results.MapResult;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+// A RAPTOR style, round based search over a Timetable snapshot.
+// Round k takes every itinerary of k - 1 legs that has not arrived yet and scans the departures it can still
+// connect to, so all non-stops are found before any one-stop and all one-stops before any two-stop.
+// Since fewer legs always rank first, the search stops after the round that fills recordLimit with itineraries
+// nothing longer could beat, and never looks at connections it could not use.
+// Partial itineraries are labels in primitive arrays: the Leg they end with, the day it departs on and the label
+// they extend, so nothing is allocated per connection and only the final winners become MapResults.
+// A label that still has to connect is dropped when recordLimit others of the same round already wait at the same
+// stop for the same pair, each arriving no later and ranking no worse so far. Whatever it could still connect to,
+// each of them can as well, into recordLimit itineraries at least as good.
+class RaptorSearch {
+    private static final long minimumConnectTime = 30L * 60L; // 30 minutes
+
+    private final Timetable timetable;
+    private final RouteCache routes;
+    private final Deadline deadline;
+    private final int recordLimit;
+    private final Itineraries best;
+
+    // The airport pairs being searched, each with the AirportDay it leaves from
+    private final ArrayList<RouteTemplate> templates = new ArrayList<>();
+    private int[] arrivals = new int[8];
+    private int[] departureDays = new int[8];
+
+    // Labels of every round so far, and the ones of the last round that may still connect onwards
+    private int labels;
+    private int[] labelLeg = new int[1024];
+    private int[] labelDay = new int[1024];
+    private int[] labelParent = new int[1024];
+    private int[] labelPair = new int[1024];
+    private int[] labelFirst = new int[1024];
+    private int[] labelDistance = new int[1024];
+    private int[] frontier = new int[1024];
+    private int frontierSize;
+    // The labels of this round waiting at each (pair, arrival AirportDay), the count first
+    private final HashMap<Long, int[]> waiting = new HashMap<>();
+    // Legs looked at so far, in any round, the deadline reads the clock every so many of them
+    private long steps;
+
+    private final int[] legs = new int[TimetableSearch.MAX_LEGS];
+    private final int[] legDays = new int[TimetableSearch.MAX_LEGS];
+
+    RaptorSearch(Timetable timetable, RouteCache routes, int recordLimit, Deadline deadline, Projection projection) {
+        this.timetable = timetable;
+        this.routes = routes;
+        this.deadline = deadline;
+        this.recordLimit = recordLimit;
+        this.best = new Itineraries(timetable, recordLimit, projection);
+    }
+
+    // Add one departure AirportDay key to one arrival airport code to the search
+    void add(String departureKey, String arrivalCode) {
+        int day = timetable.day(departureKey);
+        int arrival = timetable.airport(arrivalCode);
+        if (day < 0 || arrival < 0) {
+            return;
+        }
+
+        RouteTemplate template = routes.get(departureKey.substring(0, 3), arrivalCode);
+        if (template.isEmpty()) {
+            return;
+        }
+
+        int pair = templates.size();
+        if (pair == arrivals.length) {
+            arrivals = Arrays.copyOf(arrivals, pair * 2);
+            departureDays = Arrays.copyOf(departureDays, pair * 2);
+        }
+        templates.add(template);
+        arrivals[pair] = arrival;
+        departureDays[pair] = day;
+    }
+
+    ArrayList<MapResult> results() {
+        int[] next = new int[frontier.length];
+        for (int round = 0; round < TimetableSearch.MAX_LEGS && best.wants(round + 1); round++) {
+            int nextSize = 0;
+            waiting.clear();
+
+            int starts = round == 0 ? templates.size() : frontierSize;
+            for (int i = 0; i < starts; i++) {
+                int parent = round == 0 ? -1 : frontier[i];
+                int pair = round == 0 ? i : labelPair[parent];
+                int day = round == 0 ? departureDays[pair] : timetable.arrivalDay(labelLeg[parent]);
+                int first = round == 0 ? timetable.firstLeg(day)
+                        : timetable.firstDeparture(day, timetable.arrives(labelLeg[parent]) + minimumConnectTime);
+
+                RouteTemplate template = templates.get(pair);
+                int airport = timetable.airportId(timetable.dayAirport(day));
+                int last = timetable.firstLeg(day + 1);
+                for (int leg = first; leg < last; leg++) {
+                    // Stop if we are over our time limit
+                    if (deadline.expired(++steps)) {
+                        return best.results();
+                    }
+
+                    int destination = timetable.destination(leg);
+                    if (!template.allows(round, airport, timetable.airportId(destination))) {
+                        continue;
+                    }
+
+                    if (destination == arrivals[pair]) {
+                        offer(label(leg, day, parent, pair), round + 1);
+                    } else if (round + 1 < TimetableSearch.MAX_LEGS) {
+                        int firstLeg = parent < 0 ? leg : labelFirst[parent];
+                        int distance = (parent < 0 ? 0 : labelDistance[parent]) + timetable.distance(leg);
+                        long stop = ((long) pair << 32) | timetable.arrivalDay(leg);
+                        if (dominated(stop, timetable.arrives(leg), firstLeg, distance)) {
+                            continue;
+                        }
+
+                        int label = label(leg, day, parent, pair);
+                        waitAt(stop, label);
+                        if (nextSize == next.length) {
+                            next = Arrays.copyOf(next, nextSize * 2);
+                        }
+                        next[nextSize++] = label;
+                    }
+                }
+            }
+
+            int[] swap = frontier;
+            frontier = next;
+            frontierSize = nextSize;
+            next = swap.length >= frontier.length ? swap : new int[frontier.length];
+        }
+        return best.results();
+    }
+
+    private int label(int leg, int day, int parent, int pair) {
+        if (labels == labelLeg.length) {
+            int capacity = labels * 2;
+            labelLeg = Arrays.copyOf(labelLeg, capacity);
+            labelDay = Arrays.copyOf(labelDay, capacity);
+            labelParent = Arrays.copyOf(labelParent, capacity);
+            labelPair = Arrays.copyOf(labelPair, capacity);
+            labelFirst = Arrays.copyOf(labelFirst, capacity);
+            labelDistance = Arrays.copyOf(labelDistance, capacity);
+        }
+        labelLeg[labels] = leg;
+        labelDay[labels] = day;
+        labelParent[labels] = parent;
+        labelPair[labels] = pair;
+        labelFirst[labels] = parent < 0 ? leg : labelFirst[parent];
+        labelDistance[labels] = (parent < 0 ? 0 : labelDistance[parent]) + timetable.distance(leg);
+        return labels++;
+    }
+
+    // Whether recordLimit labels waiting at this stop arrive no later and rank no worse, the same as Itineraries
+    // would rank what they have flown so far: earliest departure, shortest distance, then first flight code
+    private boolean dominated(long stop, long arrives, int first, int distance) {
+        int[] others = waiting.get(stop);
+        if (others == null || others[0] < recordLimit) {
+            return false;
+        }
+
+        int dominating = 0;
+        for (int i = 1; i <= others[0]; i++) {
+            int label = others[i];
+            if (timetable.arrives(labelLeg[label]) <= arrives
+                    && best.compare(timetable.departsAt(labelFirst[label]), labelDistance[label], timetable.code(labelFirst[label]),
+                                    timetable.departsAt(first), distance, timetable.code(first)) <= 0
+                    && ++dominating == recordLimit) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void waitAt(long stop, int label) {
+        int[] others = waiting.get(stop);
+        if (others == null) {
+            others = new int[8];
+            waiting.put(stop, others);
+        } else if (others[0] + 1 == others.length) {
+            others = Arrays.copyOf(others, others.length * 2);
+            waiting.put(stop, others);
+        }
+        others[++others[0]] = label;
+    }
+
+    // Walk the label back to the departure to get the legs in flying order
+    private void offer(int label, int length) {
+        for (int i = length - 1; i >= 0; i--) {
+            legs[i] = labelLeg[label];
+            legDays[i] = labelDay[label];
+            label = labelParent[label];
+        }
+        best.offer(legs, legDays, length);
+    }
+}
@@ -0,0 +1,244 @@
+package com.maxdemarzi;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.maxdemarzi.results.MapResult;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// The finished, sorted itineraries of graph searches, so a search asked again is answered without touching the graph.
+// Entries are keyed by the departure and arrival airports in any order, the day, the record limit, the projection
+// and the longest layover.
+// Identical searches arriving together while the entry is missing wait for the first one instead of all searching.
+// Once a committed transaction creates, deletes or changes Legs, only the searches that could have used them are forgotten:
+// those of the days the Legs leave on and of the days before, since each Leg after the first may leave a day later
+// than the one before it lands, and a day more for every day its layover may run into.
+final class ResultCache {
+    private static final int DAYS_REACHED = TimetableSearch.MAX_LEGS - 1;
+    private static final long DAY = 24 * 60 * 60;
+
+    // Bounded by the number of itineraries kept rather than searches, a search of 500 weighs as much as 10 of 50
+    private static final long MAXIMUM_RESULTS = 200_000;
+
+    private static final ResultCache NONE = new ResultCache(null);
+    private static volatile ResultCache current = NONE;
+
+    private final String storeDir;
+    private final Cache<String, List<MapResult>> results = Caffeine.newBuilder()
+            .maximumWeight(MAXIMUM_RESULTS)
+            .weigher((String key, List<MapResult> value) -> value.size() + 1)
+            .expireAfterWrite(10, TimeUnit.MINUTES)
+            .recordStats()
+            .build();
+
+    // Bumped before and after every commit that touches Legs, a search that saw it move may have read either side
+    private final AtomicLong changes = new AtomicLong();
+
+    private ResultCache(String storeDir) {
+        this.storeDir = storeDir;
+    }
+
+    // The cache for this database, started empty and watching its transactions the first time it is asked for
+    static ResultCache of(GraphDatabaseAPI db) {
+        ResultCache cache = current;
+        if (!db.getStoreDir().equals(cache.storeDir)) {
+            synchronized (ResultCache.class) {
+                cache = current;
+                if (!db.getStoreDir().equals(cache.storeDir)) {
+                    cache = new ResultCache(db.getStoreDir());
+                    cache.watch(db);
+                    current = cache;
+                }
+            }
+        }
+        return cache;
+    }
+
+    interface Search {
+        List<MapResult> run() throws IOException;
+    }
+
+    // The cached results of this search, or the ones it finds now. Searches that ran out of time may be missing
+    // itineraries and searches that overlapped a change to Legs may be stale, those are returned but not kept.
+    List<MapResult> get(List<String> from, List<String> to, String day, int recordLimit, Deadline deadline,
+                        SearchOptions searchOptions, Search search) throws IOException {
+        List<List<MapResult>> found = new ArrayList<>(1);
+        try {
+            List<MapResult> cached = results.get(key(from, to, day, recordLimit, searchOptions), key -> {
+                long seen = changes.get();
+                List<MapResult> searched;
+                try {
+                    searched = frozen(search.run());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                found.add(searched);
+                boolean complete = !deadline.truncated();
+                return complete && changes.get() == seen ? searched : null;
+            });
+            return copies(cached != null ? cached : found.get(0));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    // Kept read only down to each flight, so nothing a search is handed can change what the next one gets
+    private static List<MapResult> frozen(List<MapResult> results) {
+        List<MapResult> frozen = new ArrayList<>(results.size());
+        for (MapResult result : results) {
+            Map<String, Object> value = new HashMap<>(result.value);
+            if (value.get("flights") instanceof List) {
+                List<Object> flights = new ArrayList<>();
+                for (Object flight : (List<?>) value.get("flights")) {
+                    flights.add(flight instanceof Map ? Collections.unmodifiableMap(new HashMap<>((Map<?, ?>) flight)) : flight);
+                }
+                value.put("flights", Collections.unmodifiableList(flights));
+            }
+            frozen.add(new MapResult(Collections.unmodifiableMap(value)));
+        }
+        return Collections.unmodifiableList(frozen);
+    }
+
+    // Every search gets results of its own to mark as truncated, sharing the read only flights
+    private static List<MapResult> copies(List<MapResult> results) {
+        List<MapResult> copies = new ArrayList<>(results.size());
+        for (MapResult result : results) {
+            copies.add(new MapResult(new HashMap<>(result.value)));
+        }
+        return copies;
+    }
+
+    void clear() {
+        changes.incrementAndGet();
+        results.invalidateAll();
+    }
+
+    Map<String, Object> stats() {
+        CacheStats stats = results.stats();
+        Map<String, Object> resultCache = new LinkedHashMap<>();
+        resultCache.put("size", results.estimatedSize());
+        resultCache.put("hits", stats.hitCount());
+        resultCache.put("misses", stats.missCount());
+        resultCache.put("hit_rate", stats.hitRate());
+        resultCache.put("evictions", stats.evictionCount());
+        return resultCache;
+    }
+
+    // The day comes first so invalidation can find it, the airports are sorted so their order does not matter
+    static String key(List<String> from, List<String> to, String day, int recordLimit, SearchOptions searchOptions) {
+        ArrayList<String> departures = new ArrayList<>(from);
+        ArrayList<String> arrivals = new ArrayList<>(to);
+        Collections.sort(departures);
+        Collections.sort(arrivals);
+        return day + "|" + String.join(",", departures) + "|" + String.join(",", arrivals) + "|" + recordLimit
+                + "|" + searchOptions.projection + "|" + searchOptions.maxLayover;
+    }
+
+    // How many days after its own the Legs of a search with this longest layover, in seconds, may leave on
+    private static long daysReached(long maxLayover) {
+        return DAYS_REACHED + (TimetableSearch.MAX_LEGS - 1) * ((maxLayover + DAY - 1) / DAY);
+    }
+
+    // Forget every search that could have reached a Leg leaving on one of these days
+    private void invalidateDays(Set<String> days) {
+        Set<LocalDate> changed = new HashSet<>();
+        for (String day : days) {
+            try {
+                changed.add(LocalDate.parse(day));
+            } catch (DateTimeParseException e) {
+                results.invalidateAll();
+                return;
+            }
+        }
+        results.asMap().keySet().removeIf(key -> reaches(key, changed));
+    }
+
+    private static boolean reaches(String key, Set<LocalDate> days) {
+        LocalDate searched;
+        try {
+            searched = LocalDate.parse(key.substring(0, key.indexOf('|')));
+        } catch (DateTimeParseException e) {
+            return true;
+        }
+        long reached = daysReached(Long.parseLong(key.substring(key.lastIndexOf('|') + 1)));
+        for (int after = 0; after <= reached; after++) {
+            if (days.contains(searched.plusDays(after))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void watch(GraphDatabaseAPI db) {
+        db.registerTransactionEventHandler(new TransactionEventHandler.Adapter<Set<String>>() {
+            @Override
+            public Set<String> beforeCommit(TransactionData data) throws Exception {
+                Set<String> days = changedDays(data);
+                if (!days.isEmpty()) {
+                    changes.incrementAndGet();
+                }
+                return days;
+            }
+
+            @Override
+            public void afterCommit(TransactionData data, Set<String> days) {
+                if (days != null && !days.isEmpty()) {
+                    changes.incrementAndGet();
+                    invalidateDays(days);
+                }
+            }
+        });
+    }
+
+    // The days Legs were added to, cancelled from or retimed on, read from the keys of the AirportDays they leave
+    private static Set<String> changedDays(TransactionData data) {
+        Set<String> days = new HashSet<>();
+        for (Relationship relationship : data.createdRelationships()) {
+            addDay(data, relationship, days);
+        }
+        for (Relationship relationship : data.deletedRelationships()) {
+            addDay(data, relationship, days);
+        }
+        for (PropertyEntry<Node> property : data.assignedNodeProperties()) {
+            addDay(data, property, days);
+        }
+        for (PropertyEntry<Node> property : data.removedNodeProperties()) {
+            addDay(data, property, days);
+        }
+        return days;
+    }
+
+    private static void addDay(TransactionData data, Relationship relationship, Set<String> days) {
+        if (!relationship.getType().name().endsWith("_FLIGHT")) {
+            return;
+        }
+        // From the AirportDay the Leg leaves or to the one it lands at, only the first says which searches used it
+        Node airportDay = relationship.getStartNode();
+        if (!data.isDeleted(airportDay) && airportDay.hasProperty("key")) {
+            days.add(((String) airportDay.getProperty("key")).substring(4));
+        }
+    }
+
+    private static void addDay(TransactionData data, PropertyEntry<Node> property, Set<String> days) {
+        if (!Timetable.isLegProperty(data, property)) {
+            return;
+        }
+        for (Relationship departure : property.entity().getRelationships(Direction.INCOMING)) {
+            addDay(data, departure, days);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.maxdemarzi;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import static com.maxdemarzi.Utilities.getMaxDistance;
+
+// Since Airports rarely stop having flights between each other, we will cache our first traversal.
+// A cache hit can save us around 40-80ms of query time, a miss is answered from the precomputed
+// route table when com.maxdemarzi.routes.precompute has been run and only traverses otherwise.
+// Each database has its own cache, loading with that database in a read transaction of its own, so it does not
+// matter which search thread misses. Templates older than REFRESH are reloaded on the refresh workers while
+// searches keep using the old one, only a template nobody asked for in an hour has to be loaded again in line.
+final class RouteCache {
+    private static final long REFRESH_MINUTES = 15;
+
+    // Caffeine runs its own maintenance on this pool as well as the reloads, so nothing handed to it may be dropped.
+    // When the workers fall this far behind, the search thread that asked does the work itself, which slows
+    // the searches down to what the pool can keep up with.
+    private static final int REFRESH_THREADS = 2;
+    private static final ExecutorService refreshPool = new ThreadPoolExecutor(REFRESH_THREADS, REFRESH_THREADS,
+            60L, TimeUnit.SECONDS, new ArrayBlockingQueue<>(1_000), runnable -> {
+                Thread thread = new Thread(runnable, "route-template-refresh");
+                thread.setDaemon(true);
+                return thread;
+            }, new ThreadPoolExecutor.CallerRunsPolicy());
+
+    private static final RouteCache NONE = new RouteCache(null);
+    private static volatile RouteCache current = NONE;
+
+    private final GraphDatabaseAPI db;
+    private final String storeDir;
+    private final LoadingCache<String, RouteTemplate> templates;
+
+    private RouteCache(GraphDatabaseAPI db) {
+        this.db = db;
+        this.storeDir = db == null ? null : db.getStoreDir();
+        this.templates = Caffeine.newBuilder()
+                .maximumSize(10_000)
+                .expireAfterWrite(1, TimeUnit.HOURS)
+                .refreshAfterWrite(REFRESH_MINUTES, TimeUnit.MINUTES)
+                .executor(refreshPool)
+                .recordStats()
+                .build(this::load);
+    }
+
+    // The cache for this database, started empty and following FLIES_TO changes the first time it is asked for
+    static RouteCache of(GraphDatabaseAPI db) {
+        RouteCache cache = current;
+        if (!db.getStoreDir().equals(cache.storeDir)) {
+            synchronized (RouteCache.class) {
+                cache = current;
+                if (!db.getStoreDir().equals(cache.storeDir)) {
+                    cache = new RouteCache(db);
+                    current = cache;
+                    CacheInvalidation.watch(db);
+                }
+            }
+        }
+        return cache;
+    }
+
+    RouteTemplate get(String departureCode, String arrivalCode) {
+        long start = System.nanoTime();
+        RouteTemplate template = templates.get(departureCode + "-" + arrivalCode);
+        SearchMetrics.routeTemplate.record(SearchMetrics.micros(start));
+        return template;
+    }
+
+    boolean contains(String departureCode, String arrivalCode) {
+        return templates.getIfPresent(departureCode + "-" + arrivalCode) != null;
+    }
+
+    // Forget the templates of these "AAA-BBB" airport pairs
+    void invalidate(Set<String> keys) {
+        templates.invalidateAll(keys);
+    }
+
+    void clear() {
+        templates.invalidateAll();
+    }
+
+    Map<String, Object> stats() {
+        CacheStats stats = templates.stats();
+        Map<String, Object> routeCache = new LinkedHashMap<>();
+        routeCache.put("size", templates.estimatedSize());
+        routeCache.put("hits", stats.hitCount());
+        routeCache.put("misses", stats.missCount());
+        routeCache.put("hit_rate", stats.hitRate());
+        routeCache.put("evictions", stats.evictionCount());
+        routeCache.put("average_load_us", TimeUnit.NANOSECONDS.toMicros((long) stats.averageLoadPenalty()));
+        return routeCache;
+    }
+
+    // Inside a search this joins its transaction, on a refresh worker it is a transaction of its own
+    private RouteTemplate load(String key) {
+        long start = System.nanoTime();
+        RouteTemplate template;
+        try (Transaction tx = db.beginTx()) {
+            template = load(key.substring(0, 3), key.substring(4, 7));
+            tx.success();
+        }
+        SearchMetrics.routeTemplateLoad.record(SearchMetrics.micros(start));
+        return template;
+    }
+
+    private RouteTemplate load(String departureCode, String arrivalCode) {
+        RouteTemplate precomputed = RouteTable.of(db).template(departureCode, arrivalCode);
+        if (precomputed != null) {
+            return precomputed;
+        }
+
+        // calculate valid Relationships
+        Node departureAirport = db.findNode(Labels.Airport, "code", departureCode);
+        Node arrivalAirport = db.findNode(Labels.Airport, "code", arrivalCode);
+        Double maxDistance = getMaxDistance(departureAirport, arrivalAirport);
+        return Flights.getValidPaths(db, departureAirport, arrivalAirport, maxDistance);
+    }
+}
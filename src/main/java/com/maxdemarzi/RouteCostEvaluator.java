@@ -5,8 +5,14 @@ import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.Relationship;
 
 class RouteCostEvaluator implements CostEvaluator<Double> {
+    private final LegCache legs;
+
+    RouteCostEvaluator(LegCache legs) {
+        this.legs = legs;
+    }
+
     @Override
     public Double getCost(Relationship relationship, Direction direction) {
-        return ((Number) relationship.getEndNode().getProperty("distance", 0)).doubleValue();
+        return (double) legs.distance(relationship.getEndNode());
     }
 }
@@ -0,0 +1,222 @@
+package com.maxdemarzi;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Route templates for every airport pair, precomputed by com.maxdemarzi.routes.precompute and kept in a
+// file next to the store so they survive restarts. Each pair keeps its routes packed in a single int array
+// (length followed by the airport ids of each route) and is only compiled into a RouteTemplate on a cache miss.
+final class RouteTable {
+    static final String FILE_NAME = "route-templates.bin";
+    private static final int MAGIC = 0x526f7574; // "Rout"
+    private static final int VERSION = 1;
+
+    private static final RouteTable NONE = new RouteTable(null, Collections.emptySet(), new ConcurrentHashMap<>(), new ConcurrentHashMap<>());
+    private static volatile RouteTable current = NONE;
+    private static final AtomicLong marks = new AtomicLong();
+
+    private final String storeDir;
+    private final Set<Integer> airports;
+    private final ConcurrentHashMap<Long, int[]> routes;
+
+    // Departures whose FLIES_TO changed in a committed transaction and have not been refreshed yet, with the mark they
+    // were last forgotten under. Their templates are worked out from the graph in the meantime.
+    // Every table saved for the same store shares these, so a table saved while departures are forgotten keeps them.
+    private final ConcurrentHashMap<Integer, Long> stale;
+
+    private RouteTable(String storeDir, Set<Integer> airports, ConcurrentHashMap<Long, int[]> routes,
+                       ConcurrentHashMap<Integer, Long> stale) {
+        this.storeDir = storeDir;
+        this.airports = airports;
+        this.routes = routes;
+        this.stale = stale;
+    }
+
+    // The table for this database, read from disk the first time it is asked for
+    static RouteTable of(GraphDatabaseAPI db) {
+        RouteTable table = current;
+        if (!db.getStoreDir().equals(table.storeDir)) {
+            synchronized (RouteTable.class) {
+                table = current;
+                if (!db.getStoreDir().equals(table.storeDir)) {
+                    table = load(db.getStoreDir());
+                    current = table;
+                }
+            }
+        }
+        return table;
+    }
+
+    static long key(int departure, int arrival) {
+        return ((long) departure << 32) | (arrival & 0xffffffffL);
+    }
+
+    // The precomputed template for a pair, or null if these airports were not around when the table was built
+    RouteTemplate template(String departureCode, String arrivalCode) {
+        int departure = AirportIds.of(departureCode);
+        int arrival = AirportIds.of(arrivalCode);
+        if (!airports.contains(departure) || !airports.contains(arrival) || stale.containsKey(departure)) {
+            return null;
+        }
+
+        int[] packed = routes.get(key(departure, arrival));
+        if (packed == null) {
+            return RouteTemplate.EMPTY;
+        }
+
+        RouteTemplate.Builder builder = new RouteTemplate.Builder();
+        for (int i = 0; i < packed.length; i += packed[i] + 1) {
+            builder.add(Arrays.copyOfRange(packed, i + 1, i + 1 + packed[i]));
+        }
+        return builder.build();
+    }
+
+    int size() {
+        return routes.size();
+    }
+
+    // The codes of the airports the table was built with
+    Set<String> departures() {
+        Set<String> codes = new HashSet<>();
+        for (Integer airport : airports) {
+            codes.add(AirportIds.code(airport));
+        }
+        return codes;
+    }
+
+    // Recompute the routes leaving these airports after their FLIES_TO relationships changed and write the table again.
+    // Airports that were not around when the table was built are left to be traversed on demand.
+    // If that fails, they stay forgotten and are traversed on demand.
+    // A departure forgotten again while it is being refreshed stays forgotten until the refresh after that one.
+    void refresh(GraphDatabaseService db, Set<String> departureCodes) throws IOException {
+        HashMap<Integer, Long> seen = new HashMap<>();
+        for (String code : departureCodes) {
+            Long mark = stale.get(AirportIds.of(code));
+            if (mark != null) {
+                seen.put(AirportIds.of(code), mark);
+            }
+        }
+
+        refreshRoutes(db, departureCodes);
+        for (Map.Entry<Integer, Long> entry : seen.entrySet()) {
+            stale.remove(entry.getKey(), entry.getValue());
+        }
+    }
+
+    // Stop answering for these departures until they are refreshed
+    void forget(Set<String> departureCodes) {
+        for (String code : departureCodes) {
+            stale.put(AirportIds.of(code), marks.incrementAndGet());
+        }
+    }
+
+    private void refreshRoutes(GraphDatabaseService db, Set<String> departureCodes) throws IOException {
+        if (storeDir == null || airports.isEmpty()) {
+            return;
+        }
+
+        boolean refreshed = false;
+        for (String code : departureCodes) {
+            int departure = AirportIds.of(code);
+            Node airport = db.findNode(Labels.Airport, "code", code);
+            if (airport == null || !airports.contains(departure)) {
+                continue;
+            }
+
+            HashMap<Long, int[]> fresh = new HashMap<>();
+            Routes.routesFrom(db, airport.getId(), fresh);
+            routes.keySet().removeIf(key -> (int) (key >>> 32) == departure);
+            routes.putAll(fresh);
+            refreshed = true;
+        }
+
+        if (refreshed) {
+            save(storeDir, airports, routes);
+        }
+    }
+
+    // Write a freshly computed table to the store directory and start using it right away, still forgetting the
+    // departures the table it replaces was told to forget
+    static RouteTable save(String storeDir, Set<Integer> airports, ConcurrentHashMap<Long, int[]> routes) throws IOException {
+        Path file = Paths.get(storeDir, FILE_NAME);
+        Path temporary = Paths.get(storeDir, FILE_NAME + ".tmp");
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+
+            // Airport ids are only good for this JVM, so write the codes they stand for
+            out.writeInt(airports.size());
+            for (Integer airport : airports) {
+                out.writeInt(airport);
+                out.writeUTF(AirportIds.code(airport));
+            }
+
+            out.writeInt(routes.size());
+            for (Map.Entry<Long, int[]> entry : routes.entrySet()) {
+                out.writeLong(entry.getKey());
+                out.writeInt(entry.getValue().length);
+                for (int value : entry.getValue()) {
+                    out.writeInt(value);
+                }
+            }
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        RouteTable previous = current;
+        RouteTable table = new RouteTable(storeDir, airports, routes,
+                storeDir.equals(previous.storeDir) ? previous.stale : new ConcurrentHashMap<>());
+        current = table;
+        return table;
+    }
+
+    private static RouteTable load(String storeDir) {
+        Path file = Paths.get(storeDir, FILE_NAME);
+        if (!Files.exists(file)) {
+            return new RouteTable(storeDir, Collections.emptySet(), new ConcurrentHashMap<>(), new ConcurrentHashMap<>());
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return new RouteTable(storeDir, Collections.emptySet(), new ConcurrentHashMap<>(), new ConcurrentHashMap<>());
+            }
+
+            // Translate the ids in the file to the ids of this JVM
+            int airportCount = in.readInt();
+            HashMap<Integer, Integer> ids = new HashMap<>();
+            for (int i = 0; i < airportCount; i++) {
+                int id = in.readInt();
+                ids.put(id, AirportIds.of(in.readUTF()));
+            }
+
+            int pairCount = in.readInt();
+            ConcurrentHashMap<Long, int[]> routes = new ConcurrentHashMap<>(pairCount);
+            for (int i = 0; i < pairCount; i++) {
+                long key = in.readLong();
+                int[] packed = new int[in.readInt()];
+                for (int j = 0; j < packed.length; j++) {
+                    packed[j] = in.readInt();
+                }
+                for (int j = 0; j < packed.length; j += packed[j] + 1) {
+                    for (int k = j + 1; k <= j + packed[j]; k++) {
+                        packed[k] = ids.get(packed[k]);
+                    }
+                }
+                routes.put(key(ids.get((int) (key >>> 32)), ids.get((int) key)), packed);
+            }
+            return new RouteTable(storeDir, new HashSet<>(ids.values()), routes, new ConcurrentHashMap<>());
+        } catch (IOException e) {
+            return new RouteTable(storeDir, Collections.emptySet(), new ConcurrentHashMap<>(), new ConcurrentHashMap<>());
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.maxdemarzi;
+
+import org.neo4j.graphdb.RelationshipType;
+
+import java.util.*;
+
+// The valid airport to airport routes between two airports, compiled into arrays.
+// At every hop we keep the sorted ids of the airports we may be at, and for each of them
+// the prebuilt array of "<CODE>_FLIGHT" types we are allowed to take next.
+final class RouteTemplate {
+    static final RelationshipType[] NONE = new RelationshipType[0];
+    static final RouteTemplate EMPTY = new RouteTemplate(new int[0][], new RelationshipType[0][][], new int[0][][]);
+
+    private final int[][] airports;
+    private final RelationshipType[][][] allowed;
+    private final int[][][] next;
+
+    private RouteTemplate(int[][] airports, RelationshipType[][][] allowed, int[][][] next) {
+        this.airports = airports;
+        this.allowed = allowed;
+        this.next = next;
+    }
+
+    boolean isEmpty() {
+        return airports.length == 0;
+    }
+
+    int hops() {
+        return airports.length;
+    }
+
+    // The flight types we may take from an airport at this hop of the route
+    RelationshipType[] allowed(int hop, int airport) {
+        if (hop >= airports.length || airport < 0) {
+            return NONE;
+        }
+        int index = Arrays.binarySearch(airports[hop], airport);
+        return index < 0 ? NONE : allowed[hop][index];
+    }
+
+    // Whether we may fly from one airport to another at this hop of the route, for engines that don't expand relationships
+    boolean allows(int hop, int airport, int nextAirport) {
+        if (hop >= airports.length || airport < 0 || nextAirport < 0) {
+            return false;
+        }
+        int index = Arrays.binarySearch(airports[hop], airport);
+        return index >= 0 && Arrays.binarySearch(next[hop][index], nextAirport) >= 0;
+    }
+
+    // Every hop as the codes of the airports we may be at, each with the codes of the airports we may fly on to
+    List<Map<String, List<String>>> describe() {
+        List<Map<String, List<String>>> hops = new ArrayList<>();
+        for (int hop = 0; hop < airports.length; hop++) {
+            Map<String, List<String>> validAt = new TreeMap<>();
+            for (int index = 0; index < airports[hop].length; index++) {
+                List<String> codes = new ArrayList<>();
+                for (int airport : next[hop][index]) {
+                    codes.add(AirportIds.code(airport));
+                }
+                validAt.put(AirportIds.code(airports[hop][index]), codes);
+            }
+            hops.add(validAt);
+        }
+        return hops;
+    }
+
+    static class Builder {
+        private final ArrayList<TreeMap<Integer, LinkedHashSet<Integer>>> hops = new ArrayList<>();
+
+        // Add a route given as the ids of the airports along it, departure first
+        Builder add(int[] route) {
+            for (int hop = 0; hop < route.length - 1; hop++) {
+                if (hops.size() <= hop) {
+                    hops.add(new TreeMap<>());
+                }
+                hops.get(hop).computeIfAbsent(route[hop], k -> new LinkedHashSet<>()).add(route[hop + 1]);
+            }
+            return this;
+        }
+
+        RouteTemplate build() {
+            if (hops.isEmpty()) {
+                return EMPTY;
+            }
+
+            int[][] airports = new int[hops.size()][];
+            RelationshipType[][][] allowed = new RelationshipType[hops.size()][][];
+            int[][][] next = new int[hops.size()][][];
+            for (int hop = 0; hop < hops.size(); hop++) {
+                TreeMap<Integer, LinkedHashSet<Integer>> validAt = hops.get(hop);
+                airports[hop] = new int[validAt.size()];
+                allowed[hop] = new RelationshipType[validAt.size()][];
+                next[hop] = new int[validAt.size()][];
+                int index = 0;
+                for (Map.Entry<Integer, LinkedHashSet<Integer>> entry : validAt.entrySet()) {
+                    airports[hop][index] = entry.getKey();
+                    RelationshipType[] types = new RelationshipType[entry.getValue().size()];
+                    int[] ids = new int[entry.getValue().size()];
+                    int count = 0;
+                    for (Integer airport : entry.getValue()) {
+                        ids[count] = airport;
+                        types[count++] = AirportIds.flightType(airport);
+                    }
+                    Arrays.sort(ids);
+                    next[hop][index] = ids;
+                    allowed[hop][index++] = types;
+                }
+            }
+            return new RouteTemplate(airports, allowed, next);
+        }
+    }
+}
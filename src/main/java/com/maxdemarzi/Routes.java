@@ -0,0 +1,125 @@
+package com.maxdemarzi;
+
+import com.maxdemarzi.results.StringResult;
+import org.neo4j.graphdb.*;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+import org.neo4j.logging.Log;
+import org.neo4j.procedure.*;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Stream;
+
+import static com.maxdemarzi.Utilities.getMaxDistance;
+
+public class Routes {
+
+    @Context
+    public GraphDatabaseAPI db;
+
+    @Context
+    public Log log;
+
+    // Routes may have at most 2 stops, so 3 FLIES_TO hops
+    private static final int MAX_HOPS = 3;
+
+    @Description("com.maxdemarzi.routes.precompute() | Precompute route templates between every pair of Airports")
+    @Procedure(name = "com.maxdemarzi.routes.precompute", mode = Mode.READ)
+    public Stream<StringResult> precompute() throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        GraphDatabaseAPI database = Utilities.database(db);
+
+        ArrayList<Long> airportIds = new ArrayList<>();
+        Set<Integer> airports = new HashSet<>();
+        try (Transaction tx = db.beginTx()) {
+            for (ResourceIterator<Node> it = db.findNodes(Labels.Airport); it.hasNext(); ) {
+                Node airport = it.next();
+                airportIds.add(airport.getId());
+                airports.add(AirportIds.of((String) airport.getProperty("code")));
+            }
+            tx.success();
+        }
+
+        // Every departure airport is walked on its own thread in its own read transaction
+        ConcurrentHashMap<Long, int[]> routes = new ConcurrentHashMap<>();
+        ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            ArrayList<Future<?>> futures = new ArrayList<>();
+            for (Long airportId : airportIds) {
+                futures.add(pool.submit(() -> routesFrom(database, airportId, routes)));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Route precomputation failed", e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+
+        RouteTable.save(db.getStoreDir(), airports, routes);
+        Flights.clearRouteCache(database);
+        ResultCache.of(database).clear();
+
+        long timeTaken = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start);
+        log.info("Precomputed " + routes.size() + " route templates for " + airports.size() + " airports");
+        return Stream.of(new StringResult(routes.size() + " Route templates for " + airports.size() +
+                " Airports precomputed in " + timeTaken + " Seconds"));
+    }
+
+    // Walk every FLIES_TO path of up to 3 hops from this airport and keep the ones short enough for where they end
+    static void routesFrom(GraphDatabaseService db, long airportId, Map<Long, int[]> routes) {
+        try (Transaction tx = db.beginTx()) {
+            Node departure = db.getNodeById(airportId);
+            int[] airports = new int[MAX_HOPS + 1];
+            airports[0] = AirportIds.of((String) departure.getProperty("code"));
+
+            HashMap<Integer, ArrayList<int[]>> found = new HashMap<>();
+            walk(departure, departure, airports, 0, 0D, new HashMap<>(), found);
+
+            for (Map.Entry<Integer, ArrayList<int[]>> entry : found.entrySet()) {
+                int size = 0;
+                for (int[] route : entry.getValue()) {
+                    size += route.length + 1;
+                }
+                int[] packed = new int[size];
+                int position = 0;
+                for (int[] route : entry.getValue()) {
+                    packed[position++] = route.length;
+                    System.arraycopy(route, 0, packed, position, route.length);
+                    position += route.length;
+                }
+                routes.put(RouteTable.key(airports[0], entry.getKey()), packed);
+            }
+            tx.success();
+        }
+    }
+
+    private static void walk(Node departure, Node current, int[] airports, int depth, Double distance,
+                             HashMap<Long, Double> maxDistances, HashMap<Integer, ArrayList<int[]>> found) {
+        for (Relationship flight : current.getRelationships(Direction.OUTGOING, RelationshipTypes.FLIES_TO)) {
+            Node next = flight.getEndNode();
+            int airport = AirportIds.of((String) next.getProperty("code"));
+
+            // Never visit the same airport twice on a route
+            boolean visited = false;
+            for (int i = 0; i <= depth; i++) {
+                visited |= airports[i] == airport;
+            }
+            if (visited) {
+                continue;
+            }
+
+            airports[depth + 1] = airport;
+            Double total = distance + (Double) flight.getProperty("distance", 25000D);
+            Double maxDistance = maxDistances.computeIfAbsent(next.getId(), id -> getMaxDistance(departure, next));
+            if (total < maxDistance) {
+                found.computeIfAbsent(airport, k -> new ArrayList<>()).add(Arrays.copyOf(airports, depth + 2));
+            }
+            if (depth + 1 < MAX_HOPS) {
+                walk(departure, next, airports, depth + 1, total, maxDistances, found);
+            }
+        }
+    }
+}
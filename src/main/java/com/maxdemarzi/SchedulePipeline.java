@@ -0,0 +1,143 @@
+package com.maxdemarzi;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Reads a flight schedule csv on a thread of its own and hands its rows in chunks to the parser threads, which
+// expand them into the Legs they fly on each day of operation. The date and timezone math is done by the time the
+// single writer iterating over the pipeline gets to a row, one list of Legs per row, in the order of the file.
+// At most QUEUED_CHUNKS are read ahead of the writer, after that the reader waits for it to catch up.
+final class SchedulePipeline implements Iterable<List<LegRecord>>, AutoCloseable {
+    static final int CHUNK_ROWS = 500;
+    private static final int PARSERS = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+    static final int QUEUED_CHUNKS = PARSERS * 4;
+
+    // Handed over after the last chunk
+    private static final Future<List<List<LegRecord>>> END = CompletableFuture.completedFuture(null);
+
+    private final CSVParser records;
+    private final ExecutorService parsers;
+    private final BlockingQueue<Future<List<List<LegRecord>>>> chunks = new ArrayBlockingQueue<>(QUEUED_CHUNKS);
+    private final Thread reader;
+
+    // Opens the file and reads its header on the calling thread, so a missing file fails right away
+    SchedulePipeline(String file) throws IOException {
+        this.records = CSVFormat.EXCEL.withHeader().parse(new FileReader(file));
+        AtomicInteger count = new AtomicInteger();
+        this.parsers = Executors.newFixedThreadPool(PARSERS, runnable -> {
+            Thread thread = new Thread(runnable, "schedule-parser-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.reader = new Thread(this::read, "schedule-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private void read() {
+        try {
+            try {
+                ArrayList<CSVRecord> chunk = new ArrayList<>(CHUNK_ROWS);
+                for (CSVRecord record : records) {
+                    chunk.add(record);
+                    if (chunk.size() == CHUNK_ROWS) {
+                        parse(chunk);
+                        chunk = new ArrayList<>(CHUNK_ROWS);
+                    }
+                }
+                if (!chunk.isEmpty()) {
+                    parse(chunk);
+                }
+                chunks.put(END);
+            } catch (RuntimeException e) {
+                // The csv could not be read, the writer finds out when it gets this far
+                CompletableFuture<List<List<LegRecord>>> failed = new CompletableFuture<>();
+                failed.completeExceptionally(e);
+                chunks.put(failed);
+            }
+        } catch (InterruptedException e) {
+            // Closed before the whole file was read
+        }
+    }
+
+    private void parse(List<CSVRecord> chunk) throws InterruptedException {
+        chunks.put(parsers.submit(() -> {
+            ArrayList<List<LegRecord>> legs = new ArrayList<>(chunk.size());
+            for (CSVRecord record : chunk) {
+                try {
+                    legs.add(FlightSchedule.legs(record));
+                } catch (RuntimeException e) {
+                    throw new IllegalArgumentException("Could not read row " + record.getRecordNumber()
+                            + " of the flight schedule: " + e.getMessage(), e);
+                }
+            }
+            return legs;
+        }));
+    }
+
+    // The Legs of each row in turn, waiting for them if the parsers are behind
+    @Override
+    public Iterator<List<LegRecord>> iterator() {
+        return new Iterator<List<LegRecord>>() {
+            private Iterator<List<LegRecord>> chunk = Collections.emptyIterator();
+            private boolean done;
+
+            @Override
+            public boolean hasNext() {
+                while (!chunk.hasNext() && !done) {
+                    List<List<LegRecord>> next = take();
+                    if (next == null) {
+                        done = true;
+                    } else {
+                        chunk = next.iterator();
+                    }
+                }
+                return chunk.hasNext();
+            }
+
+            @Override
+            public List<LegRecord> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return chunk.next();
+            }
+        };
+    }
+
+    private List<List<LegRecord>> take() {
+        try {
+            return chunks.take().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for the flight schedule", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Could not read the flight schedule", e.getCause());
+        }
+    }
+
+    // Stops the reader wherever it is and waits for it, so nothing is handed to the parsers or read from the file
+    // once they are shut down and closed
+    @Override
+    public void close() throws IOException {
+        reader.interrupt();
+        try {
+            reader.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            parsers.shutdownNow();
+            records.close();
+        }
+    }
+}
@@ -2,6 +2,7 @@ package com.maxdemarzi;
 
 import com.maxdemarzi.results.ListResult;
 import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
 import org.neo4j.logging.Log;
 import org.neo4j.procedure.Context;
 import org.neo4j.procedure.Description;
@@ -10,7 +11,9 @@ import org.neo4j.procedure.Procedure;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Stream;
 
 public class Schema {
@@ -25,25 +28,25 @@ public class Schema {
     @Context
     public Log log;
 
+    // The property that must be unique for each label, shared with the offline BulkLoader
+    static final Map<Label, String> UNIQUE_PROPERTIES = new LinkedHashMap<Label, String>() {{
+        put(Labels.Airport, "code");
+        put(Labels.AirportDay, "key");
+    }};
+
     @Description("com.maxdemarzi.generateSchema() | Creates schema for SecurityUser and SecurityGroup")
     @Procedure(name = "com.maxdemarzi.generateSchema", mode = Mode.SCHEMA)
     public Stream<ListResult> generateSchema() throws IOException {
         List<Object> results = new ArrayList<>();
 
         org.neo4j.graphdb.schema.Schema schema = db.schema();
-        if (!schema.getConstraints(Labels.Airport).iterator().hasNext()) {
-            schema.constraintFor(Labels.Airport)
-                    .assertPropertyIsUnique("code")
-                    .create();
-            results.add("(:Airport {code}) constraint created");
-        }
-
-        if (!schema.getConstraints(Labels.AirportDay).iterator().hasNext()) {
-            schema.constraintFor(Labels.AirportDay)
-                    .assertPropertyIsUnique("key")
-                    .create();
-
-            results.add("(:AirportDay {key}) constraint created");
+        for (Map.Entry<Label, String> unique : UNIQUE_PROPERTIES.entrySet()) {
+            if (!schema.getConstraints(unique.getKey()).iterator().hasNext()) {
+                schema.constraintFor(unique.getKey())
+                        .assertPropertyIsUnique(unique.getValue())
+                        .create();
+                results.add("(:" + unique.getKey().name() + " {" + unique.getValue() + "}) constraint created");
+            }
         }
 
         log.info("Flight Search Schema Created");
@@ -0,0 +1,52 @@
+package com.maxdemarzi;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Where flight searches spend their time, recorded by every search since the plugin was deployed.
+// Timings are in microseconds, per search for the whole search or batch of searches, the sort and the materialization of the results,
+// per airport pair for the rest.
+final class SearchMetrics {
+    static final Histogram search = new Histogram();
+    static final Histogram batch = new Histogram();
+    static final Histogram airportDayLookup = new Histogram();
+    static final Histogram routeTemplate = new Histogram();
+    static final Histogram routeTemplateLoad = new Histogram();
+    static final Histogram expansion = new Histogram();
+    static final Histogram materialization = new Histogram();
+    static final Histogram sort = new Histogram();
+
+    // How many times the PathRestrictedExpander was asked to expand a path in each airport pair search
+    static final Histogram expansions = new Histogram();
+
+    // Airport pair searches the PathRestrictedExpander stopped because they ran out of time
+    static final LongAdder timedOut = new LongAdder();
+
+    private SearchMetrics() {
+    }
+
+    static long micros(long startNanos) {
+        return TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+    }
+
+    // Everything recorded so far, one entry per histogram
+    static Map<String, Object> snapshot() {
+        Map<String, Object> phases = new LinkedHashMap<>();
+        phases.put("airport_day_lookup", airportDayLookup.snapshot());
+        phases.put("route_template", routeTemplate.snapshot());
+        phases.put("route_template_load", routeTemplateLoad.snapshot());
+        phases.put("expansion", expansion.snapshot());
+        phases.put("sort", sort.snapshot());
+        phases.put("materialization", materialization.snapshot());
+
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("search_us", search.snapshot());
+        snapshot.put("batch_us", batch.snapshot());
+        snapshot.put("phases_us", phases);
+        snapshot.put("expansions", expansions.snapshot());
+        snapshot.put("timed_out", timedOut.sum());
+        return snapshot;
+    }
+}
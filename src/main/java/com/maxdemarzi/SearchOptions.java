@@ -0,0 +1,89 @@
+package com.maxdemarzi;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+// Optional flight search settings passed in as a map, so new ones don't change the procedure signature
+class SearchOptions {
+    // Run each (departure AirportDay, arrival Airport) pair on the search worker pool
+    final boolean parallel;
+
+    // Which engine answers the search: "graph" walks the Legs in the graph, "timetable" walks the Timetable snapshot
+    // depth first and "raptor" searches the snapshot one round of connections at a time
+    static final String GRAPH = "graph";
+    static final String TIMETABLE = "timetable";
+    static final String RAPTOR = "raptor";
+    private static final List<String> ENGINES = Arrays.asList(GRAPH, TIMETABLE, RAPTOR);
+    final String engine;
+
+    // Search the graph one leg count at a time and stream each round of results as soon as it is final
+    final boolean stream;
+
+    // Which fields of each flight to return, a list of field names, all of them by default
+    final Projection projection;
+
+    // Profile the graph search of each airport pair and return that instead of itineraries
+    final boolean explain;
+
+    // The longest connection the graph search accepts, in minutes, up to a day. With one, connections can also
+    // cross midnight to Legs leaving the next day. Without one they are same day only, however long.
+    // Streamed searches and the timetable engines only connect on the same day, so they don't take one.
+    static final long NO_MAX_LAYOVER = 0;
+    private static final long MAX_LAYOVER_MINUTES = 24 * 60;
+    final long maxLayover;
+
+    SearchOptions(Map<String, Object> options) {
+        if (options == null) {
+            options = Collections.emptyMap();
+        }
+        this.parallel = Boolean.TRUE.equals(options.get("parallel"));
+        this.stream = Boolean.TRUE.equals(options.get("stream"));
+        this.projection = Projection.of(options.get("projection"));
+        this.explain = Boolean.TRUE.equals(options.get("explain"));
+        this.maxLayover = maxLayover(options.get("maxLayover"));
+        this.engine = String.valueOf(options.getOrDefault("engine", GRAPH)).toLowerCase();
+        if (!ENGINES.contains(engine)) {
+            throw new IllegalArgumentException("Unknown search engine " + engine + ", use one of " + ENGINES);
+        }
+        if (maxLayover != NO_MAX_LAYOVER && (stream || !GRAPH.equals(engine))) {
+            throw new IllegalArgumentException("The maxLayover only applies to the graph search, not to "
+                    + (stream ? "streamed searches" : "the " + engine + " engine"));
+        }
+    }
+
+    // The batch and range searches always search the graph pair by pair on the worker pool and return everything at
+    // once, so they turn down the options asking for anything else instead of ignoring them
+    void requirePairSearch(String search) {
+        List<String> rejected = new ArrayList<>();
+        if (!GRAPH.equals(engine)) {
+            rejected.add("engine");
+        }
+        if (stream) {
+            rejected.add("stream");
+        }
+        if (parallel) {
+            rejected.add("parallel");
+        }
+        if (explain) {
+            rejected.add("explain");
+        }
+        if (!rejected.isEmpty()) {
+            throw new IllegalArgumentException("A " + search + " only takes the projection and maxLayover options, not " + rejected);
+        }
+    }
+
+    // In seconds, like the departs and arrives of the Legs
+    private static long maxLayover(Object minutes) {
+        if (minutes == null) {
+            return NO_MAX_LAYOVER;
+        }
+        if (!(minutes instanceof Number) || ((Number) minutes).longValue() <= 0
+                || ((Number) minutes).longValue() > MAX_LAYOVER_MINUTES) {
+            throw new IllegalArgumentException("The maxLayover is from 1 to " + MAX_LAYOVER_MINUTES + " minutes, not " + minutes);
+        }
+        return ((Number) minutes).longValue() * 60L;
+    }
+}
@@ -0,0 +1,106 @@
+package com.maxdemarzi;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+// Admission control for the flight search procedures. At most MAX_RUNNING searches run at once and up to MAX_QUEUED
+// more wait for one of them to finish, but never past their own deadline. Any search beyond that is turned away
+// at once, so a spike queues briefly or is rejected instead of every search sharing the machine and timing out together.
+// Both limits are JVM system properties, set with dbms.jvm.additional in neo4j.conf:
+//
+//     dbms.jvm.additional=-Dcom.maxdemarzi.flights.maxRunning=16
+//     dbms.jvm.additional=-Dcom.maxdemarzi.flights.maxQueued=64
+final class SearchScheduler {
+    static final int MAX_RUNNING = Integer.getInteger("com.maxdemarzi.flights.maxRunning",
+            2 * Runtime.getRuntime().availableProcessors());
+    static final int MAX_QUEUED = Integer.getInteger("com.maxdemarzi.flights.maxQueued", 4 * MAX_RUNNING);
+
+    private static final Semaphore slots = new Semaphore(MAX_RUNNING, true);
+    private static final AtomicInteger queued = new AtomicInteger();
+    private static final LongAdder rejected = new LongAdder();
+    private static final Histogram wait = new Histogram();
+
+    // Lets go of the slots of streamed searches nobody finished reading by their deadline
+    private static final ScheduledThreadPoolExecutor expiry = new ScheduledThreadPoolExecutor(1, runnable -> {
+        Thread thread = new Thread(runnable, "search-slot-expiry");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        expiry.setRemoveOnCancelPolicy(true);
+    }
+
+    private SearchScheduler() {
+    }
+
+    // Held for as long as a search runs, closing it lets the next one in. Closing it again does nothing.
+    interface Slot extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    // A slot for a search that has to be done by its deadline, or an IllegalStateException if there is none to be had
+    static Slot admit(Deadline deadline) {
+        long start = System.nanoTime();
+        if (!slots.tryAcquire()) {
+            if (queued.incrementAndGet() > MAX_QUEUED) {
+                queued.decrementAndGet();
+                rejected.increment();
+                throw new IllegalStateException("Too many flight searches, " + MAX_RUNNING + " running and "
+                        + MAX_QUEUED + " waiting. Try again later.");
+            }
+            try {
+                if (!slots.tryAcquire(deadline.remaining(), TimeUnit.MILLISECONDS)) {
+                    rejected.increment();
+                    throw new IllegalStateException("Too many flight searches, none finished within the time limit. Try again later.");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted waiting to start a flight search", e);
+            } finally {
+                queued.decrementAndGet();
+            }
+        }
+        wait.record(SearchMetrics.micros(start));
+        AtomicBoolean closed = new AtomicBoolean();
+        return () -> {
+            if (closed.compareAndSet(false, true)) {
+                slots.release();
+            }
+        };
+    }
+
+    // Results that hold the slot until the last one is read or the stream is closed. Neo4j does neither when the
+    // query stops reading early, so the slot is let go at the deadline at the latest.
+    static <T> Stream<T> holding(Slot slot, Deadline deadline, Stream<T> results) {
+        ScheduledFuture<?> expired = expiry.schedule(slot::close, deadline.remaining(), TimeUnit.MILLISECONDS);
+        Runnable release = () -> {
+            expired.cancel(false);
+            slot.close();
+        };
+        return Stream.concat(results, Stream.of(release).flatMap(done -> {
+            done.run();
+            return Stream.<T>empty();
+        })).onClose(release);
+    }
+
+    static Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("max_running", MAX_RUNNING);
+        stats.put("max_queued", MAX_QUEUED);
+        stats.put("running", MAX_RUNNING - slots.availablePermits());
+        stats.put("queued", queued.get());
+        stats.put("rejected", rejected.sum());
+        stats.put("wait_us", wait.snapshot());
+        return stats;
+    }
+}
@@ -0,0 +1,142 @@
+package com.maxdemarzi;
+
+import com.maxdemarzi.results.MapResult;
+import org.neo4j.graphalgo.impl.util.PathImpl;
+import org.neo4j.graphdb.*;
+
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+// Searches the graph one leg count at a time and hands out the itineraries as soon as they are final.
+// Round k extends every itinerary of k - 1 legs that has not arrived yet by one more Leg, along the route template
+// and at least 30 minutes after landing. Every itinerary of k legs ranks before any with more, so once a round
+// is sorted its results can be streamed, and the next round only runs if the client still wants more.
+// Nothing is traversed past the round that brings the results streamed up to recordLimit.
+class StreamingSearch extends Spliterators.AbstractSpliterator<MapResult> {
+    private static final long minimumConnectTime = 30L * 60L; // 30 minutes
+
+    private final GraphDatabaseService db;
+    private final RouteCache routes;
+    private final LegCache legs;
+    private final Projection projection;
+    private final int recordLimit;
+    private final Deadline deadline;
+
+    // Itineraries that have not arrived yet and may still take another Leg
+    private ArrayList<Partial> frontier = new ArrayList<>();
+    private int round;
+    private boolean timedOut;
+    // Flights looked at so far, in any round, the deadline reads the clock every so many of them
+    private long steps;
+
+    // The sorted results of the last round, streamed from next
+    private final ArrayList<MapResult> ready = new ArrayList<>();
+    private int next;
+    private int streamed;
+
+    StreamingSearch(GraphDatabaseService db, RouteCache routes, LegCache legs, int recordLimit, Deadline deadline, Projection projection) {
+        super(recordLimit, Spliterator.ORDERED | Spliterator.NONNULL);
+        this.db = db;
+        this.routes = routes;
+        this.legs = legs;
+        this.projection = projection;
+        this.recordLimit = recordLimit;
+        this.deadline = deadline;
+    }
+
+    // Add one departure AirportDay to one arrival airport code to the search
+    void add(Node departureAirportDay, String departureCode, String arrivalCode) {
+        RouteTemplate template = routes.get(departureCode, arrivalCode);
+        if (!template.isEmpty()) {
+            frontier.add(new Partial(new PathImpl.Builder(departureAirportDay), departureAirportDay, null,
+                    AirportIds.of(departureCode), AirportIds.of(arrivalCode), template));
+        }
+    }
+
+    Stream<MapResult> stream() {
+        return StreamSupport.stream(this, false);
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super MapResult> action) {
+        while (next == ready.size()) {
+            if (streamed == recordLimit || frontier.isEmpty() || round == TimetableSearch.MAX_LEGS || timedOut) {
+                return false;
+            }
+            // Rounds run while the results are read, long after the procedure returned
+            try (Transaction tx = db.beginTx()) {
+                search();
+                tx.success();
+            }
+        }
+        streamed++;
+        action.accept(ready.get(next++));
+        return true;
+    }
+
+    // Run the next round, keeping only as many of its results as the client can still take
+    private void search() {
+        TopPaths arrived = new TopPaths(recordLimit - streamed, legs);
+        ArrayList<Partial> extended = new ArrayList<>();
+
+        partials:
+        for (Partial partial : frontier) {
+            RelationshipType[] valid = partial.template.allowed(round, partial.airport);
+            if (valid.length == 0) {
+                continue;
+            }
+            for (Relationship flight : partial.airportDay.getRelationships(Direction.OUTGOING, valid)) {
+                // Stop if we are over our time limit, whatever this round found so far is all we have
+                if (deadline.expired(++steps)) {
+                    timedOut = true;
+                    break partials;
+                }
+
+                Node leg = flight.getEndNode();
+                if (partial.leg != null && legs.arrives(partial.leg) + minimumConnectTime > legs.departs(leg)) {
+                    continue;
+                }
+
+                Relationship landing = leg.getSingleRelationship(flight.getType(), Direction.OUTGOING);
+                Node airportDay = landing.getEndNode();
+                int destination = AirportIds.of(flight.getType());
+                PathImpl.Builder path = partial.path.push(flight).push(landing);
+
+                if (destination == partial.arrival) {
+                    Relationship airport = airportDay.getSingleRelationship(RelationshipTypes.HAS_DAY, Direction.INCOMING);
+                    arrived.offer(path.push(airport).build());
+                } else if (round + 1 < TimetableSearch.MAX_LEGS) {
+                    extended.add(new Partial(path, airportDay, leg, destination, partial.arrival, partial.template));
+                }
+            }
+        }
+
+        ready.clear();
+        for (org.neo4j.graphdb.Path path : arrived.sorted()) {
+            ready.add(projection.toResult(path, legs));
+        }
+        next = 0;
+        frontier = extended;
+        round++;
+    }
+
+    private static final class Partial {
+        private final PathImpl.Builder path;
+        private final Node airportDay;
+        private final Node leg;
+        private final int airport;
+        private final int arrival;
+        private final RouteTemplate template;
+
+        private Partial(PathImpl.Builder path, Node airportDay, Node leg, int airport, int arrival, RouteTemplate template) {
+            this.path = path;
+            this.airportDay = airportDay;
+            this.leg = leg;
+            this.airport = airport;
+            this.arrival = arrival;
+            this.template = template;
+        }
+    }
+}
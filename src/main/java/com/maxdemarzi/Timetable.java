@@ -0,0 +1,514 @@
+package com.maxdemarzi;
+
+import org.neo4j.graphdb.*;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.kernel.impl.logging.LogService;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// A read only, columnar snapshot of every Leg in the graph, kept in a memory mapped file next to the store.
+// The Legs of each AirportDay sit next to each other sorted by departure, and each attribute the search
+// needs is its own column, so searching a day is a scan over a few primitive arrays instead of the store.
+// Once built for a database it is rebuilt in the background whenever a committed transaction touches Legs,
+// and the new snapshot replaces the old one in a single volatile write.
+final class Timetable {
+    static final String FILE_NAME = "timetable.bin";
+    private static final int MAGIC = 0x54696d65; // "Time"
+    private static final int VERSION = 1;
+
+    // Legs without a departs_at or arrives_at keep this in place of their local time
+    static final long NO_TIME = Long.MIN_VALUE;
+    static final int NO_CODE = -1;
+
+    static final String[] LEG_PROPERTIES = {"code", "departs", "arrives", "departs_at", "arrives_at", "distance"};
+
+    private static volatile Timetable current;
+    private static final Set<GraphDatabaseService> watched = Collections.newSetFromMap(new WeakHashMap<>());
+    private static final Object building = new Object();
+    private static final AtomicBoolean rebuildPending = new AtomicBoolean();
+    private static final ExecutorService builder = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "timetable-builder");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final String storeDir;
+    private final String[] airports;
+    private final int[] airportIds;
+    private final HashMap<String, Integer> airportIndex;
+    private final String[] codes;
+    private final HashMap<String, Integer> days;
+    private final int[] dayAirport;
+
+    private final IntBuffer firstLeg;
+    private final LongBuffer departs;
+    private final LongBuffer arrives;
+    private final LongBuffer departsAt;
+    private final LongBuffer arrivesAt;
+    private final IntBuffer arrivalDay;
+    private final IntBuffer destination;
+    private final IntBuffer distance;
+    private final IntBuffer code;
+
+    private Timetable(String storeDir, String[] airports, String[] codes, String[] dayKeys, MappedByteBuffer columns) {
+        this.storeDir = storeDir;
+        this.airports = airports;
+        this.codes = codes;
+
+        this.airportIds = new int[airports.length];
+        this.airportIndex = new HashMap<>();
+        for (int i = 0; i < airports.length; i++) {
+            airportIds[i] = AirportIds.of(airports[i]);
+            airportIndex.put(airports[i], i);
+        }
+
+        this.days = new HashMap<>();
+        this.dayAirport = new int[dayKeys.length];
+        for (int i = 0; i < dayKeys.length; i++) {
+            days.put(dayKeys[i], i);
+            dayAirport[i] = airportIndex.get(dayKeys[i].substring(0, 3));
+        }
+
+        int legs = (columns.capacity() - (dayKeys.length + 1) * 4) / 48;
+        int offset = 0;
+        this.firstLeg = ints(columns, offset, dayKeys.length + 1);
+        offset += (dayKeys.length + 1) * 4;
+        this.departs = longs(columns, offset, legs);
+        offset += legs * 8;
+        this.arrives = longs(columns, offset, legs);
+        offset += legs * 8;
+        this.departsAt = longs(columns, offset, legs);
+        offset += legs * 8;
+        this.arrivesAt = longs(columns, offset, legs);
+        offset += legs * 8;
+        this.arrivalDay = ints(columns, offset, legs);
+        offset += legs * 4;
+        this.destination = ints(columns, offset, legs);
+        offset += legs * 4;
+        this.distance = ints(columns, offset, legs);
+        offset += legs * 4;
+        this.code = ints(columns, offset, legs);
+    }
+
+    // The snapshot for this database, or null while there is none yet
+    static Timetable of(GraphDatabaseAPI db) throws IOException {
+        Timetable timetable = current;
+        if (timetable != null && db.getStoreDir().equals(timetable.storeDir)) {
+            return timetable;
+        }
+
+        synchronized (Timetable.class) {
+            timetable = current;
+            if (timetable == null || !db.getStoreDir().equals(timetable.storeDir)) {
+                Path file = Paths.get(db.getStoreDir(), FILE_NAME);
+                if (!Files.exists(file)) {
+                    return null;
+                }
+                timetable = load(db.getStoreDir(), file);
+                current = timetable;
+                watch(db);
+
+                // The file may be older than the store, bring it up to date without waiting for it
+                rebuildLater(db);
+            }
+        }
+        return timetable;
+    }
+
+    // Build a new snapshot from the graph, write it out and start answering from it.
+    // Must be called inside a transaction.
+    static Timetable build(GraphDatabaseAPI db) throws IOException {
+        synchronized (building) {
+            Path file = Paths.get(db.getStoreDir(), FILE_NAME);
+            Path temporary = Paths.get(db.getStoreDir(), FILE_NAME + ".tmp");
+            write(db, temporary);
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            Timetable timetable = load(db.getStoreDir(), file);
+            synchronized (Timetable.class) {
+                current = timetable;
+                watch(db);
+            }
+            return timetable;
+        }
+    }
+
+    // Rebuild on the builder thread, any number of requests made while one is waiting to start become a single rebuild
+    static void rebuildLater(GraphDatabaseAPI db) {
+        if (rebuildPending.compareAndSet(false, true)) {
+            builder.submit(() -> {
+                rebuildPending.set(false);
+                try (Transaction tx = db.beginTx()) {
+                    build(db);
+                    tx.success();
+                } catch (Exception e) {
+                    // Searches keep answering from the snapshot we have until the next change asks for another rebuild
+                    db.getDependencyResolver().resolveDependency(LogService.class).getUserLog(Timetable.class)
+                            .error("Could not rebuild the timetable, still answering from the last one", e);
+                }
+            });
+        }
+    }
+
+    int legs() {
+        return departs.limit();
+    }
+
+    int days() {
+        return dayAirport.length;
+    }
+
+    // Rebuild once a transaction that created, deleted or changed Legs has committed
+    private static void watch(GraphDatabaseAPI db) {
+        if (watched.add(db)) {
+            db.registerTransactionEventHandler(new TransactionEventHandler.Adapter<Boolean>() {
+                @Override
+                public Boolean beforeCommit(TransactionData data) throws Exception {
+                    return touchesLegs(data);
+                }
+
+                @Override
+                public void afterCommit(TransactionData data, Boolean touchesLegs) {
+                    if (Boolean.TRUE.equals(touchesLegs)) {
+                        rebuildLater(db);
+                    }
+                }
+            });
+        }
+    }
+
+    private static boolean touchesLegs(TransactionData data) {
+        for (Relationship relationship : data.createdRelationships()) {
+            if (relationship.getType().name().endsWith("_FLIGHT")) {
+                return true;
+            }
+        }
+        for (Relationship relationship : data.deletedRelationships()) {
+            if (relationship.getType().name().endsWith("_FLIGHT")) {
+                return true;
+            }
+        }
+        for (PropertyEntry<Node> property : data.assignedNodeProperties()) {
+            if (isLegProperty(data, property)) {
+                return true;
+            }
+        }
+        for (PropertyEntry<Node> property : data.removedNodeProperties()) {
+            if (isLegProperty(data, property)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Whether a property written or removed in the transaction is one the snapshot keeps for a Leg. Airports have
+    // a code too, so the node has to be a Leg. A deleted Leg is left out, its _FLIGHT relationships went with it.
+    static boolean isLegProperty(TransactionData data, PropertyEntry<Node> property) {
+        return Arrays.asList(LEG_PROPERTIES).contains(property.key())
+                && !data.isDeleted(property.entity())
+                && property.entity().hasLabel(Labels.Leg);
+    }
+
+    private static void write(GraphDatabaseService db, Path file) throws IOException {
+        // Number every AirportDay first so Legs can point at the day they arrive on
+        ArrayList<String> dayKeys = new ArrayList<>();
+        ArrayList<Long> dayNodes = new ArrayList<>();
+        HashMap<Long, Integer> dayOf = new HashMap<>();
+        LinkedHashMap<String, Integer> airports = new LinkedHashMap<>();
+        try (ResourceIterator<Node> airportDays = db.findNodes(Labels.AirportDay)) {
+            while (airportDays.hasNext()) {
+                Node airportDay = airportDays.next();
+                String key = (String) airportDay.getProperty("key");
+                dayOf.put(airportDay.getId(), dayKeys.size());
+                dayKeys.add(key);
+                dayNodes.add(airportDay.getId());
+                airports.putIfAbsent(key.substring(0, 3), airports.size());
+            }
+        }
+
+        LinkedHashMap<String, Integer> codes = new LinkedHashMap<>();
+        Columns columns = new Columns(dayKeys.size());
+        for (int day = 0; day < dayKeys.size(); day++) {
+            columns.firstLeg[day] = columns.size;
+
+            ArrayList<Node> legs = new ArrayList<>();
+            for (Relationship flight : db.getNodeById(dayNodes.get(day)).getRelationships(Direction.OUTGOING)) {
+                legs.add(flight.getEndNode());
+            }
+            legs.sort(Comparator.comparingLong(leg -> ((Number) leg.getProperty("departs", 0L)).longValue()));
+
+            for (Node leg : legs) {
+                Iterator<Relationship> arrival = leg.getRelationships(Direction.OUTGOING).iterator();
+                Integer arrivalDay = arrival.hasNext() ? dayOf.get(arrival.next().getEndNode().getId()) : null;
+                if (arrivalDay == null) {
+                    continue;
+                }
+
+                String flightCode = (String) leg.getProperty("code", null);
+                columns.add(((Number) leg.getProperty("departs", 0L)).longValue(),
+                        ((Number) leg.getProperty("arrives", 0L)).longValue(),
+                        localTime(leg.getProperty("departs_at", null)),
+                        localTime(leg.getProperty("arrives_at", null)),
+                        arrivalDay,
+                        airports.get(dayKeys.get(arrivalDay).substring(0, 3)),
+                        ((Number) leg.getProperty("distance", 0)).intValue(),
+                        flightCode == null ? NO_CODE : codes.computeIfAbsent(flightCode, k -> codes.size()));
+            }
+        }
+        columns.firstLeg[dayKeys.size()] = columns.size;
+
+        ByteArrayOutputStream strings = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(strings)) {
+            writeStrings(out, airports.keySet());
+            writeStrings(out, codes.keySet());
+            writeStrings(out, dayKeys);
+        }
+
+        long columnBytes = (dayKeys.size() + 1) * 4L + columns.size * 48L;
+        if (columnBytes > Integer.MAX_VALUE) {
+            throw new IOException("Timetable of " + columns.size + " Legs is too large to map");
+        }
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putInt(strings.size()).flip();
+            channel.write(header);
+            channel.write(ByteBuffer.wrap(strings.toByteArray()));
+
+            MappedByteBuffer out = channel.map(FileChannel.MapMode.READ_WRITE, columnsOffset(strings.size()), columnBytes);
+            out.order(ByteOrder.LITTLE_ENDIAN);
+            columns.write(out);
+            out.force();
+        }
+    }
+
+    private static Timetable load(String storeDir, Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+            while (header.hasRemaining() && channel.read(header) >= 0) { }
+            header.flip();
+            if (header.remaining() < 12 || header.getInt() != MAGIC || header.getInt() != VERSION) {
+                throw new IOException("Unknown timetable file format in " + file);
+            }
+
+            ByteBuffer strings = ByteBuffer.allocate(header.getInt());
+            while (strings.hasRemaining() && channel.read(strings) >= 0) { }
+            String[] airports;
+            String[] codes;
+            String[] dayKeys;
+            try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(strings.array()))) {
+                airports = readStrings(in);
+                codes = readStrings(in);
+                dayKeys = readStrings(in);
+            }
+
+            long offset = columnsOffset(strings.capacity());
+            MappedByteBuffer columns = channel.map(FileChannel.MapMode.READ_ONLY, offset, channel.size() - offset);
+            columns.order(ByteOrder.LITTLE_ENDIAN);
+            return new Timetable(storeDir, airports, codes, dayKeys, columns);
+        }
+    }
+
+    // Columns start 8 byte aligned after the header and the strings
+    private static long columnsOffset(int stringBytes) {
+        return (12L + stringBytes + 7) & ~7L;
+    }
+
+    private static void writeStrings(DataOutputStream out, Collection<String> strings) throws IOException {
+        out.writeInt(strings.size());
+        for (String string : strings) {
+            out.writeUTF(string);
+        }
+    }
+
+    private static String[] readStrings(DataInputStream in) throws IOException {
+        String[] strings = new String[in.readInt()];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = in.readUTF();
+        }
+        return strings;
+    }
+
+    // The local date time strings the importer writes, as seconds so they sort and format without parsing
+    static long localTime(Object value) {
+        if (value instanceof String) {
+            try {
+                return LocalDateTime.parse((String) value).toEpochSecond(ZoneOffset.UTC);
+            } catch (DateTimeParseException e) {
+                return NO_TIME;
+            }
+        }
+        return NO_TIME;
+    }
+
+    static String localTime(long seconds) {
+        return LocalDateTime.ofEpochSecond(seconds, 0, ZoneOffset.UTC).toString();
+    }
+
+    private static IntBuffer ints(MappedByteBuffer columns, int offset, int count) {
+        ByteBuffer column = columns.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        column.position(offset);
+        column.limit(offset + count * 4);
+        return column.slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+    }
+
+    private static LongBuffer longs(MappedByteBuffer columns, int offset, int count) {
+        ByteBuffer column = columns.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        column.position(offset);
+        column.limit(offset + count * 8);
+        return column.slice().order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+    }
+
+    // Snapshot lookups, airports and days are numbered by the snapshot, not by AirportIds
+
+    int airport(String code) {
+        Integer airport = airportIndex.get(code);
+        return airport == null ? -1 : airport;
+    }
+
+    String airportCode(int airport) {
+        return airports[airport];
+    }
+
+    int airportId(int airport) {
+        return airportIds[airport];
+    }
+
+    int day(String key) {
+        Integer day = days.get(key);
+        return day == null ? -1 : day;
+    }
+
+    int dayAirport(int day) {
+        return dayAirport[day];
+    }
+
+    int firstLeg(int day) {
+        return firstLeg.get(day);
+    }
+
+    // The first Leg of the day that departs at or after this time
+    int firstDeparture(int day, long time) {
+        int low = firstLeg.get(day);
+        int high = firstLeg.get(day + 1);
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (departs.get(middle) < time) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    long departs(int leg) {
+        return departs.get(leg);
+    }
+
+    long arrives(int leg) {
+        return arrives.get(leg);
+    }
+
+    long departsAt(int leg) {
+        return departsAt.get(leg);
+    }
+
+    long arrivesAt(int leg) {
+        return arrivesAt.get(leg);
+    }
+
+    int arrivalDay(int leg) {
+        return arrivalDay.get(leg);
+    }
+
+    int destination(int leg) {
+        return destination.get(leg);
+    }
+
+    int distance(int leg) {
+        return distance.get(leg);
+    }
+
+    int code(int leg) {
+        return code.get(leg);
+    }
+
+    String flightCode(int code) {
+        return code == NO_CODE ? null : codes[code];
+    }
+
+    // Growable columns used while reading the graph
+    private static final class Columns {
+        private final int[] firstLeg;
+        private int size;
+        private long[] departs = new long[1024];
+        private long[] arrives = new long[1024];
+        private long[] departsAt = new long[1024];
+        private long[] arrivesAt = new long[1024];
+        private int[] arrivalDay = new int[1024];
+        private int[] destination = new int[1024];
+        private int[] distance = new int[1024];
+        private int[] code = new int[1024];
+
+        private Columns(int days) {
+            this.firstLeg = new int[days + 1];
+        }
+
+        private void add(long departs, long arrives, long departsAt, long arrivesAt,
+                         int arrivalDay, int destination, int distance, int code) {
+            if (size == this.departs.length) {
+                int capacity = size * 2;
+                this.departs = Arrays.copyOf(this.departs, capacity);
+                this.arrives = Arrays.copyOf(this.arrives, capacity);
+                this.departsAt = Arrays.copyOf(this.departsAt, capacity);
+                this.arrivesAt = Arrays.copyOf(this.arrivesAt, capacity);
+                this.arrivalDay = Arrays.copyOf(this.arrivalDay, capacity);
+                this.destination = Arrays.copyOf(this.destination, capacity);
+                this.distance = Arrays.copyOf(this.distance, capacity);
+                this.code = Arrays.copyOf(this.code, capacity);
+            }
+            this.departs[size] = departs;
+            this.arrives[size] = arrives;
+            this.departsAt[size] = departsAt;
+            this.arrivesAt[size] = arrivesAt;
+            this.arrivalDay[size] = arrivalDay;
+            this.destination[size] = destination;
+            this.distance[size] = distance;
+            this.code[size] = code;
+            size++;
+        }
+
+        private void write(ByteBuffer out) {
+            out.asIntBuffer().put(firstLeg);
+            out.position(out.position() + firstLeg.length * 4);
+            for (long[] column : new long[][]{departs, arrives, departsAt, arrivesAt}) {
+                out.asLongBuffer().put(column, 0, size);
+                out.position(out.position() + size * 8);
+            }
+            for (int[] column : new int[][]{arrivalDay, destination, distance, code}) {
+                out.asIntBuffer().put(column, 0, size);
+                out.position(out.position() + size * 4);
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.maxdemarzi;
+
+import com.maxdemarzi.results.MapResult;
+
+import java.util.ArrayList;
+
+// Answers a flight search from a Timetable snapshot instead of the graph.
+// Follows the same rules as the PathRestrictedExpander: at most 3 legs, only along the route template
+// of the airport pair, and at least 30 minutes to connect. Each departure day is scanned in departure order
+// and only connections we can still make are looked at, found by binary search over the sorted departures.
+// Itineraries compete for the recordLimit places while they are found, only the winners become MapResults.
+class TimetableSearch {
+    static final int MAX_LEGS = 3;
+    private static final long minimumConnectTime = 30L * 60L; // 30 minutes
+
+    private final Timetable timetable;
+    private final RouteCache routes;
+    private final Deadline deadline;
+    private final Itineraries best;
+
+    private final int[] legs = new int[MAX_LEGS];
+    private final int[] legDays = new int[MAX_LEGS];
+    private RouteTemplate template;
+    private int arrival;
+    // Legs looked at so far, at any hop, the deadline reads the clock every so many of them
+    private long steps;
+
+    TimetableSearch(Timetable timetable, RouteCache routes, int recordLimit, Deadline deadline, Projection projection) {
+        this.timetable = timetable;
+        this.routes = routes;
+        this.deadline = deadline;
+        this.best = new Itineraries(timetable, recordLimit, projection);
+    }
+
+    // Search one departure AirportDay key to one arrival airport code
+    void search(String departureKey, String arrivalCode) {
+        int day = timetable.day(departureKey);
+        arrival = timetable.airport(arrivalCode);
+        if (day < 0 || arrival < 0) {
+            return;
+        }
+
+        // Pairs left when the time is up are not searched, nor are their routes looked up
+        if (deadline.expired()) {
+            return;
+        }
+
+        template = routes.get(departureKey.substring(0, 3), arrivalCode);
+        if (!template.isEmpty()) {
+            walk(day, 0, Long.MIN_VALUE);
+        }
+    }
+
+    ArrayList<MapResult> results() {
+        return best.results();
+    }
+
+    private void walk(int day, int hop, long ready) {
+        int airport = timetable.airportId(timetable.dayAirport(day));
+        int last = timetable.firstLeg(day + 1);
+        for (int leg = hop == 0 ? timetable.firstLeg(day) : timetable.firstDeparture(day, ready); leg < last; leg++) {
+            // Stop if we are over our time limit
+            if (deadline.expired(++steps)) {
+                return;
+            }
+
+            int destination = timetable.destination(leg);
+            if (!template.allows(hop, airport, timetable.airportId(destination))) {
+                continue;
+            }
+
+            legs[hop] = leg;
+            legDays[hop] = day;
+            if (destination == arrival) {
+                best.offer(legs, legDays, hop + 1);
+            } else if (hop + 1 < MAX_LEGS) {
+                walk(timetable.arrivalDay(leg), hop + 1, timetable.arrives(leg) + minimumConnectTime);
+            }
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package com.maxdemarzi;
+
+import com.maxdemarzi.results.StringResult;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+import org.neo4j.logging.Log;
+import org.neo4j.procedure.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+public class Timetables {
+
+    @Context
+    public GraphDatabaseAPI db;
+
+    @Context
+    public Log log;
+
+    @Description("com.maxdemarzi.timetable.build() | Snapshot every Leg into the timetable used by flightSearch with {engine:'timetable'}")
+    @Procedure(name = "com.maxdemarzi.timetable.build", mode = Mode.READ)
+    public Stream<StringResult> build() throws IOException {
+        long start = System.nanoTime();
+        Timetable timetable;
+        try (Transaction tx = db.beginTx()) {
+            timetable = Timetable.build(Utilities.database(db));
+            tx.success();
+        }
+
+        return Stream.of(new StringResult(timetable.legs() + " Legs on " + timetable.days() + " AirportDays snapshotted in "
+                + TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start) + " Seconds"));
+    }
+}
@@ -0,0 +1,165 @@
+package com.maxdemarzi;
+
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Path;
+import org.neo4j.graphdb.Relationship;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+
+// The best recordLimit itineraries of a graph search so far, ordered like the FlightComparator: fewest legs,
+// earliest local departure, shortest distance, then first flight code.
+// The legs, departure minute and distance are packed into one long read from the LegCache when a path is offered,
+// so ranking two itineraries is a single compare unless they tie all the way to the flight code.
+// Paths stay paths with the worst one at the root of the heap, only the survivors are ever turned into results.
+// Shared by all the workers of a parallel search.
+final class TopPaths {
+    // [legs:2][local departure minute:32][distance:26]
+    private static final int DEPARTURE_SHIFT = 26;
+    private static final int LEGS_SHIFT = 58;
+    private static final long DISTANCE_MASK = (1L << DEPARTURE_SHIFT) - 1;
+    private static final long MINUTE_MASK = (1L << (LEGS_SHIFT - DEPARTURE_SHIFT)) - 1;
+
+    private final LegCache legs;
+    private final int limit;
+    private final int[] heap;
+    private final long[] keys;
+    private final int[] codes;
+    private final Path[] paths;
+    private int size;
+
+    TopPaths(int limit, LegCache legs) {
+        this.legs = legs;
+        this.limit = Math.max(0, limit);
+        this.heap = new int[this.limit];
+        this.keys = new long[this.limit];
+        this.codes = new int[this.limit];
+        this.paths = new Path[this.limit];
+    }
+
+    // Offer a path from a departure AirportDay through its Legs and arrival AirportDay to the arrival Airport
+    synchronized void offer(Path path) {
+        if (limit == 0) {
+            return;
+        }
+
+        Node first = path.relationships().iterator().next().getEndNode();
+        long key = key(first, path);
+        int code = legs.code(first);
+
+        int slot;
+        if (size < limit) {
+            slot = size;
+        } else if (compare(key, code, heap[0]) < 0) {
+            slot = heap[0];
+        } else {
+            return;
+        }
+
+        keys[slot] = key;
+        codes[slot] = code;
+        paths[slot] = path;
+
+        if (size < limit) {
+            heap[size] = slot;
+            siftUp(size++);
+        } else {
+            siftDown(0);
+        }
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    // The paths kept, best first
+    synchronized ArrayList<Path> sorted() {
+        Integer[] slots = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = heap[i];
+        }
+        Arrays.sort(slots, this::compare);
+
+        ArrayList<Path> sorted = new ArrayList<>(size);
+        for (int slot : slots) {
+            sorted.add(paths[slot]);
+        }
+        return sorted;
+    }
+
+    // Each Leg is reached by a flight relationship and left by another, the HAS_DAY relationships of an overnight
+    // connection or the arrival Airport are in between. The distance is the one of the Legs added up.
+    private long key(Node first, Path path) {
+        long distance = 0;
+        int count = 0;
+        Iterator<Relationship> relationships = path.relationships().iterator();
+        while (relationships.hasNext()) {
+            Relationship flight = relationships.next();
+            if (!flight.isType(RelationshipTypes.HAS_DAY)) {
+                relationships.next();
+                distance += legs.distance(flight.getEndNode());
+                count++;
+            }
+        }
+
+        // No departs_at sorts before any time, like an empty string does
+        long departsAt = legs.departsAt(first);
+        long minute = departsAt == Timetable.NO_TIME ? 0 : Math.max(0, Math.floorDiv(departsAt, 60L) + 1);
+        return ((long) count << LEGS_SHIFT) | ((minute & MINUTE_MASK) << DEPARTURE_SHIFT) | Math.min(distance, DISTANCE_MASK);
+    }
+
+    private int compare(long key, int code, int slot) {
+        int c = Long.compare(key, keys[slot]);
+        return c != 0 ? c : compareCodes(code, codes[slot]);
+    }
+
+    private int compare(int slot1, int slot2) {
+        return compare(keys[slot1], codes[slot1], slot2);
+    }
+
+    private static int compareCodes(int code1, int code2) {
+        if (code1 == code2) {
+            return 0;
+        }
+        if (code1 < 0 || code2 < 0) {
+            return code1 < 0 ? -1 : 1;
+        }
+        return FlightCodes.code(code1).compareTo(FlightCodes.code(code2));
+    }
+
+    // The heap keeps the worst path on top
+    private void siftUp(int index) {
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (compare(heap[index], heap[parent]) <= 0) {
+                return;
+            }
+            swap(index, parent);
+            index = parent;
+        }
+    }
+
+    private void siftDown(int index) {
+        while (true) {
+            int child = 2 * index + 1;
+            if (child >= size) {
+                return;
+            }
+            if (child + 1 < size && compare(heap[child + 1], heap[child]) > 0) {
+                child++;
+            }
+            if (compare(heap[child], heap[index]) <= 0) {
+                return;
+            }
+            swap(index, child);
+            index = child;
+        }
+    }
+
+    private void swap(int i, int j) {
+        int slot = heap[i];
+        heap[i] = heap[j];
+        heap[j] = slot;
+    }
+}
@@ -1,9 +1,17 @@
 package com.maxdemarzi;
 
+import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
 
 class Utilities {
 
+    // The database handed to a procedure refuses transactions from any thread but the caller's,
+    // so work running on our own threads has to go through the database itself.
+    static GraphDatabaseAPI database(GraphDatabaseService db) {
+        return ((GraphDatabaseAPI) db).getDependencyResolver().resolveDependency(GraphDatabaseAPI.class);
+    }
+
     // Find the shortest distance between two airports and return 500 miles + 2x that distance.
     static Double getMaxDistance(Node departureAirport, Node arrivalAirport) {
         Double minDistance = GetMileage((Double)departureAirport.getProperty("latitude"),
@@ -0,0 +1,137 @@
+package com.maxdemarzi;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.neo4j.harness.junit.Neo4jRule;
+import org.neo4j.test.server.HTTP;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static com.maxdemarzi.TestUtils.SCHEMA;
+import static com.maxdemarzi.TestUtils.getResultRow;
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertTrue;
+
+public class AdmissionTest {
+
+    @Rule
+    public final Neo4jRule neo4j = new Neo4jRule()
+            .withFixture(MODEL_STATEMENT)
+            .withProcedure(Schema.class)
+            .withProcedure(Flights.class);
+
+    @Test
+    public void shouldRejectSearchesWithoutASlotBeforeTheirTimeLimit() {
+        HTTP.POST(neo4j.httpURI().resolve("/db/data/transaction/commit").toString(), SCHEMA);
+        HTTP.POST(neo4j.httpURI().resolve("/db/data/transaction/commit").toString(), CLEAR);
+        Map before = (Map) ((Map) getResultRow(HTTP.POST(neo4j.httpURI().resolve("/db/data/transaction/commit").toString(), METRICS)).get(0)).get("admission");
+
+        // Take every running slot, the search waits its 200ms for one and is turned away
+        ArrayList<SearchScheduler.Slot> taken = new ArrayList<>();
+        for (int i = 0; i < SearchScheduler.MAX_RUNNING; i++) {
+            taken.add(SearchScheduler.admit(Deadline.after(Long.MAX_VALUE / 2)));
+        }
+        HTTP.Response response;
+        try {
+            response = HTTP.POST(neo4j.httpURI().resolve("/db/data/transaction/commit").toString(), QUERY);
+        } finally {
+            taken.forEach(SearchScheduler.Slot::close);
+        }
+        ArrayList<Map> errors = (ArrayList<Map>) ((Map) response.content()).get("errors");
+        assertEquals(1, errors.size());
+        assertTrue(((String) errors.get(0).get("message")).contains("Too many flight searches"));
+
+        // With the slots back it runs
+        response = HTTP.POST(neo4j.httpURI().resolve("/db/data/transaction/commit").toString(), QUERY);
+        assertEquals(1, getResultRow(response).size());
+
+        Map after = (Map) ((Map) getResultRow(HTTP.POST(neo4j.httpURI().resolve("/db/data/transaction/commit").toString(), METRICS)).get(0)).get("admission");
+        assertEquals(1L, ((Number) after.get("rejected")).longValue() - ((Number) before.get("rejected")).longValue());
+        assertEquals(0L, ((Number) after.get("queued")).longValue());
+    }
+
+    @Test
+    public void shouldHoldTheSlotOfAStreamedSearchWhileItIsRead() throws Exception {
+        HTTP.POST(neo4j.httpURI().resolve("/db/data/transaction/commit").toString(), SCHEMA);
+
+        // Read to the end, the slot is back as soon as the query is done
+        HTTP.Response response = HTTP.POST(neo4j.httpURI().resolve("/db/data/transaction/commit").toString(), STREAMED);
+        assertEquals(1, getResultRow(response).size());
+        assertEquals(0L, running());
+
+        // Left unread and never closed, the slot is held until the deadline has passed
+        Stream<Integer> unread = SearchScheduler.holding(SearchScheduler.admit(Deadline.after(60_000)), Deadline.after(500), Stream.of(1, 2));
+        assertEquals(1L, running());
+        long giveUp = System.currentTimeMillis() + 5_000;
+        while (running() > 0 && System.currentTimeMillis() < giveUp) {
+            Thread.sleep(50);
+        }
+        assertEquals(0L, running());
+
+        // Closing it afterwards does not give the slot back a second time
+        unread.close();
+        assertEquals(0L, running());
+    }
+
+    private long running() {
+        HTTP.Response response = HTTP.POST(neo4j.httpURI().resolve("/db/data/transaction/commit").toString(), METRICS);
+        return ((Number) ((Map) ((Map) getResultRow(response).get(0)).get("admission")).get("running")).longValue();
+    }
+
+    private static final String MODEL_STATEMENT =
+            "CREATE (iah:Airport {code:'IAH', latitude: 0.5233272799368780000000000, longitude: -1.66402114953545000000})" +
+            "CREATE (ewr:Airport {code:'EWR', latitude: 0.7102181058677910000000000, longitude: -1.29448646552014000000})" +
+            "CREATE (iah)-[:FLIES_TO {distance:1400.0}]->(ewr)" +
+            "CREATE (iah_20150506:AirportDay {key:'IAH-2015-05-06'})" +
+            "CREATE (ewr_20150506:AirportDay {key:'EWR-2015-05-06'})" +
+            "CREATE (iah)-[:HAS_DAY]->(iah_20150506)" +
+            "CREATE (ewr)-[:HAS_DAY]->(ewr_20150506)" +
+            "CREATE (leg1:Leg {code:'NEO-700', departs:1430917200, arrives:1430929800, departs_at:'2015-05-06T08:00', arrives_at:'2015-05-06T12:30', distance:1400})" +
+            "CREATE (iah_20150506)-[:EWR_FLIGHT]->(leg1)" +
+            "CREATE (leg1)-[:EWR_FLIGHT]->(ewr_20150506)";
+
+    private static final HashMap<String, Object> CLEAR = new HashMap<String, Object>(){{
+        put("statements", new ArrayList<Map<String, Object>>() {{
+            add(new HashMap<String, Object>() {{
+                put("statement", "CALL com.maxdemarzi.clear_flight_cache()");
+            }});
+        }});
+    }};
+
+    private static final HashMap<String, Object> METRICS = new HashMap<String, Object>(){{
+        put("statements", new ArrayList<Map<String, Object>>() {{
+            add(new HashMap<String, Object>() {{
+                put("statement", "CALL com.maxdemarzi.flights.metrics()");
+            }});
+        }});
+    }};
+
+    private static final HashMap<String, Object> QUERY = new HashMap<String, Object>(){{
+        put("statements", new ArrayList<Map<String, Object>>() {{
+            add(new HashMap<String, Object>() {{
+                put("statement", "CALL com.maxdemarzi.flightSearch({from}, {to}, {day}, 50, 200)");
+                put("parameters", new HashMap<String, Object>(){{
+                    put("from", new ArrayList<String>() {{ add("IAH"); }});
+                    put("to",  new ArrayList<String>() {{ add("EWR"); }});
+                    put("day", "2015-05-06");
+                }});
+            }});
+        }});
+    }};
+
+    private static final HashMap<String, Object> STREAMED = new HashMap<String, Object>(){{
+        put("statements", new ArrayList<Map<String, Object>>() {{
+            add(new HashMap<String, Object>() {{
+                put("statement", "CALL com.maxdemarzi.flightSearch({from}, {to}, {day}, 50, 60000, {stream:true})");
+                put("parameters", new HashMap<String, Object>(){{
+                    put("from", new ArrayList<String>() {{ add("IAH"); }});
+                    put("to",  new ArrayList<String>() {{ add("EWR"); }});
+                    put("day", "2015-05-06");
+                }});
+            }});
+        }});
+    }};
+}
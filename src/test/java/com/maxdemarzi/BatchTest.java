@@ -0,0 +1,146 @@
+package com.maxdemarzi;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.neo4j.harness.junit.Neo4jRule;
+import org.neo4j.test.server.HTTP;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.maxdemarzi.TestUtils.SCHEMA;
+import static com.maxdemarzi.TestUtils.getResultRow;
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertTrue;
+
+public class BatchTest {
+
+    @Rule
+    public final Neo4jRule neo4j = new Neo4jRule()
+            .withFixture(MODEL_STATEMENT)
+            .withProcedure(Schema.class)
+            .withProcedure(Flights.class);
+
+    @Test
+    public void shouldAnswerEveryRequestOfABatch() {
+        HTTP.POST(neo4j.httpURI().resolve("/db/data/transaction/commit").toString(), SCHEMA);
+        HTTP.POST(neo4j.httpURI().resolve("/db/data/transaction/commit").toString(), CLEAR);
+        HTTP.Response response = HTTP.POST(neo4j.httpURI().resolve("/db/data/transaction/commit").toString(), QUERY);
+        ArrayList row = getResultRow(response);
+        assertEquals(ANSWER_LIST, row);
+
+        // Options a batch can't honor are turned down rather than ignored
+        response = HTTP.POST(neo4j.httpURI().resolve("/db/data/transaction/commit").toString(), UNSUPPORTED);
+        ArrayList<Map> errors = (ArrayList<Map>) ((Map) response.content()).get("errors");
+        assertEquals(1, errors.size());
+        assertTrue(((String) errors.get(0).get("message")).contains("A batch search only takes the projection and maxLayover options, not [engine, stream]"));
+    }
+
+    private static final String MODEL_STATEMENT =
+            // Fly from Dallas or Houston to Haneda Airport in Tokyo
+            "CREATE (iah:Airport {code:'IAH', latitude: 0.5233272799368780000000000, longitude: -1.66402114953545000000})" +
+            "CREATE (ord:Airport {code:'ORD', latitude: 0.7326649793031630000000000, longitude: -1.53422683082880000000})" +
+            "CREATE (ewr:Airport {code:'EWR', latitude: 0.7102181058677910000000000, longitude: -1.29448646552014000000})" +
+            "CREATE (dfw:Airport {code:'DFW', latitude: 0.5741599944012120000000000, longitude: -1.69363356917762000000})" +
+            "CREATE (hnd:Airport {code:'HND', latitude: 0.620464, longitude: 2.439733})" +
+            "CREATE (dfw)-[:FLIES_TO {distance:225.0}]->(iah)" +
+            "CREATE (iah)-[:FLIES_TO {distance:718.0}]->(ord)" +
+            "CREATE (iah)-[:FLIES_TO {distance:1416.0}]->(ewr)" +
+            "CREATE (ord)-[:FLIES_TO {distance:6296.0}]->(hnd)" +
+            "CREATE (ewr)-[:FLIES_TO {distance:6731.0}]->(hnd)" +
+            "CREATE (dfw_20150901:AirportDay {key:'DFW-2015-09-01'})" +
+            "CREATE (iah_20150901:AirportDay {key:'IAH-2015-09-01'})" +
+            "CREATE (ord_20150901:AirportDay {key:'ORD-2015-09-01'})" +
+            "CREATE (ewr_20150901:AirportDay {key:'EWR-2015-09-01'})" +
+            "CREATE (hnd_20150902:AirportDay {key:'HND-2015-09-02'})" +
+            "CREATE (dfw)-[:HAS_DAY]->(dfw_20150901)" +
+            "CREATE (iah)-[:HAS_DAY]->(iah_20150901)" +
+            "CREATE (ord)-[:HAS_DAY]->(ord_20150901)" +
+            "CREATE (ewr)-[:HAS_DAY]->(ewr_20150901)" +
+            "CREATE (hnd)-[:HAS_DAY]->(hnd_20150902)" +
+            "CREATE (leg0:Leg {code:'NEO-0', departs:1441101600, arrives:1441105200, distance:225})" +
+            "CREATE (leg1:Leg {code:'NEO-1', departs:1441108800, arrives:1441119600, distance:718})" +
+            "CREATE (leg2:Leg {code:'NEO-2', departs:1441108800, arrives:1441123200, distance:1416})" +
+            "CREATE (leg3:Leg {code:'NEO-3', departs:1441123200, arrives:1441177200, distance:6296})" +
+            "CREATE (leg4:Leg {code:'NEO-4', departs:1441130400, arrives:1441180800, distance:6731})" +
+            "CREATE (dfw_20150901)-[:IAH_FLIGHT]->(leg0)" +
+            "CREATE (leg0)-[:IAH_FLIGHT]->(iah_20150901)" +
+            "CREATE (iah_20150901)-[:ORD_FLIGHT]->(leg1)" +
+            "CREATE (leg1)-[:ORD_FLIGHT]->(ord_20150901)" +
+            "CREATE (ord_20150901)-[:HND_FLIGHT]->(leg3)" +
+            "CREATE (leg3)-[:HND_FLIGHT]->(hnd_20150902)" +
+            "CREATE (iah_20150901)-[:EWR_FLIGHT]->(leg2)" +
+            "CREATE (leg2)-[:EWR_FLIGHT]->(ewr_20150901)" +
+            "CREATE (ewr_20150901)-[:HND_FLIGHT]->(leg4)" +
+            "CREATE (leg4)-[:HND_FLIGHT]->(hnd_20150902)";
+
+    private static final HashMap<String, Object> CLEAR = new HashMap<String, Object>(){{
+        put("statements", new ArrayList<Map<String, Object>>() {{
+            add(new HashMap<String, Object>() {{
+                put("statement", "CALL com.maxdemarzi.clear_flight_cache()");
+            }});
+        }});
+    }};
+
+    // Both requests share the IAH to HND pair search, the last one has no flights on its day
+    private static final ArrayList<Map<String, Object>> REQUESTS = new ArrayList<Map<String, Object>>() {{
+        add(new HashMap<String, Object>() {{
+            put("id", "houston");
+            put("from", "IAH");
+            put("to", "HND");
+            put("day", "2015-09-01");
+            put("limit", 1);
+        }});
+        add(new HashMap<String, Object>() {{
+            put("id", "texas");
+            put("from", new ArrayList<String>() {{ add("DFW"); add("IAH"); }});
+            put("to", new ArrayList<String>() {{ add("HND"); }});
+            put("day", "2015-09-01");
+            put("limit", 3);
+        }});
+        add(new HashMap<String, Object>() {{
+            put("from", "IAH");
+            put("to", "HND");
+            put("day", "2015-09-03");
+        }});
+    }};
+
+    private static final HashMap<String, Object> QUERY = new HashMap<String, Object>(){{
+        put("statements", new ArrayList<Map<String, Object>>() {{
+            add(new HashMap<String, Object>() {{
+                put("statement", "CALL com.maxdemarzi.flightSearchBatch({requests}, 2000, {projection:['code']})");
+                put("parameters", new HashMap<String, Object>() {{ put("requests", REQUESTS); }});
+            }});
+        }});
+    }};
+
+    private static final HashMap<String, Object> UNSUPPORTED = new HashMap<String, Object>(){{
+        put("statements", new ArrayList<Map<String, Object>>() {{
+            add(new HashMap<String, Object>() {{
+                put("statement", "CALL com.maxdemarzi.flightSearchBatch({requests}, 2000, {engine:'raptor', stream:true})");
+                put("parameters", new HashMap<String, Object>() {{ put("requests", REQUESTS); }});
+            }});
+        }});
+    }};
+
+    private static HashMap<String, Object> answer(String request, int score, int distance, String... codes) {
+        return new HashMap<String, Object>(){{
+            put("request", request);
+            put("score", score);
+            put("distance", distance);
+            put("flights", new ArrayList<HashMap<String, Object>>() {{
+                for (String code : codes) {
+                    add(new HashMap<String, Object>() {{ put("code", code); }});
+                }
+            }});
+        }};
+    }
+
+    private static final ArrayList<HashMap<String, Object>> ANSWER_LIST = new ArrayList<HashMap<String, Object>>() {{
+        add(answer("houston", 3, 7014, "NEO-1", "NEO-3"));
+        add(answer("texas", 3, 7014, "NEO-1", "NEO-3"));
+        add(answer("texas", 3, 8147, "NEO-2", "NEO-4"));
+        add(answer("texas", 5, 7239, "NEO-0", "NEO-1", "NEO-3"));
+    }};
+}
@@ -0,0 +1,52 @@
+package com.maxdemarzi;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.factory.GraphDatabaseFactory;
+import org.neo4j.helpers.collection.Iterables;
+
+import java.io.File;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertTrue;
+
+public class BulkLoaderTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldLoadNewStore() throws Exception {
+        File storeDir = folder.newFolder("graph.db");
+        String message = BulkLoader.load(storeDir, AIRPORTS, FLIGHTS);
+        assertTrue(message.startsWith(EXPECTED));
+
+        GraphDatabaseService db = new GraphDatabaseFactory().newEmbeddedDatabase(storeDir);
+        try (Transaction tx = db.beginTx()) {
+            assertEquals(2, Iterables.count(db.schema().getConstraints()));
+
+            Node sea = db.findNode(Labels.Airport, "code", "SEA");
+            Relationship fliesTo = null;
+            for (Relationship relationship : sea.getRelationships(RelationshipTypes.FLIES_TO)) {
+                if (relationship.getEndNode().getProperty("code").equals("SFO")) {
+                    fliesTo = relationship;
+                }
+            }
+            assertEquals(679.0, fliesTo.getProperty("distance"));
+            assertTrue((Long) fliesTo.getProperty("flights") > 0);
+            tx.success();
+        } finally {
+            db.shutdown();
+        }
+    }
+
+    private static final String AIRPORTS = "src/main/resources/data/airports.csv";
+    private static final String FLIGHTS = "src/main/resources/data/flights.csv";
+
+    private static final String EXPECTED = "14 Airports and 21621 Legs loaded in ";
+}
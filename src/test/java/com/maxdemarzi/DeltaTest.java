@@ -0,0 +1,147 @@
+package com.maxdemarzi;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.neo4j.harness.junit.Neo4jRule;
+import org.neo4j.test.server.HTTP;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.maxdemarzi.TestUtils.SCHEMA;
+import static com.maxdemarzi.TestUtils.getResultRow;
+import static junit.framework.TestCase.assertEquals;
+
+public class DeltaTest {
+
+    @Rule
+    public final Neo4jRule neo4j = new Neo4jRule()
+            .withFixture(MODEL_STATEMENT)
+            .withProcedure(Schema.class)
+            .withProcedure(Imports.class)
+            .withProcedure(Flights.class);
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldApplyScheduleDelta() throws Exception {
+        File flights = folder.newFile("flights.csv");
+        Files.write(flights.toPath(), FLIGHTS.getBytes());
+        File delta = folder.newFile("delta.csv");
+        Files.write(delta.toPath(), DELTA.getBytes());
+
+        HTTP.POST(neo4j.httpURI().resolve("/db/data/transaction/commit").toString(), SCHEMA);
+        HTTP.POST(neo4j.httpURI().resolve("/db/data/transaction/commit").toString(),
+                importQuery("CALL com.maxdemarzi.import.flights({file})", flights.getAbsolutePath()));
+
+        // Warm the caches before the schedule changes underneath them
+        HTTP.Response response = HTTP.POST(neo4j.httpURI().resolve("/db/data/transaction/commit").toString(), QUERY);
+        assertEquals(2, getResultRow(response).size());
+
+        response = HTTP.POST(neo4j.httpURI().resolve("/db/data/transaction/commit").toString(),
+                importQuery("CALL com.maxdemarzi.import.delta({file})", delta.getAbsolutePath()));
+        Map stats = (Map) getResultRow(response).get(0);
+        assertEquals(5, stats.get("rows"));
+        assertEquals(1, stats.get("added"));
+        assertEquals(1, stats.get("cancelled"));
+        assertEquals(1, stats.get("retimed"));
+        assertEquals(1, stats.get("unchanged"));
+        assertEquals(1, stats.get("missing"));
+
+        response = HTTP.POST(neo4j.httpURI().resolve("/db/data/transaction/commit").toString(), LEGS);
+        assertEquals(LEGS_ANSWER, getResultRow(response));
+
+        response = HTTP.POST(neo4j.httpURI().resolve("/db/data/transaction/commit").toString(), FLIES_TO);
+        assertEquals(FLIES_TO_ANSWER, getResultRow(response));
+
+        response = HTTP.POST(neo4j.httpURI().resolve("/db/data/transaction/commit").toString(), QUERY);
+        assertEquals(2, getResultRow(response).size());
+    }
+
+    private static final String MODEL_STATEMENT =
+            "CREATE (iah:Airport {code:'IAH', latitude: 0.5233272799368780000000000, longitude: -1.66402114953545000000})" +
+            "CREATE (ewr:Airport {code:'EWR', latitude: 0.7102181058677910000000000, longitude: -1.29448646552014000000})";
+
+    // Two daily flights, operating on 5/2, 5/3 and 5/4
+    private static final String FLIGHTS =
+            "DepartureCity,ArrivalCity,DepartureTime,ArrivalTime,DepartureTimezone,ArrivalTimezone,AirlineCode,EffectiveDate,FlightNumber,DayOfOperationMonday,DayOfOperationTuesday,DayOfOperationWednesday,DayOfOperationThursday,DayOfOperationFriday,DayOfOperationSaturday,DayOfOperationSunday,DiscontinueDate,ScheduleEffectiveDate,VariationDepartureTimeCode,VariationArrivalTimeCode,FlightDistance\n" +
+            "IAH,EWR,1247,1725,-500,-400,NEO,5/2/16,690,1,2,3,4,5,6,7,5/5/16,00:00.0,0,0,1400\n" +
+            "IAH,EWR,1530,2010,-500,-400,NEO,5/2/16,692,1,2,3,4,5,6,7,5/5/16,00:00.0,0,0,1420\n";
+
+    // On 5/3 the 690 leaves later, the 692 is cancelled and a 694 is added; the 696 never existed
+    private static final String DELTA =
+            "Action,AirlineCode,FlightNumber,Date,DepartureCity,ArrivalCity,DepartureTime,ArrivalTime,DepartureTimezone,ArrivalTimezone,VariationArrivalTimeCode,FlightDistance\n" +
+            "RETIME,NEO,690,5/3/16,IAH,EWR,1317,1755,-500,-400,0,1400\n" +
+            "CANCEL,NEO,692,5/3/16,IAH,EWR,,,,,,\n" +
+            "ADD,NEO,694,5/3/16,IAH,EWR,1800,2240,-500,-400,0,1430\n" +
+            "RETIME,NEO,690,5/4/16,IAH,EWR,1247,1725,-500,-400,0,1400\n" +
+            "CANCEL,NEO,696,5/3/16,IAH,EWR,,,,,,\n";
+
+    private static HashMap<String, Object> importQuery(String statement, String file) {
+        return new HashMap<String, Object>(){{
+            put("statements", new ArrayList<Map<String, Object>>() {{
+                add(new HashMap<String, Object>() {{
+                    put("statement", statement);
+                    put("parameters", new HashMap<String, Object>() {{ put("file", file); }});
+                }});
+            }});
+        }};
+    }
+
+    private static final HashMap<String, Object> PARAMS = new HashMap<String, Object>(){{
+        put("from", new ArrayList<String>() {{ add("IAH"); }});
+        put("to",  new ArrayList<String>() {{ add("EWR"); }});
+        put("day", "2016-05-03");
+    }};
+
+    private static final HashMap<String, Object> QUERY = new HashMap<String, Object>(){{
+        put("statements", new ArrayList<Map<String, Object>>() {{
+            add(new HashMap<String, Object>() {{
+                put("statement", "CALL com.maxdemarzi.flights({from}, {to}, {day})");
+                put("parameters", PARAMS);
+            }});
+        }});
+    }};
+
+    private static final HashMap<String, Object> LEGS = new HashMap<String, Object>(){{
+        put("statements", new ArrayList<Map<String, Object>>() {{
+            add(new HashMap<String, Object>() {{
+                put("statement", "MATCH (:AirportDay {key:'IAH-2016-05-03'})-->(l:Leg) " +
+                        "RETURN {code: l.code, departs_at: l.departs_at} ORDER BY l.code");
+            }});
+        }});
+    }};
+
+    private static final ArrayList<HashMap> LEGS_ANSWER = new ArrayList<HashMap>(){{
+        add(new HashMap<String, Object>(){{
+            put("code", "NEO-690");
+            put("departs_at", "2016-05-03T13:17");
+        }});
+        add(new HashMap<String, Object>(){{
+            put("code", "NEO-694");
+            put("departs_at", "2016-05-03T18:00");
+        }});
+    }};
+
+    private static final HashMap<String, Object> FLIES_TO = new HashMap<String, Object>(){{
+        put("statements", new ArrayList<Map<String, Object>>() {{
+            add(new HashMap<String, Object>() {{
+                put("statement", "MATCH (:Airport {code:'IAH'})-[r:FLIES_TO]->(:Airport {code:'EWR'}) " +
+                        "RETURN {flights: r.flights, distance: r.distance}");
+            }});
+        }});
+    }};
+
+    // Six flights less the cancelled 1420 plus the added 1430
+    private static final ArrayList<HashMap> FLIES_TO_ANSWER = new ArrayList<HashMap>(){{
+        add(new HashMap<String, Object>(){{
+            put("flights", 6);
+            put("distance", 1411.6666666666667);
+        }});
+    }};
+}
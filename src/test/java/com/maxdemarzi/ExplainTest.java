@@ -0,0 +1,105 @@
+package com.maxdemarzi;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.neo4j.harness.junit.Neo4jRule;
+import org.neo4j.test.server.HTTP;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.maxdemarzi.TestUtils.SCHEMA;
+import static com.maxdemarzi.TestUtils.getResultRow;
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertTrue;
+
+public class ExplainTest {
+
+    @Rule
+    public final Neo4jRule neo4j = new Neo4jRule()
+            .withFixture(MODEL_STATEMENT)
+            .withProcedure(Schema.class)
+            .withProcedure(Flights.class);
+
+    @Test
+    public void shouldExplainSearch() {
+        HTTP.POST(neo4j.httpURI().resolve("/db/data/transaction/commit").toString(), SCHEMA);
+        HTTP.POST(neo4j.httpURI().resolve("/db/data/transaction/commit").toString(), CLEAR);
+        HTTP.Response response = HTTP.POST(neo4j.httpURI().resolve("/db/data/transaction/commit").toString(), QUERY);
+        ArrayList rows = getResultRow(response);
+
+        assertEquals(1, rows.size());
+        Map explained = (Map) rows.get(0);
+        assertEquals("IAH", explained.get("from"));
+        assertEquals("EWR", explained.get("to"));
+        assertEquals("2015-05-06", explained.get("day"));
+        assertEquals(false, explained.get("route_template_cached"));
+        assertEquals(ROUTE_TEMPLATE, explained.get("route_template"));
+
+        // Both flights out of Ohare are looked at, the one leaving 15 minutes after we land is pruned
+        assertEquals(Arrays.asList(1, 2), explained.get("expanded"));
+        assertEquals(Arrays.asList(0, 1), explained.get("pruned_by_connect_time"));
+        assertEquals(false, explained.get("timed_out"));
+        assertEquals(1, explained.get("results"));
+
+        Map stages = (Map) explained.get("stages_ms");
+        assertEquals(Arrays.asList("airport_day_lookup", "route_template", "expansion", "sort", "materialization"),
+                new ArrayList<>(stages.keySet()));
+        for (Object time : stages.values()) {
+            assertTrue(((Number) time).doubleValue() >= 0);
+        }
+    }
+
+    private static final String MODEL_STATEMENT =
+            // IAH to EWR Direct via Ohare, with a connection too tight to make
+            "CREATE (iah:Airport {code:'IAH', latitude: 0.5233272799368780000000000, longitude: -1.66402114953545000000})" +
+            "CREATE (ord:Airport {code:'ORD', latitude: 0.7326649793031630000000000, longitude: -1.53422683082880000000})" +
+            "CREATE (ewr:Airport {code:'EWR', latitude: 0.7102181058677910000000000, longitude: -1.29448646552014000000})" +
+            "CREATE (iah)-[:FLIES_TO {distance:926.0}]->(ord)" +
+            "CREATE (ord)-[:FLIES_TO {distance:718.0}]->(ewr)" +
+            "CREATE (iah_20150506:AirportDay {key:'IAH-2015-05-06'})" +
+            "CREATE (ord_20150506:AirportDay {key:'ORD-2015-05-06'})" +
+            "CREATE (ewr_20150506:AirportDay {key:'EWR-2015-05-06'})" +
+            "CREATE (iah)-[:HAS_DAY]->(iah_20150506)" +
+            "CREATE (ord)-[:HAS_DAY]->(ord_20150506)" +
+            "CREATE (ewr)-[:HAS_DAY]->(ewr_20150506)" +
+            "CREATE (leg1:Leg {code:'NEO-690', departs:1430916420, arrives:1430925900, distance:926})" + // 5/6/15@12:47pm-3:25pm
+            "CREATE (leg2:Leg {code:'NEO-691', departs:1430928000, arrives:1430939760, distance:718})" + // 5/6/15@4:00pm-7:16pm
+            "CREATE (leg3:Leg {code:'NEO-692', departs:1430926800, arrives:1430938560, distance:718})" + // 5/6/15@3:40pm-6:56pm
+            "CREATE (iah_20150506)-[:ORD_FLIGHT]->(leg1)" +
+            "CREATE (leg1)-[:ORD_FLIGHT]->(ord_20150506)" +
+            "CREATE (ord_20150506)-[:EWR_FLIGHT]->(leg2)" +
+            "CREATE (leg2)-[:EWR_FLIGHT]->(ewr_20150506)" +
+            "CREATE (ord_20150506)-[:EWR_FLIGHT]->(leg3)" +
+            "CREATE (leg3)-[:EWR_FLIGHT]->(ewr_20150506)";
+
+    private static final HashMap<String, Object> CLEAR = new HashMap<String, Object>(){{
+        put("statements", new ArrayList<Map<String, Object>>() {{
+            add(new HashMap<String, Object>() {{
+                put("statement", "CALL com.maxdemarzi.clear_flight_cache()");
+            }});
+        }});
+    }};
+
+    private static final HashMap<String, Object> PARAMS = new HashMap<String, Object>(){{
+        put("from", new ArrayList<String>() {{ add("IAH"); }});
+        put("to",  new ArrayList<String>() {{ add("EWR"); }});
+        put("day", "2015-05-06");
+    }};
+
+    private static final HashMap<String, Object> QUERY = new HashMap<String, Object>(){{
+        put("statements", new ArrayList<Map<String, Object>>() {{
+            add(new HashMap<String, Object>() {{
+                put("statement", "CALL com.maxdemarzi.flightSearch({from}, {to}, {day}, 50, 2000, {explain:true})");
+                put("parameters", PARAMS);
+            }});
+        }});
+    }};
+
+    private static final ArrayList<HashMap> ROUTE_TEMPLATE = new ArrayList<HashMap>(){{
+        add(new HashMap<String, Object>() {{ put("IAH", Arrays.asList("ORD")); }});
+        add(new HashMap<String, Object>() {{ put("ORD", Arrays.asList("EWR")); }});
+    }};
+}
@@ -0,0 +1,125 @@
+package com.maxdemarzi;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.neo4j.harness.junit.Neo4jRule;
+import org.neo4j.test.server.HTTP;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.maxdemarzi.TestUtils.SCHEMA;
+import static com.maxdemarzi.TestUtils.getResultRow;
+import static junit.framework.TestCase.assertEquals;
+
+public class FliesToTest {
+
+    @Rule
+    public final Neo4jRule neo4j = new Neo4jRule()
+            .withFixture(MODEL_STATEMENT)
+            .withProcedure(Schema.class)
+            .withProcedure(Imports.class)
+            .withProcedure(Flights.class);
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldConnectAirportsWhileImportingFlights() throws Exception {
+        File file = folder.newFile("flights.csv");
+        Files.write(file.toPath(), FLIGHTS.getBytes());
+
+        HTTP.POST(neo4j.httpURI().resolve("/db/data/transaction/commit").toString(), SCHEMA);
+
+        // Nothing flies yet, and the search caches that there are no routes
+        HTTP.Response response = HTTP.POST(neo4j.httpURI().resolve("/db/data/transaction/commit").toString(), QUERY);
+        assertEquals(0, getResultRow(response).size());
+
+        HTTP.POST(neo4j.httpURI().resolve("/db/data/transaction/commit").toString(), importQuery(file.getAbsolutePath()));
+
+        response = HTTP.POST(neo4j.httpURI().resolve("/db/data/transaction/commit").toString(), FLIES_TO);
+        assertEquals(FLIES_TO_ANSWER, getResultRow(response));
+
+        // The import refreshed the cached routes, so the new flights are found without clearing the cache
+        response = HTTP.POST(neo4j.httpURI().resolve("/db/data/transaction/commit").toString(), QUERY);
+        assertEquals(2, getResultRow(response).size());
+    }
+
+    @Test
+    public void shouldForgetEveryRouteWhenTooManyPairsChange() throws Exception {
+        // The two flights and more new airport pairs besides than are worth working out the routes of one by one
+        StringBuilder flights = new StringBuilder(FLIGHTS);
+        for (int pair = 0; pair < FliesTo.MAX_CHANGED_PAIRS; pair++) {
+            flights.append(String.format("Q%02d,Z%02d,0800,0900,-500,-500,NEO,5/2/16,%d,1,2,3,4,5,6,7,5/5/16,00:00.0,0,0,500\n",
+                    pair, pair, 1000 + pair));
+        }
+        File file = folder.newFile("flights.csv");
+        Files.write(file.toPath(), flights.toString().getBytes());
+
+        HTTP.POST(neo4j.httpURI().resolve("/db/data/transaction/commit").toString(), SCHEMA);
+        HTTP.Response response = HTTP.POST(neo4j.httpURI().resolve("/db/data/transaction/commit").toString(), QUERY);
+        assertEquals(0, getResultRow(response).size());
+
+        HTTP.POST(neo4j.httpURI().resolve("/db/data/transaction/commit").toString(), importQuery(file.getAbsolutePath()));
+
+        response = HTTP.POST(neo4j.httpURI().resolve("/db/data/transaction/commit").toString(), QUERY);
+        assertEquals(2, getResultRow(response).size());
+    }
+
+    private static final String MODEL_STATEMENT =
+            "CREATE (iah:Airport {code:'IAH', latitude: 0.5233272799368780000000000, longitude: -1.66402114953545000000})" +
+            "CREATE (ewr:Airport {code:'EWR', latitude: 0.7102181058677910000000000, longitude: -1.29448646552014000000})" +
+            "CREATE (iah)-[:HAS_DAY]->(:AirportDay {key:'IAH-2016-05-03'})";
+
+    // Two daily flights, operating on 5/2, 5/3 and 5/4
+    private static final String FLIGHTS =
+            "DepartureCity,ArrivalCity,DepartureTime,ArrivalTime,DepartureTimezone,ArrivalTimezone,AirlineCode,EffectiveDate,FlightNumber,DayOfOperationMonday,DayOfOperationTuesday,DayOfOperationWednesday,DayOfOperationThursday,DayOfOperationFriday,DayOfOperationSaturday,DayOfOperationSunday,DiscontinueDate,ScheduleEffectiveDate,VariationDepartureTimeCode,VariationArrivalTimeCode,FlightDistance\n" +
+            "IAH,EWR,1247,1725,-500,-400,NEO,5/2/16,690,1,2,3,4,5,6,7,5/5/16,00:00.0,0,0,1400\n" +
+            "IAH,EWR,1530,2010,-500,-400,NEO,5/2/16,692,1,2,3,4,5,6,7,5/5/16,00:00.0,0,0,1420\n";
+
+    private static HashMap<String, Object> importQuery(String file) {
+        return new HashMap<String, Object>(){{
+            put("statements", new ArrayList<Map<String, Object>>() {{
+                add(new HashMap<String, Object>() {{
+                    put("statement", "CALL com.maxdemarzi.import.flights({file})");
+                    put("parameters", new HashMap<String, Object>() {{ put("file", file); }});
+                }});
+            }});
+        }};
+    }
+
+    private static final HashMap<String, Object> PARAMS = new HashMap<String, Object>(){{
+        put("from", new ArrayList<String>() {{ add("IAH"); }});
+        put("to",  new ArrayList<String>() {{ add("EWR"); }});
+        put("day", "2016-05-03");
+    }};
+
+    private static final HashMap<String, Object> QUERY = new HashMap<String, Object>(){{
+        put("statements", new ArrayList<Map<String, Object>>() {{
+            add(new HashMap<String, Object>() {{
+                put("statement", "CALL com.maxdemarzi.flights({from}, {to}, {day})");
+                put("parameters", PARAMS);
+            }});
+        }});
+    }};
+
+    private static final HashMap<String, Object> FLIES_TO = new HashMap<String, Object>(){{
+        put("statements", new ArrayList<Map<String, Object>>() {{
+            add(new HashMap<String, Object>() {{
+                put("statement", "MATCH (:Airport {code:'IAH'})-[r:FLIES_TO]->(:Airport {code:'EWR'}) " +
+                        "RETURN {flights: r.flights, distance: r.distance}");
+            }});
+        }});
+    }};
+
+    private static final ArrayList<HashMap> FLIES_TO_ANSWER = new ArrayList<HashMap>(){{
+        add(new HashMap<String, Object>(){{
+            put("flights", 6);
+            put("distance", 1410.0);
+        }});
+    }};
+}
@@ -2,15 +2,20 @@ package com.maxdemarzi;
 
 import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.neo4j.harness.junit.Neo4jRule;
 import org.neo4j.test.server.HTTP;
 
+import java.io.File;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
 
 import static com.maxdemarzi.TestUtils.SCHEMA;
+import static com.maxdemarzi.TestUtils.getResultRow;
 import static com.maxdemarzi.TestUtils.getResultString;
+import static junit.framework.TestCase.assertEquals;
 import static junit.framework.TestCase.assertTrue;
 
 public class ImportFlightsTest {
@@ -20,6 +25,9 @@ public class ImportFlightsTest {
             .withProcedure(Schema.class)
             .withProcedure(Imports.class);
 
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
     @Test
     public void shouldImportFlights() {
         HTTP.POST(neo4j.httpURI().resolve("/db/data/transaction/commit").toString(), SCHEMA);
@@ -29,9 +37,138 @@ public class ImportFlightsTest {
         assertTrue(message.startsWith(EXPECTED));
     }
 
+    @Test
+    public void shouldImportFlightsAsLegs() throws Exception {
+        File file = folder.newFile("flights.csv");
+        Files.write(file.toPath(), FLIGHTS.getBytes());
+
+        HTTP.POST(neo4j.httpURI().resolve("/db/data/transaction/commit").toString(), SCHEMA);
+        HTTP.Response response = HTTP.POST(neo4j.httpURI().resolve("/db/data/transaction/commit").toString(),
+                query("CALL com.maxdemarzi.import.flights({file})", file.getAbsolutePath()));
+        assertEquals("3 Flights imported in ", getResultString(response).replaceAll("\\d+ Seconds", ""));
+
+        response = HTTP.POST(neo4j.httpURI().resolve("/db/data/transaction/commit").toString(), query(COUNTS, null));
+        assertEquals(COUNTS_ANSWER, getResultRow(response).get(0));
+
+        response = HTTP.POST(neo4j.httpURI().resolve("/db/data/transaction/commit").toString(), query(FLIES_TO, null));
+        assertEquals(FLIES_TO_ANSWER, getResultRow(response));
+
+        response = HTTP.POST(neo4j.httpURI().resolve("/db/data/transaction/commit").toString(), query(LEG, null));
+        assertEquals(LEG_ANSWER, getResultRow(response).get(0));
+    }
+
+    @Test
+    public void shouldImportEveryDayOfALongSchedule() throws Exception {
+        File file = folder.newFile("season.csv");
+        Files.write(file.toPath(), SEASON.getBytes());
+
+        HTTP.POST(neo4j.httpURI().resolve("/db/data/transaction/commit").toString(), SCHEMA);
+        HTTP.POST(neo4j.httpURI().resolve("/db/data/transaction/commit").toString(),
+                query("CALL com.maxdemarzi.import.flights({file})", file.getAbsolutePath()));
+
+        HTTP.Response response = HTTP.POST(neo4j.httpURI().resolve("/db/data/transaction/commit").toString(), query(SEASON_LEGS, null));
+        assertEquals(SEASON_ANSWER, getResultRow(response).get(0));
+    }
+
+    @Test
+    public void shouldFailOnTheRowItCouldNotRead() throws Exception {
+        File file = folder.newFile("flights.csv");
+        Files.write(file.toPath(), FLIGHTS.replace(",1420\n", ",far\n").getBytes());
+
+        HTTP.POST(neo4j.httpURI().resolve("/db/data/transaction/commit").toString(), SCHEMA);
+        HTTP.Response response = HTTP.POST(neo4j.httpURI().resolve("/db/data/transaction/commit").toString(),
+                query("CALL com.maxdemarzi.import.flights({file})", file.getAbsolutePath()));
+        ArrayList<Map> errors = (ArrayList<Map>) ((Map) response.content()).get("errors");
+        assertEquals(1, errors.size());
+        assertTrue(((String) errors.get(0).get("message")).contains("Could not read row 2 of the flight schedule"));
+
+        response = HTTP.POST(neo4j.httpURI().resolve("/db/data/transaction/commit").toString(), query(LEG_COUNT, null));
+        assertEquals(0, ((Map) getResultRow(response).get(0)).get("legs"));
+    }
+
+    private static HashMap<String, Object> query(String statement, String file) {
+        return new HashMap<String, Object>(){{
+            put("statements", new ArrayList<Map<String, Object>>() {{
+                add(new HashMap<String, Object>() {{
+                    put("statement", statement);
+                    put("parameters", new HashMap<String, Object>() {{ put("file", file); }});
+                }});
+            }});
+        }};
+    }
+
+    // Two daily flights operating on 5/2, 5/3 and 5/4, and one back on the Monday only
+    private static final String FLIGHTS =
+            "DepartureCity,ArrivalCity,DepartureTime,ArrivalTime,DepartureTimezone,ArrivalTimezone,AirlineCode,EffectiveDate,FlightNumber,DayOfOperationMonday,DayOfOperationTuesday,DayOfOperationWednesday,DayOfOperationThursday,DayOfOperationFriday,DayOfOperationSaturday,DayOfOperationSunday,DiscontinueDate,ScheduleEffectiveDate,VariationDepartureTimeCode,VariationArrivalTimeCode,FlightDistance\n" +
+            "IAH,EWR,1247,1725,-500,-400,NEO,5/2/16,690,1,2,3,4,5,6,7,5/5/16,00:00.0,0,0,1400\n" +
+            "IAH,EWR,1530,2010,-500,-400,NEO,5/2/16,692,1,2,3,4,5,6,7,5/5/16,00:00.0,0,0,1420\n" +
+            "EWR,IAH,1900,2150,-400,-500,NEO,5/2/16,691,1,,,,,,,5/5/16,00:00.0,0,0,1400\n";
+
+    // Every Monday from 5/2 up to 8/1, a period of 2 months and 30 days
+    private static final String SEASON =
+            "DepartureCity,ArrivalCity,DepartureTime,ArrivalTime,DepartureTimezone,ArrivalTimezone,AirlineCode,EffectiveDate,FlightNumber,DayOfOperationMonday,DayOfOperationTuesday,DayOfOperationWednesday,DayOfOperationThursday,DayOfOperationFriday,DayOfOperationSaturday,DayOfOperationSunday,DiscontinueDate,ScheduleEffectiveDate,VariationDepartureTimeCode,VariationArrivalTimeCode,FlightDistance\n" +
+            "IAH,EWR,1247,1725,-500,-400,NEO,5/2/16,690,1,,,,,,,8/1/16,00:00.0,0,0,1400\n";
+
+    private static final String LEG_COUNT = "MATCH (l:Leg) RETURN {legs: count(l)}";
+
+    private static final String SEASON_LEGS =
+            "MATCH (l:Leg) WITH l ORDER BY l.departs RETURN {legs: count(l), first: head(collect(l.departs_at)), last: last(collect(l.departs_at))}";
+
+    private static final HashMap<String, Object> SEASON_ANSWER = new HashMap<String, Object>(){{
+        put("legs", 13);
+        put("first", "2016-05-02T12:47");
+        put("last", "2016-07-25T12:47");
+    }};
+
+    private static final String COUNTS =
+            "MATCH (l:Leg) WITH count(l) AS legs " +
+            "MATCH (a:Airport)-[:HAS_DAY]->(d:AirportDay) WITH legs, count(DISTINCT a) AS airports, collect(d.key) AS keys " +
+            "UNWIND keys AS key WITH legs, airports, key ORDER BY key " +
+            "RETURN {legs: legs, airports: airports, days: collect(key)}";
+
+    private static final HashMap<String, Object> COUNTS_ANSWER = new HashMap<String, Object>(){{
+        put("legs", 7);
+        put("airports", 2);
+        put("days", new ArrayList<String>() {{
+            add("EWR-2016-05-02"); add("EWR-2016-05-03"); add("EWR-2016-05-04");
+            add("IAH-2016-05-02"); add("IAH-2016-05-03"); add("IAH-2016-05-04");
+        }});
+    }};
+
+    private static final String FLIES_TO =
+            "MATCH (a:Airport)-[r:FLIES_TO]->(b:Airport) " +
+            "RETURN {route: a.code + '-' + b.code, flights: r.flights, distance: r.distance} ORDER BY a.code";
+
+    private static final ArrayList<HashMap> FLIES_TO_ANSWER = new ArrayList<HashMap>(){{
+        add(new HashMap<String, Object>(){{
+            put("route", "EWR-IAH");
+            put("flights", 1);
+            put("distance", 1400.0);
+        }});
+        add(new HashMap<String, Object>(){{
+            put("route", "IAH-EWR");
+            put("flights", 6);
+            put("distance", 1410.0);
+        }});
+    }};
+
+    // NEO-690 on 5/3 hangs between the AirportDays it leaves and lands on, with the times in UTC seconds and local
+    private static final String LEG =
+            "MATCH (:AirportDay {key:'IAH-2016-05-03'})-[:EWR_FLIGHT]->(l:Leg {code:'NEO-690'})-[:EWR_FLIGHT]->(:AirportDay {key:'EWR-2016-05-03'}) " +
+            "RETURN {code: l.code, departs: l.departs, arrives: l.arrives, departs_at: l.departs_at, arrives_at: l.arrives_at, distance: l.distance}";
+
+    private static final HashMap<String, Object> LEG_ANSWER = new HashMap<String, Object>(){{
+        put("code", "NEO-690");
+        put("departs", 1462297620);
+        put("arrives", 1462310700);
+        put("departs_at", "2016-05-03T12:47");
+        put("arrives_at", "2016-05-03T17:25");
+        put("distance", 1400);
+    }};
+
 
     private static final HashMap<String, Object> PARAMS = new HashMap<String, Object>(){{
-        put("file", "/Users/maxdemarzi/Projects/neoflights/src/main/resources/data/flights.csv");
+        put("file", new File("src/main/resources/data/flights.csv").getAbsolutePath());
     }};
 
     private static final HashMap<String, Object> QUERY = new HashMap<String, Object>(){{
@@ -0,0 +1,114 @@
+package com.maxdemarzi;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.neo4j.harness.junit.Neo4jRule;
+import org.neo4j.test.server.HTTP;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.maxdemarzi.TestUtils.SCHEMA;
+import static com.maxdemarzi.TestUtils.getResultRow;
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertTrue;
+
+public class MetricsTest {
+
+    @Rule
+    public final Neo4jRule neo4j = new Neo4jRule()
+            .withFixture(MODEL_STATEMENT)
+            .withProcedure(Schema.class)
+            .withProcedure(Flights.class);
+
+    @Test
+    public void shouldRecordSearchMetrics() {
+        HTTP.POST(neo4j.httpURI().resolve("/db/data/transaction/commit").toString(), SCHEMA);
+        HTTP.POST(neo4j.httpURI().resolve("/db/data/transaction/commit").toString(), CLEAR);
+        Map before = (Map) getResultRow(HTTP.POST(neo4j.httpURI().resolve("/db/data/transaction/commit").toString(), METRICS)).get(0);
+
+        // The first search loads the route template, the second finds it cached.
+        // It asks for fewer records, so it is not answered from the result cache instead.
+        HTTP.POST(neo4j.httpURI().resolve("/db/data/transaction/commit").toString(), QUERY);
+        HTTP.POST(neo4j.httpURI().resolve("/db/data/transaction/commit").toString(), FEWER_QUERY);
+        Map after = (Map) getResultRow(HTTP.POST(neo4j.httpURI().resolve("/db/data/transaction/commit").toString(), METRICS)).get(0);
+
+        assertEquals(2L, count(after, "search_us") - count(before, "search_us"));
+        assertEquals(2L, count(after, "expansions") - count(before, "expansions"));
+
+        Map phases = (Map) after.get("phases_us");
+        for (String phase : new String[]{"airport_day_lookup", "route_template", "route_template_load", "expansion", "sort", "materialization"}) {
+            Map histogram = (Map) phases.get(phase);
+            assertTrue(phase, ((Number) histogram.get("count")).longValue() > 0);
+            assertTrue(phase, ((Number) histogram.get("p50")).longValue() <= ((Number) histogram.get("max")).longValue());
+        }
+
+        Map routeCache = (Map) after.get("route_cache");
+        Map routeCacheBefore = (Map) before.get("route_cache");
+        assertEquals(1L, ((Number) routeCache.get("misses")).longValue() - ((Number) routeCacheBefore.get("misses")).longValue());
+        assertEquals(1L, ((Number) routeCache.get("hits")).longValue() - ((Number) routeCacheBefore.get("hits")).longValue());
+        assertTrue(((Number) after.get("timed_out")).longValue() >= 0);
+
+        Map resultCache = (Map) after.get("result_cache");
+        Map resultCacheBefore = (Map) before.get("result_cache");
+        assertEquals(2L, ((Number) resultCache.get("misses")).longValue() - ((Number) resultCacheBefore.get("misses")).longValue());
+    }
+
+    private static long count(Map metrics, String histogram) {
+        return ((Number) ((Map) metrics.get(histogram)).get("count")).longValue();
+    }
+
+    private static final String MODEL_STATEMENT =
+            // IAH to EWR Non Stop
+            "CREATE (iah:Airport {code:'IAH', latitude: 0.5233272799368780000000000, longitude: -1.66402114953545000000})" +
+            "CREATE (ewr:Airport {code:'EWR', latitude: 0.7102181058677910000000000, longitude: -1.29448646552014000000})" +
+            "CREATE (iah)-[:FLIES_TO {distance:926.0}]->(ewr)" +
+            "CREATE (iah_20150506:AirportDay {key:'IAH-2015-05-06'})" +
+            "CREATE (ewr_20150506:AirportDay {key:'EWR-2015-05-06'})" +
+            "CREATE (iah)-[:HAS_DAY]->(iah_20150506)" +
+            "CREATE (ewr)-[:HAS_DAY]->(ewr_20150506)" +
+            "CREATE (leg1:Leg {code:'NEO-690', departs:1430916420, arrives:1430925900, distance:926})" + // 5/6/15@12:47pm-3:25pm
+            "CREATE (iah_20150506)-[:EWR_FLIGHT]->(leg1)" +
+            "CREATE (leg1)-[:EWR_FLIGHT]->(ewr_20150506)";
+
+    private static final HashMap<String, Object> CLEAR = new HashMap<String, Object>(){{
+        put("statements", new ArrayList<Map<String, Object>>() {{
+            add(new HashMap<String, Object>() {{
+                put("statement", "CALL com.maxdemarzi.clear_flight_cache()");
+            }});
+        }});
+    }};
+
+    private static final HashMap<String, Object> METRICS = new HashMap<String, Object>(){{
+        put("statements", new ArrayList<Map<String, Object>>() {{
+            add(new HashMap<String, Object>() {{
+                put("statement", "CALL com.maxdemarzi.flights.metrics()");
+            }});
+        }});
+    }};
+
+    private static final HashMap<String, Object> PARAMS = new HashMap<String, Object>(){{
+        put("from", new ArrayList<String>() {{ add("IAH"); }});
+        put("to",  new ArrayList<String>() {{ add("EWR"); }});
+        put("day", "2015-05-06");
+    }};
+
+    private static final HashMap<String, Object> QUERY = new HashMap<String, Object>(){{
+        put("statements", new ArrayList<Map<String, Object>>() {{
+            add(new HashMap<String, Object>() {{
+                put("statement", "CALL com.maxdemarzi.flights({from}, {to}, {day})");
+                put("parameters", PARAMS);
+            }});
+        }});
+    }};
+
+    private static final HashMap<String, Object> FEWER_QUERY = new HashMap<String, Object>(){{
+        put("statements", new ArrayList<Map<String, Object>>() {{
+            add(new HashMap<String, Object>() {{
+                put("statement", "CALL com.maxdemarzi.flightSearch({from}, {to}, {day}, 10, 2000)");
+                put("parameters", PARAMS);
+            }});
+        }});
+    }};
+}
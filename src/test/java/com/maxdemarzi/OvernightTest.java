@@ -0,0 +1,109 @@
+package com.maxdemarzi;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.neo4j.harness.junit.Neo4jRule;
+import org.neo4j.test.server.HTTP;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.maxdemarzi.TestUtils.SCHEMA;
+import static com.maxdemarzi.TestUtils.getResultRow;
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertTrue;
+
+public class OvernightTest {
+
+    @Rule
+    public final Neo4jRule neo4j = new Neo4jRule()
+            .withFixture(MODEL_STATEMENT)
+            .withProcedure(Schema.class)
+            .withProcedure(Flights.class);
+
+    @Test
+    public void shouldConnectOvernightWithinMaxLayover() {
+        HTTP.POST(neo4j.httpURI().resolve("/db/data/transaction/commit").toString(), SCHEMA);
+        HTTP.POST(neo4j.httpURI().resolve("/db/data/transaction/commit").toString(), CLEAR);
+
+        // Same day connections only
+        HTTP.Response response = HTTP.POST(neo4j.httpURI().resolve("/db/data/transaction/commit").toString(), query("{projection:['code']}"));
+        assertEquals(new ArrayList(), getResultRow(response));
+
+        // The 8 and a half hour layover is too long
+        response = HTTP.POST(neo4j.httpURI().resolve("/db/data/transaction/commit").toString(), query("{projection:['code'], maxLayover:300}"));
+        assertEquals(new ArrayList(), getResultRow(response));
+
+        response = HTTP.POST(neo4j.httpURI().resolve("/db/data/transaction/commit").toString(), query("{projection:['code'], maxLayover:720}"));
+        assertEquals(ANSWER_LIST, getResultRow(response));
+
+        // The timetable engines can't connect overnight, so they won't pretend to
+        response = HTTP.POST(neo4j.httpURI().resolve("/db/data/transaction/commit").toString(), query("{engine:'raptor', maxLayover:720}"));
+        ArrayList<Map> errors = (ArrayList<Map>) ((Map) response.content()).get("errors");
+        assertEquals(1, errors.size());
+        assertTrue(((String) errors.get(0).get("message")).contains("The maxLayover only applies to the graph search"));
+    }
+
+    private static final String MODEL_STATEMENT =
+            // IAH to EWR via Ohare, landing late at night and leaving the next morning
+            "CREATE (iah:Airport {code:'IAH', latitude: 0.5233272799368780000000000, longitude: -1.66402114953545000000})" +
+            "CREATE (ord:Airport {code:'ORD', latitude: 0.7326649793031630000000000, longitude: -1.53422683082880000000})" +
+            "CREATE (ewr:Airport {code:'EWR', latitude: 0.7102181058677910000000000, longitude: -1.29448646552014000000})" +
+            "CREATE (iah)-[:FLIES_TO {distance:926.0}]->(ord)" +
+            "CREATE (ord)-[:FLIES_TO {distance:718.0}]->(ewr)" +
+            "CREATE (iah_20150506:AirportDay {key:'IAH-2015-05-06'})" +
+            "CREATE (ord_20150506:AirportDay {key:'ORD-2015-05-06'})" +
+            "CREATE (ord_20150507:AirportDay {key:'ORD-2015-05-07'})" +
+            "CREATE (ewr_20150507:AirportDay {key:'EWR-2015-05-07'})" +
+            "CREATE (iah)-[:HAS_DAY]->(iah_20150506)" +
+            "CREATE (ord)-[:HAS_DAY]->(ord_20150506)" +
+            "CREATE (ord)-[:HAS_DAY]->(ord_20150507)" +
+            "CREATE (ewr)-[:HAS_DAY]->(ewr_20150507)" +
+            "CREATE (leg1:Leg {code:'NEO-690', departs:1430960400, arrives:1430969400, departs_at:'2015-05-06T20:00', arrives_at:'2015-05-06T22:30', distance:926})" +
+            "CREATE (leg2:Leg {code:'NEO-691', departs:1431000000, arrives:1431007800, departs_at:'2015-05-07T07:00', arrives_at:'2015-05-07T10:10', distance:718})" +
+            "CREATE (iah_20150506)-[:ORD_FLIGHT]->(leg1)" +
+            "CREATE (leg1)-[:ORD_FLIGHT]->(ord_20150506)" +
+            "CREATE (ord_20150507)-[:EWR_FLIGHT]->(leg2)" +
+            "CREATE (leg2)-[:EWR_FLIGHT]->(ewr_20150507)";
+
+    private static final HashMap<String, Object> CLEAR = new HashMap<String, Object>(){{
+        put("statements", new ArrayList<Map<String, Object>>() {{
+            add(new HashMap<String, Object>() {{
+                put("statement", "CALL com.maxdemarzi.clear_flight_cache()");
+            }});
+        }});
+    }};
+
+    private static final HashMap<String, Object> PARAMS = new HashMap<String, Object>(){{
+        put("from", new ArrayList<String>() {{ add("IAH"); }});
+        put("to",  new ArrayList<String>() {{ add("EWR"); }});
+        put("day", "2015-05-06");
+    }};
+
+    private static HashMap<String, Object> query(String options) {
+        return new HashMap<String, Object>(){{
+            put("statements", new ArrayList<Map<String, Object>>() {{
+                add(new HashMap<String, Object>() {{
+                    put("statement", "CALL com.maxdemarzi.flightSearch({from}, {to}, {day}, 50, 2000, " + options + ")");
+                    put("parameters", PARAMS);
+                }});
+            }});
+        }};
+    }
+
+    private static final ArrayList<HashMap<String, Object>> ANSWER_LIST = new ArrayList<HashMap<String, Object>>() {{
+        add(new HashMap<String, Object>() {{
+            put("score", 3);
+            put("distance", 1644);
+            put("flights", new ArrayList<HashMap<String, Object>>() {{
+                add(new HashMap<String, Object>() {{
+                    put("code", "NEO-690");
+                }});
+                add(new HashMap<String, Object>() {{
+                    put("code", "NEO-691");
+                }});
+            }});
+        }});
+    }};
+}
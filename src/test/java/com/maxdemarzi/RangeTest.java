@@ -0,0 +1,94 @@
+package com.maxdemarzi;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.neo4j.harness.junit.Neo4jRule;
+import org.neo4j.test.server.HTTP;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.maxdemarzi.TestUtils.SCHEMA;
+import static com.maxdemarzi.TestUtils.getResultRow;
+import static junit.framework.TestCase.assertEquals;
+
+public class RangeTest {
+
+    @Rule
+    public final Neo4jRule neo4j = new Neo4jRule()
+            .withFixture(MODEL_STATEMENT)
+            .withProcedure(Schema.class)
+            .withProcedure(Flights.class);
+
+    @Test
+    public void shouldFindBestRoutesOnEachDay() {
+        HTTP.POST(neo4j.httpURI().resolve("/db/data/transaction/commit").toString(), SCHEMA);
+        HTTP.POST(neo4j.httpURI().resolve("/db/data/transaction/commit").toString(), CLEAR);
+        HTTP.Response response = HTTP.POST(neo4j.httpURI().resolve("/db/data/transaction/commit").toString(), QUERY);
+        ArrayList row = getResultRow(response);
+        assertEquals(ANSWER_LIST, row);
+    }
+
+    private static final String MODEL_STATEMENT =
+            // IAH to EWR Non Stop on the 6th and 7th, nothing on the 5th
+            "CREATE (iah:Airport {code:'IAH', latitude: 0.5233272799368780000000000, longitude: -1.66402114953545000000})" +
+            "CREATE (ewr:Airport {code:'EWR', latitude: 0.7102181058677910000000000, longitude: -1.29448646552014000000})" +
+            "CREATE (iah)-[:FLIES_TO {distance:1416.0}]->(ewr)" +
+            "CREATE (iah_20150506:AirportDay {key:'IAH-2015-05-06'})" +
+            "CREATE (ewr_20150506:AirportDay {key:'EWR-2015-05-06'})" +
+            "CREATE (iah_20150507:AirportDay {key:'IAH-2015-05-07'})" +
+            "CREATE (ewr_20150507:AirportDay {key:'EWR-2015-05-07'})" +
+            "CREATE (iah)-[:HAS_DAY]->(iah_20150506)" +
+            "CREATE (ewr)-[:HAS_DAY]->(ewr_20150506)" +
+            "CREATE (iah)-[:HAS_DAY]->(iah_20150507)" +
+            "CREATE (ewr)-[:HAS_DAY]->(ewr_20150507)" +
+            "CREATE (leg1:Leg {code:'NEO-690', departs:1430916420, arrives:1430925900, distance:1416})" + // 5/6/15@12:47pm-3:25pm
+            "CREATE (leg2:Leg {code:'NEO-690', departs:1431002820, arrives:1431012300, distance:1416})" + // 5/7/15@12:47pm-3:25pm
+            "CREATE (iah_20150506)-[:EWR_FLIGHT]->(leg1)" +
+            "CREATE (leg1)-[:EWR_FLIGHT]->(ewr_20150506)" +
+            "CREATE (iah_20150507)-[:EWR_FLIGHT]->(leg2)" +
+            "CREATE (leg2)-[:EWR_FLIGHT]->(ewr_20150507)";
+
+    private static final HashMap<String, Object> CLEAR = new HashMap<String, Object>(){{
+        put("statements", new ArrayList<Map<String, Object>>() {{
+            add(new HashMap<String, Object>() {{
+                put("statement", "CALL com.maxdemarzi.clear_flight_cache()");
+            }});
+        }});
+    }};
+
+    private static final HashMap<String, Object> PARAMS = new HashMap<String, Object>(){{
+        put("from", new ArrayList<String>() {{ add("IAH"); }});
+        put("to",  new ArrayList<String>() {{ add("EWR"); }});
+        put("startDay", "2015-05-05");
+        put("endDay", "2015-05-07");
+    }};
+
+    private static final HashMap<String, Object> QUERY = new HashMap<String, Object>(){{
+        put("statements", new ArrayList<Map<String, Object>>() {{
+            add(new HashMap<String, Object>() {{
+                put("statement", "CALL com.maxdemarzi.flightSearchRange({from}, {to}, {startDay}, {endDay}, 10, 2000, {projection:['code']})");
+                put("parameters", PARAMS);
+            }});
+        }});
+    }};
+
+    private static final ArrayList<HashMap<String, Object>> ANSWER_LIST = new ArrayList<HashMap<String, Object>>() {{
+        add(answer("2015-05-06"));
+        add(answer("2015-05-07"));
+    }};
+
+    private static HashMap<String, Object> answer(String day) {
+        return new HashMap<String, Object>() {{
+            put("day", day);
+            put("score", 1);
+            put("distance", 1416);
+            put("flights", new ArrayList<HashMap<String, Object>>() {{
+                add(new HashMap<String, Object>() {{
+                    put("code", "NEO-690");
+                }});
+            }});
+        }};
+    }
+}
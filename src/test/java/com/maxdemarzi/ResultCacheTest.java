@@ -0,0 +1,176 @@
+package com.maxdemarzi;
+
+import com.maxdemarzi.results.MapResult;
+import org.junit.Rule;
+import org.junit.Test;
+import org.neo4j.harness.junit.Neo4jRule;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+import org.neo4j.test.server.HTTP;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.maxdemarzi.TestUtils.SCHEMA;
+import static com.maxdemarzi.TestUtils.getResultRow;
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertFalse;
+import static junit.framework.TestCase.fail;
+
+public class ResultCacheTest {
+
+    @Rule
+    public final Neo4jRule neo4j = new Neo4jRule()
+            .withFixture(MODEL_STATEMENT)
+            .withProcedure(Schema.class)
+            .withProcedure(Flights.class);
+
+    @Test
+    public void shouldCacheResultsUntilTheirLegsChange() {
+        HTTP.POST(neo4j.httpURI().resolve("/db/data/transaction/commit").toString(), SCHEMA);
+        HTTP.POST(neo4j.httpURI().resolve("/db/data/transaction/commit").toString(), statement("CALL com.maxdemarzi.clear_flight_cache()"));
+        Map before = resultCache();
+
+        // The second search and the one of another day are answered from the cache
+        assertEquals(1, search("2015-05-06").size());
+        assertEquals(1, search("2015-05-06").size());
+        assertEquals(0, search("2015-05-10").size());
+        assertEquals(0, search("2015-05-10").size());
+        assertEquals(2L, difference(resultCache(), before, "hits"));
+        assertEquals(2L, difference(resultCache(), before, "misses"));
+
+        // Cancelling the connecting flight only forgets the searches of its day
+        HTTP.POST(neo4j.httpURI().resolve("/db/data/transaction/commit").toString(), statement("MATCH (leg:Leg {code:'NEO-691'}) DETACH DELETE leg"));
+        assertEquals(0, search("2015-05-06").size());
+        assertEquals(0, search("2015-05-10").size());
+        assertEquals(3L, difference(resultCache(), before, "hits"));
+        assertEquals(3L, difference(resultCache(), before, "misses"));
+    }
+
+    @Test
+    public void shouldForgetOvernightResultsWhenALaterDayChanges() {
+        HTTP.POST(neo4j.httpURI().resolve("/db/data/transaction/commit").toString(), SCHEMA);
+        HTTP.POST(neo4j.httpURI().resolve("/db/data/transaction/commit").toString(), statement(OVERNIGHT_STATEMENT));
+        HTTP.POST(neo4j.httpURI().resolve("/db/data/transaction/commit").toString(), statement("CALL com.maxdemarzi.clear_flight_cache()"));
+
+        // Two overnight connections take the search of 5/6 to a Leg leaving on 5/9
+        assertEquals(1, overnightSearch().size());
+        assertEquals(1, overnightSearch().size());
+
+        HTTP.POST(neo4j.httpURI().resolve("/db/data/transaction/commit").toString(), statement("MATCH (leg:Leg {code:'NEO-702'}) DETACH DELETE leg"));
+        assertEquals(0, overnightSearch().size());
+    }
+
+    @Test
+    public void shouldNotLetASearchChangeTheCachedResults() throws Exception {
+        GraphDatabaseAPI db = (GraphDatabaseAPI) neo4j.getGraphDatabaseService();
+        SearchOptions options = new SearchOptions(null);
+        List<String> from = Collections.singletonList("IAH");
+        List<String> to = Collections.singletonList("EWR");
+        ResultCache.Search search = () -> {
+            HashMap<String, Object> flight = new HashMap<>();
+            flight.put("code", "NEO-690");
+            HashMap<String, Object> result = new HashMap<>();
+            result.put("flights", new ArrayList<>(Collections.singletonList(flight)));
+            return new ArrayList<>(Collections.singletonList(new MapResult(result)));
+        };
+
+        List<MapResult> first = ResultCache.of(db).get(from, to, "2015-06-01", 50, Deadline.after(2000), options, search);
+        first.get(0).value.put("truncated", true);
+        first.clear();
+
+        List<MapResult> second = ResultCache.of(db).get(from, to, "2015-06-01", 50, Deadline.after(2000), options, search);
+        assertEquals(1, second.size());
+        assertFalse(second.get(0).value.containsKey("truncated"));
+        try {
+            ((Map<String, Object>) ((List) second.get(0).value.get("flights")).get(0)).put("code", "NEO-691");
+            fail("The cached flights should be read only");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
+    private ArrayList overnightSearch() {
+        return getResultRow(HTTP.POST(neo4j.httpURI().resolve("/db/data/transaction/commit").toString(),
+                statement("CALL com.maxdemarzi.flightSearch(['DFW'], ['EWR'], '2015-05-06', 50, 2000, {maxLayover:1440})")));
+    }
+
+    private ArrayList search(String day) {
+        HashMap<String, Object> parameters = new HashMap<>();
+        parameters.put("from", new ArrayList<String>() {{ add("IAH"); }});
+        parameters.put("to", new ArrayList<String>() {{ add("EWR"); }});
+        parameters.put("day", day);
+        HashMap<String, Object> query = statement("CALL com.maxdemarzi.flights({from}, {to}, {day})");
+        ((Map) ((ArrayList) query.get("statements")).get(0)).put("parameters", parameters);
+        return getResultRow(HTTP.POST(neo4j.httpURI().resolve("/db/data/transaction/commit").toString(), query));
+    }
+
+    private Map resultCache() {
+        Map metrics = (Map) getResultRow(HTTP.POST(neo4j.httpURI().resolve("/db/data/transaction/commit").toString(),
+                statement("CALL com.maxdemarzi.flights.metrics()"))).get(0);
+        return (Map) metrics.get("result_cache");
+    }
+
+    private static long difference(Map after, Map before, String count) {
+        return ((Number) after.get(count)).longValue() - ((Number) before.get(count)).longValue();
+    }
+
+    private static HashMap<String, Object> statement(String statement) {
+        return new HashMap<String, Object>(){{
+            put("statements", new ArrayList<Map<String, Object>>() {{
+                add(new HashMap<String, Object>() {{
+                    put("statement", statement);
+                }});
+            }});
+        }};
+    }
+
+    private static final String MODEL_STATEMENT =
+            // IAH to EWR Direct via Ohare
+            "CREATE (iah:Airport {code:'IAH', latitude: 0.5233272799368780000000000, longitude: -1.66402114953545000000})" +
+            "CREATE (ord:Airport {code:'ORD', latitude: 0.7326649793031630000000000, longitude: -1.53422683082880000000})" +
+            "CREATE (ewr:Airport {code:'EWR', latitude: 0.7102181058677910000000000, longitude: -1.29448646552014000000})" +
+            "CREATE (iah)-[:FLIES_TO {distance:926.0}]->(ord)" +
+            "CREATE (ord)-[:FLIES_TO {distance:718.0}]->(ewr)" +
+            "CREATE (iah_20150506:AirportDay {key:'IAH-2015-05-06'})" +
+            "CREATE (ord_20150506:AirportDay {key:'ORD-2015-05-06'})" +
+            "CREATE (ewr_20150506:AirportDay {key:'EWR-2015-05-06'})" +
+            "CREATE (iah)-[:HAS_DAY]->(iah_20150506)" +
+            "CREATE (ord)-[:HAS_DAY]->(ord_20150506)" +
+            "CREATE (ewr)-[:HAS_DAY]->(ewr_20150506)" +
+            "CREATE (leg1:Leg {code:'NEO-690', departs:1430916420, arrives:1430925900, distance:926})" + // 5/6/15@12:47pm-3:25pm
+            "CREATE (leg2:Leg {code:'NEO-691', departs:1430928000, arrives:1430939760, distance:718})" + // 5/6/15@4:00pm-7:16pm
+            "CREATE (iah_20150506)-[:ORD_FLIGHT]->(leg1)" +
+            "CREATE (leg1)-[:ORD_FLIGHT]->(ord_20150506)" +
+            "CREATE (ord_20150506)-[:EWR_FLIGHT]->(leg2)" +
+            "CREATE (leg2)-[:EWR_FLIGHT]->(ewr_20150506)";
+
+    private static final String OVERNIGHT_STATEMENT =
+            // DFW to EWR via IAH and Ohare, in UTC: in late on 5/6, a red-eye on 5/7 and out again early on 5/9
+            "MATCH (iah:Airport {code:'IAH'}), (ord:Airport {code:'ORD'}), (ewr:Airport {code:'EWR'}) " +
+            "CREATE (dfw:Airport {code:'DFW', latitude: 0.5741599944012120000000000, longitude: -1.69363356917762000000})" +
+            "CREATE (dfw)-[:FLIES_TO {distance:225.0}]->(iah)" +
+            "CREATE (dfw_20150506:AirportDay {key:'DFW-2015-05-06'})" +
+            "CREATE (iah_20150507:AirportDay {key:'IAH-2015-05-07'})" +
+            "CREATE (ord_20150508:AirportDay {key:'ORD-2015-05-08'})" +
+            "CREATE (ord_20150509:AirportDay {key:'ORD-2015-05-09'})" +
+            "CREATE (ewr_20150509:AirportDay {key:'EWR-2015-05-09'})" +
+            "CREATE (dfw)-[:HAS_DAY]->(dfw_20150506)" +
+            "CREATE (iah)-[:HAS_DAY]->(iah_20150507)" +
+            "CREATE (ord)-[:HAS_DAY]->(ord_20150508)" +
+            "CREATE (ord)-[:HAS_DAY]->(ord_20150509)" +
+            "CREATE (ewr)-[:HAS_DAY]->(ewr_20150509)" +
+            "WITH dfw_20150506, iah_20150507, ord_20150508, ord_20150509, ewr_20150509 " +
+            "MATCH (iah_20150506:AirportDay {key:'IAH-2015-05-06'}) " +
+            "CREATE (leg0:Leg {code:'NEO-700', departs:1430942400, arrives:1430949600, departs_at:'2015-05-06T20:00', arrives_at:'2015-05-06T22:00', distance:225})" +
+            "CREATE (leg1:Leg {code:'NEO-701', departs:1431032400, arrives:1431046800, departs_at:'2015-05-07T21:00', arrives_at:'2015-05-08T01:00', distance:926})" +
+            "CREATE (leg2:Leg {code:'NEO-702', departs:1431131400, arrives:1431140400, departs_at:'2015-05-09T00:30', arrives_at:'2015-05-09T03:00', distance:718})" +
+            "CREATE (dfw_20150506)-[:IAH_FLIGHT]->(leg0)" +
+            "CREATE (leg0)-[:IAH_FLIGHT]->(iah_20150506)" +
+            "CREATE (iah_20150507)-[:ORD_FLIGHT]->(leg1)" +
+            "CREATE (leg1)-[:ORD_FLIGHT]->(ord_20150508)" +
+            "CREATE (ord_20150509)-[:EWR_FLIGHT]->(leg2)" +
+            "CREATE (leg2)-[:EWR_FLIGHT]->(ewr_20150509)";
+}
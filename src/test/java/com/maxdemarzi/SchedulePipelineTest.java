@@ -0,0 +1,108 @@
+package com.maxdemarzi;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Iterator;
+import java.util.List;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertFalse;
+import static junit.framework.TestCase.assertNotNull;
+import static junit.framework.TestCase.assertTrue;
+import static junit.framework.TestCase.fail;
+
+public class SchedulePipelineTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldHandOverEveryRowInOrder() throws Exception {
+        // Two full chunks and part of a third
+        int rows = SchedulePipeline.CHUNK_ROWS * 2 + 7;
+        File file = schedule(rows, -1);
+
+        int row = 0;
+        try (SchedulePipeline schedules = new SchedulePipeline(file.getAbsolutePath())) {
+            for (List<LegRecord> legs : schedules) {
+                assertEquals(3, legs.size());
+                assertEquals("NEO-" + row, legs.get(0).code);
+                assertEquals("IAH-2016-05-02", legs.get(0).departureKey);
+                row++;
+            }
+        }
+        assertEquals(rows, row);
+    }
+
+    @Test
+    public void shouldFailOnTheRowThatCouldNotBeParsed() throws Exception {
+        int rows = SchedulePipeline.CHUNK_ROWS * 2;
+        File file = schedule(rows, SchedulePipeline.CHUNK_ROWS + 3);
+
+        int row = 0;
+        try (SchedulePipeline schedules = new SchedulePipeline(file.getAbsolutePath())) {
+            Iterator<List<LegRecord>> legs = schedules.iterator();
+            try {
+                while (legs.hasNext()) {
+                    legs.next();
+                    row++;
+                }
+                fail("The bad distance should have failed the pipeline");
+            } catch (IllegalArgumentException e) {
+                // The parsers work a chunk at a time, so the rows before the bad one's chunk all come through
+                assertEquals(SchedulePipeline.CHUNK_ROWS, row);
+                assertTrue(e.getMessage().startsWith("Could not read row " + (SchedulePipeline.CHUNK_ROWS + 4) + " "));
+                assertTrue(e.getCause() instanceof NumberFormatException);
+            }
+        }
+    }
+
+    @Test
+    public void shouldStopTheReaderWhenClosedWhileItWaits() throws Exception {
+        // More chunks than may be read ahead, and nobody takes any of them
+        File file = schedule(SchedulePipeline.CHUNK_ROWS * (SchedulePipeline.QUEUED_CHUNKS + 2), -1);
+
+        SchedulePipeline schedules = new SchedulePipeline(file.getAbsolutePath());
+        Thread reader = reader();
+        assertNotNull(reader);
+        long giveUp = System.currentTimeMillis() + 10_000;
+        while (reader.getState() != Thread.State.WAITING && System.currentTimeMillis() < giveUp) {
+            Thread.sleep(10);
+        }
+        assertEquals(Thread.State.WAITING, reader.getState());
+
+        schedules.close();
+        assertFalse(reader.isAlive());
+    }
+
+    private static Thread reader() {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("schedule-reader") && thread.isAlive()) {
+                return thread;
+            }
+        }
+        return null;
+    }
+
+    // A daily flight operating on 5/2, 5/3 and 5/4 for each row, numbered by the row, with a distance that is not
+    // a number on the bad row
+    private File schedule(int rows, int badRow) throws IOException {
+        File file = folder.newFile("flights.csv");
+        try (PrintWriter writer = new PrintWriter(file)) {
+            writer.println(HEADER);
+            for (int row = 0; row < rows; row++) {
+                writer.println("IAH,EWR,1247,1725,-500,-400,NEO,5/2/16," + row + ",1,2,3,4,5,6,7,5/5/16,00:00.0,0,0,"
+                        + (row == badRow ? "far" : "1400"));
+            }
+        }
+        return file;
+    }
+
+    private static final String HEADER =
+            "DepartureCity,ArrivalCity,DepartureTime,ArrivalTime,DepartureTimezone,ArrivalTimezone,AirlineCode,EffectiveDate,FlightNumber,DayOfOperationMonday,DayOfOperationTuesday,DayOfOperationWednesday,DayOfOperationThursday,DayOfOperationFriday,DayOfOperationSaturday,DayOfOperationSunday,DiscontinueDate,ScheduleEffectiveDate,VariationDepartureTimeCode,VariationArrivalTimeCode,FlightDistance";
+}
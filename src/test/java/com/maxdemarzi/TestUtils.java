@@ -30,7 +30,7 @@ class TestUtils {
     static final HashMap<String, Object> SCHEMA = new HashMap<String, Object>(){{
         put("statements", new ArrayList<Map<String, Object>>() {{
             add(new HashMap<String, Object>() {{
-                put("statement", "CALL com.aa.generateSchema()");
+                put("statement", "CALL com.maxdemarzi.generateSchema()");
             }});
         }});
     }};
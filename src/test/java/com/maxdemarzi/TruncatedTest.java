@@ -0,0 +1,84 @@
+package com.maxdemarzi;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.neo4j.harness.junit.Neo4jRule;
+import org.neo4j.test.server.HTTP;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.maxdemarzi.TestUtils.SCHEMA;
+import static com.maxdemarzi.TestUtils.getResultRow;
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertFalse;
+
+public class TruncatedTest {
+
+    @Rule
+    public final Neo4jRule neo4j = new Neo4jRule()
+            .withFixture(MODEL_STATEMENT)
+            .withProcedure(Schema.class)
+            .withProcedure(Flights.class);
+
+    @Test
+    public void shouldTellWhenTheDeadlineCutTheSearchShort() {
+        HTTP.POST(neo4j.httpURI().resolve("/db/data/transaction/commit").toString(), SCHEMA);
+        HTTP.POST(neo4j.httpURI().resolve("/db/data/transaction/commit").toString(), CLEAR);
+
+        // Out of time before the first pair, nothing found and the answer says it may be missing itineraries
+        HTTP.Response response = HTTP.POST(neo4j.httpURI().resolve("/db/data/transaction/commit").toString(), query(0));
+        assertEquals(TRUNCATED_LIST, getResultRow(response));
+
+        // The truncated answer was not cached, with time to finish the search is complete
+        response = HTTP.POST(neo4j.httpURI().resolve("/db/data/transaction/commit").toString(), query(2000));
+        ArrayList<Map> rows = getResultRow(response);
+        assertEquals(1, rows.size());
+        assertFalse(rows.get(0).containsKey("truncated"));
+    }
+
+    private static final String MODEL_STATEMENT =
+            "CREATE (iah:Airport {code:'IAH', latitude: 0.5233272799368780000000000, longitude: -1.66402114953545000000})" +
+            "CREATE (ewr:Airport {code:'EWR', latitude: 0.7102181058677910000000000, longitude: -1.29448646552014000000})" +
+            "CREATE (iah)-[:FLIES_TO {distance:1400.0}]->(ewr)" +
+            "CREATE (iah_20150506:AirportDay {key:'IAH-2015-05-06'})" +
+            "CREATE (ewr_20150506:AirportDay {key:'EWR-2015-05-06'})" +
+            "CREATE (iah)-[:HAS_DAY]->(iah_20150506)" +
+            "CREATE (ewr)-[:HAS_DAY]->(ewr_20150506)" +
+            "CREATE (leg1:Leg {code:'NEO-700', departs:1430917200, arrives:1430929800, departs_at:'2015-05-06T08:00', arrives_at:'2015-05-06T12:30', distance:1400})" +
+            "CREATE (iah_20150506)-[:EWR_FLIGHT]->(leg1)" +
+            "CREATE (leg1)-[:EWR_FLIGHT]->(ewr_20150506)";
+
+    private static final HashMap<String, Object> CLEAR = new HashMap<String, Object>(){{
+        put("statements", new ArrayList<Map<String, Object>>() {{
+            add(new HashMap<String, Object>() {{
+                put("statement", "CALL com.maxdemarzi.clear_flight_cache()");
+            }});
+        }});
+    }};
+
+    private static final HashMap<String, Object> PARAMS = new HashMap<String, Object>(){{
+        put("from", new ArrayList<String>() {{ add("IAH"); }});
+        put("to",  new ArrayList<String>() {{ add("EWR"); }});
+        put("day", "2015-05-06");
+    }};
+
+    private static HashMap<String, Object> query(int timeLimit) {
+        return new HashMap<String, Object>(){{
+            put("statements", new ArrayList<Map<String, Object>>() {{
+                add(new HashMap<String, Object>() {{
+                    put("statement", "CALL com.maxdemarzi.flightSearch({from}, {to}, {day}, 50, " + timeLimit + ")");
+                    put("parameters", PARAMS);
+                }});
+            }});
+        }};
+    }
+
+    private static final ArrayList<HashMap<String, Object>> TRUNCATED_LIST = new ArrayList<HashMap<String, Object>>() {{
+        add(new HashMap<String, Object>() {{
+            put("flights", new ArrayList<>());
+            put("truncated", true);
+        }});
+    }};
+}